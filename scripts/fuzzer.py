@@ -0,0 +1,117 @@
+# Throws random and malformed packets at a local server, checking after every round that it still
+# hands out sessions. Covers what crasher.py (random bodies after a valid header) and
+# invalid_location_test.py (NaN and infinite coordinates) do, plus truncated packets, bad headers
+# and bogus repeat counts.
+#
+# Every invalid packet counts as a violation against 127.0.0.1, so set temp-ban-violations=0 in
+# config.properties first, or the server will (rightly) ban the fuzzer.
+#
+# Usage: python3 fuzzer.py [rounds] [seed] [port]
+
+from socket import *
+from time import sleep
+import random
+import struct
+import sys
+
+rounds = int(sys.argv[1]) if len(sys.argv) > 1 else 100
+seed = int(sys.argv[2]) if len(sys.argv) > 2 else random.randrange(1 << 32)
+addr = ("127.0.0.1", int(sys.argv[3]) if len(sys.argv) > 3 else 1337)
+rng = random.Random(seed)
+
+HEADER = b"UTO\x00"
+inf = float("inf")
+nan = float("nan")
+
+def rand_bytes(n):
+    return bytes(rng.randrange(256) for _ in range(n))
+
+def packet(type, body=b""):
+    return HEADER + bytes([type]) + body
+
+def fuzz_packet():
+    kind = rng.randrange(6)
+    if kind == 0:
+        # Random body after a valid header, like crasher.py
+        return packet(rng.choice([0x01, 0x02, 0x03, 0x04, 0x0a, 0x0b, 0x00, 0x7f, 0xff]), rand_bytes(rng.randrange(40)) + b"\x00")
+    if kind == 1:
+        return rand_bytes(rng.randrange(1, 64))
+    if kind == 2:
+        # Truncated
+        full = packet(rng.choice([0x02, 0x03, 0x0a, 0x0b]), rand_bytes(30))
+        return full[:rng.randrange(len(full))]
+    if kind == 3:
+        # Spectate with a count larger than the packet, or negative
+        count = rng.choice([-1, -32768, 32767, rng.randrange(1, 200)])
+        return packet(0x04, struct.pack("<ih", 0, count) + rand_bytes(rng.randrange(8)))
+    if kind == 4:
+        return b"UTO" + bytes([rng.randrange(1, 256)]) + rand_bytes(20)
+    return packet(0x0b, rand_bytes(16) + struct.pack("<hhff", 0, 0, rng.choice([nan, inf, -inf]), 0))
+
+def read_until(sock, type, timeout=2):
+    # The raw protocol has no framing, so just look for a header with the type
+    sock.settimeout(timeout)
+    data = b""
+    try:
+        while True:
+            chunk = sock.recv(4096)
+            if not chunk:
+                return None
+            data += chunk
+            index = data.find(HEADER + bytes([type]))
+            if index >= 0 and len(data) >= index + 5:
+                return data[index:]
+    except OSError:
+        return None
+
+def connect():
+    sock = socket(AF_INET, SOCK_STREAM)
+    sock.setsockopt(IPPROTO_TCP, TCP_NODELAY, 1)
+    sock.connect(addr)
+    return sock
+
+def login():
+    sock = connect()
+    sock.sendall(packet(0x01))
+    session = read_until(sock, 0x01)
+    if session is None or len(session) < 25:
+        sock.close()
+        return None, None
+    return sock, session[9:25]
+
+def bad_location(sock, uuid):
+    # Like invalid_location_test.py: NaN or infinite coordinates from a real player, which must
+    # get it kicked
+    x, y = rng.choice([(nan, 100), (inf, 0), (0, -inf), (nan, nan)])
+    if rng.randrange(2):
+        sock.sendall(packet(0x0a, uuid + struct.pack("<hhhff", 132, 1131, 0, x, y)))
+    else:
+        sock.sendall(packet(0x0a, uuid + struct.pack("<hhhff", 132, 1131, 0, 0, 100)))
+        sleep(0.01)
+        sock.sendall(packet(0x0b, uuid + struct.pack("<hhff", 1131, 0, x, y)))
+    return read_until(sock, 0xff) is not None
+
+print("Fuzzing", addr, "for", rounds, "rounds with seed", seed)
+sent = 0
+for n in range(rounds):
+    sock = connect()
+    try:
+        for _ in range(rng.randrange(1, 20)):
+            sock.sendall(fuzz_packet())
+            sent += 1
+            # Each read is one packet without framing; keep them apart
+            sleep(0.005)
+    except OSError:
+        pass
+    sock.close()
+
+    sock, uuid = login()
+    if sock is None:
+        print("Round", n, "- server no longer hands out sessions (seed", seed, ")")
+        sys.exit(1)
+    if not bad_location(sock, uuid):
+        print("Round", n, "- player wasn't kicked for invalid coordinates (seed", seed, ")")
+        sys.exit(1)
+    sock.close()
+
+print("Sent", sent, "bad packets; server still up")
@@ -0,0 +1,402 @@
+package me.colinator27;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import me.colinator27.packet.EventLoopGroup;
+import me.colinator27.packet.PacketHandler;
+import me.colinator27.packet.PacketTracer;
+
+/**
+ * A line-based console for looking into and managing the running servers, listening on the
+ * loopback interface only (e.g. {@code nc 127.0.0.1 <admin-port>}). Every command is answered from
+ * the concurrent collections and counters the servers keep anyway, so running one never blocks a
+ * connection or a room.
+ */
+public class AdminConsole {
+    private static final String HELP =
+            "servers                          every server, with its sessions and connections\n"
+                    + "sessions [port]                  every session: id, uuid, address, room and state\n"
+                    + "rooms [port]                     the rooms with anyone in them\n"
+                    + "top [count]                      the connections sending the most packets per second\n"
+                    + "kick <port> <id> [reason]        kicks a player\n"
+                    + "kickip <address>                 disconnects everyone from an address, on every server\n"
+                    + "ban <address> [minutes]          bans an address temporarily (default 60 minutes), and kicks it\n"
+                    + "unban <address>                  lifts a temporary ban\n"
+                    + "bans                             the temporary bans, and how many connections were refused\n"
+                    + "trace <port> add [id <id>] [ip <address>] [type <packet type>] [sample <n>]\n"
+                    + "                                 traces packets matching all the given filters, 1 in n\n"
+                    + "trace <port> list|clear          lists or removes every trace rule\n"
+                    + "trace <port> remove <rule>       removes a trace rule\n"
+                    + "trace <port> dump [count]        the most recent traces (default 50)\n"
+                    + "stats                            threads, queues and memory\n"
+                    + "help                             this list\n"
+                    + "quit                             closes the console";
+
+    /** A connection, and how many packets it sent in the last second */
+    private static class Talker {
+        final GameServer server;
+        final PacketHandler handler;
+        final int rate;
+
+        Talker(GameServer server, PacketHandler handler, int rate) {
+            this.server = server;
+            this.handler = handler;
+            this.rate = rate;
+        }
+    }
+
+    private final Log LOG;
+    private final List<GameServer> servers;
+    private final EventLoopGroup loops;
+    private final RoomWorkers workers;
+    private final KickWorker kicks;
+    private final BanList bans;
+
+    private ServerSocket socket;
+
+    /**
+     * @param servers the servers to manage
+     * @param loops the I/O threads shared by the servers
+     * @param workers the room threads shared by the servers
+     * @param kicks the kick worker shared by the servers
+     * @param bans the ban list shared by the servers
+     * @param log the log to record commands that change anything to
+     */
+    public AdminConsole(
+            List<GameServer> servers, EventLoopGroup loops, RoomWorkers workers, KickWorker kicks, BanList bans, Log log) {
+        this.LOG = log;
+        this.servers = servers;
+        this.loops = loops;
+        this.workers = workers;
+        this.kicks = kicks;
+        this.bans = bans;
+    }
+
+    /**
+     * Starts accepting console connections, each served by a thread of its own
+     *
+     * @param port the port to listen on, on the loopback interface
+     */
+    public void start(int port) throws IOException {
+        socket = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::accept, "admin-console");
+        thread.setDaemon(true);
+        thread.start();
+        LOG.logger.info("Admin console listening on " + socket.getLocalSocketAddress());
+    }
+
+    /** Stops accepting console connections */
+    public void stop() {
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException e) {
+            LOG.logException(e);
+        }
+    }
+
+    private void accept() {
+        while (!socket.isClosed()) {
+            try {
+                Socket client = socket.accept();
+                Thread thread = new Thread(() -> this.serve(client), "admin-console-" + client.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!socket.isClosed()) LOG.logException(e);
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket s = client;
+                BufferedReader in =
+                        new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if (line.equals("quit")) break;
+                out.println(this.execute(line));
+            }
+        } catch (IOException e) {
+            // The console client went away
+        }
+    }
+
+    /**
+     * Runs a command
+     *
+     * @param line the command and its arguments, separated by spaces
+     * @return the output of the command
+     */
+    public String execute(String line) {
+        String[] args = line.split("\\s+");
+        try {
+            switch (args[0].toLowerCase()) {
+                case "servers":
+                    return this.servers();
+                case "sessions":
+                    return this.sessions(args.length > 1 ? this.server(args[1]) : null);
+                case "rooms":
+                    return this.rooms(args.length > 1 ? this.server(args[1]) : null);
+                case "top":
+                    return this.top(args.length > 1 ? Integer.parseInt(args[1]) : 10);
+                case "kick":
+                    if (args.length < 3) return "Usage: kick <port> <id> [reason]";
+                    return this.kick(
+                            this.server(args[1]),
+                            Integer.parseInt(args[2]),
+                            args.length > 3 ? line.split("\\s+", 4)[3] : "Kicked by an administrator");
+                case "kickip":
+                    if (args.length < 2) return "Usage: kickip <address>";
+                    return this.kickAddress(BanList.parseAddress(args[1]));
+                case "ban":
+                    if (args.length < 2) return "Usage: ban <address> [minutes]";
+                    return this.ban(BanList.parseAddress(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 60);
+                case "unban":
+                    if (args.length < 2) return "Usage: unban <address>";
+                    return this.unban(BanList.parseAddress(args[1]));
+                case "bans":
+                    return this.bans();
+                case "trace":
+                    if (args.length < 3) return "Usage: trace <port> add|list|clear|remove|dump ...";
+                    return this.trace(this.server(args[1]), Arrays.copyOfRange(args, 2, args.length));
+                case "stats":
+                    return this.stats();
+                case "help":
+                    return HELP;
+                default:
+                    return "Unknown command " + args[0] + "; try help";
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            return "Invalid arguments: " + e.getMessage();
+        }
+    }
+
+    private GameServer server(String port) {
+        int p = Integer.parseInt(port);
+        for (GameServer server : servers) {
+            if (server.getProperties().port == p) return server;
+        }
+        throw new IllegalArgumentException("no server on port " + p);
+    }
+
+    private List<GameServer> serversOrAll(GameServer server) {
+        return server == null ? servers : Arrays.asList(server);
+    }
+
+    private String servers() {
+        StringBuilder sb = new StringBuilder();
+        for (GameServer server : servers) {
+            ServerProperties properties = server.getProperties();
+            sb.append(
+                    String.format(
+                            "port %d: %s, %d/%d sessions, %d/%d spectators, %d connections%n",
+                            properties.port,
+                            server.isAccepting() ? "accepting" : server.isRunning() ? "draining" : "stopped",
+                            server.getSessionManager().getPlayerCount(),
+                            properties.maxPlayers,
+                            server.getSpectatorCount(),
+                            properties.maxSpectators,
+                            server.getConnectionManager().getOpenCount()));
+        }
+        return sb.toString().trim();
+    }
+
+    private String sessions(GameServer only) {
+        StringBuilder sb = new StringBuilder();
+        for (GameServer server : this.serversOrAll(only)) {
+            List<GamePlayer> players = server.getSessionManager().getPlayers();
+            players.sort(Comparator.comparingInt(p -> p.id));
+            for (GamePlayer player : players) {
+                PacketHandler handler = player.handler;
+                String state =
+                        player.kicked
+                                ? "kicked"
+                                : player.socket == null
+                                        ? "reserved"
+                                        : player.detachedTime != -1 ? "detached" : "attached";
+                sb.append(
+                        String.format(
+                                "port %d id %d %s %s room %d %s%n",
+                                server.getProperties().port,
+                                player.id,
+                                player.uuid,
+                                handler == null ? "-" : handler.getAddress(),
+                                player.getRoom(),
+                                state));
+            }
+        }
+        return sb.length() == 0 ? "No sessions" : sb.toString().trim();
+    }
+
+    private String rooms(GameServer only) {
+        StringBuilder sb = new StringBuilder();
+        for (GameServer server : this.serversOrAll(only)) {
+            int maxRoomID = server.getProperties().maxRoomID;
+            for (int room = 0; room <= maxRoomID; room++) {
+                int players = server.getPlayersInRoom(room).size();
+                int remote = server.getRemotePlayerCount(room);
+                int spectators = server.getSpectatorCount(room);
+                if (players + remote + spectators == 0) continue;
+                sb.append(
+                        String.format(
+                                "port %d room %d: %d players, %d remote players, %d spectators%n",
+                                server.getProperties().port, room, players, remote, spectators));
+            }
+        }
+        return sb.length() == 0 ? "No one in any room" : sb.toString().trim();
+    }
+
+    private String top(int count) {
+        long now = System.currentTimeMillis();
+        List<Talker> talkers = new ArrayList<>();
+        for (GameServer server : servers) {
+            for (PacketHandler handler : server.getConnectionManager().getHandlers()) {
+                if (handler.isRunning()) talkers.add(new Talker(server, handler, handler.getPacketRate(now)));
+            }
+        }
+        talkers.sort(Comparator.comparingInt((Talker t) -> t.rate).reversed());
+        StringBuilder sb = new StringBuilder();
+        for (Talker talker : talkers.subList(0, Math.min(Math.max(count, 0), talkers.size()))) {
+            PacketHandler handler = talker.handler;
+            sb.append(
+                    String.format(
+                            "%d/s port %d %s %s, %d packets received, %d bytes queued%n",
+                            talker.rate,
+                            talker.server.getProperties().port,
+                            handler.getAddress(),
+                            handler.isSpectating()
+                                    ? "spectator"
+                                    : handler.getPlayerID() == -1 ? "no player" : "id " + handler.getPlayerID(),
+                            handler.getPacketCount(),
+                            handler.getQueuedBytes()));
+        }
+        return sb.length() == 0 ? "No connections" : sb.toString().trim();
+    }
+
+    private String kick(GameServer server, int id, String reason) {
+        GamePlayer player = server.getSessionManager().getPlayer(id);
+        if (player == null) return "No player " + id + " on port " + server.getProperties().port;
+        LOG.logger.info("Admin console kicked " + player + ": " + reason);
+        server.getSessionManager().kick(player, reason);
+        return "Kicked player " + id;
+    }
+
+    private String kickAddress(InetAddress address) {
+        LOG.logger.info("Admin console disconnected everyone from " + address.getHostAddress());
+        for (GameServer server : servers) server.getConnectionManager().disconnectAll(address, "Disconnected by an administrator.");
+        return "Disconnected everyone from " + address.getHostAddress();
+    }
+
+    private String ban(InetAddress address, int minutes) {
+        bans.ban(address, minutes);
+        LOG.logger.info("Admin console banned " + address.getHostAddress() + " for " + minutes + " minutes");
+        for (GameServer server : servers) server.getConnectionManager().disconnectAll(address, "You have been temporarily banned.");
+        return "Banned " + address.getHostAddress() + " for " + minutes + " minutes";
+    }
+
+    private String unban(InetAddress address) {
+        if (!bans.unban(address)) return address.getHostAddress() + " has no temporary ban";
+        LOG.logger.info("Admin console lifted the ban on " + address.getHostAddress());
+        return "Lifted the ban on " + address.getHostAddress();
+    }
+
+    private String bans() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<InetAddress, Long> ban : bans.getTemporaryBans().entrySet()) {
+            long left = ban.getValue() - now;
+            if (left > 0) sb.append(ban.getKey().getHostAddress()).append(": ").append(left / 60000 + 1).append(" minutes left\n");
+        }
+        sb.append(bans.getRefusedCount()).append(" connections refused; permanent bans are in ").append(bans.getFile());
+        return sb.toString();
+    }
+
+    private String trace(GameServer server, String[] args) throws IOException {
+        PacketTracer tracer = server.getTracer();
+        switch (args[0].toLowerCase()) {
+            case "add":
+                {
+                    int id = -1, sample = 1;
+                    InetAddress address = null;
+                    String type = null;
+                    for (int i = 1; i + 1 < args.length; i += 2) {
+                        switch (args[i].toLowerCase()) {
+                            case "id":
+                                id = Integer.parseInt(args[i + 1]);
+                                break;
+                            case "ip":
+                                address = BanList.parseAddress(args[i + 1]);
+                                break;
+                            case "type":
+                                type = args[i + 1];
+                                break;
+                            case "sample":
+                                sample = Integer.parseInt(args[i + 1]);
+                                break;
+                            default:
+                                return "Unknown filter " + args[i];
+                        }
+                    }
+                    PacketTracer.Rule rule = tracer.addRule(id, address, type, sample);
+                    LOG.logger.info("Admin console started tracing " + rule + " on port " + server.getProperties().port);
+                    return "Added trace rule " + rule;
+                }
+            case "list":
+                {
+                    StringBuilder sb = new StringBuilder();
+                    for (PacketTracer.Rule rule : tracer.getRules()) sb.append(rule).append('\n');
+                    sb.append(tracer.getTraceCount()).append(" packets traced");
+                    return sb.toString();
+                }
+            case "remove":
+                if (args.length < 2) return "Usage: trace <port> remove <rule>";
+                return tracer.removeRule(Integer.parseInt(args[1])) ? "Removed trace rule " + args[1] : "No trace rule " + args[1];
+            case "clear":
+                tracer.clearRules();
+                LOG.logger.info("Admin console stopped tracing on port " + server.getProperties().port);
+                return "Removed every trace rule";
+            case "dump":
+                {
+                    List<String> traces = tracer.dump(args.length > 1 ? Integer.parseInt(args[1]) : 50);
+                    return traces.isEmpty() ? "No traces" : String.join("\n", traces);
+                }
+            default:
+                return "Unknown trace command " + args[0];
+        }
+    }
+
+    private String stats() {
+        Runtime runtime = Runtime.getRuntime();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("threads: %d live%n", ManagementFactory.getThreadMXBean().getThreadCount()));
+        sb.append(String.format("heap: %d/%d MB%n",
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20, runtime.maxMemory() >> 20));
+        sb.append("I/O thread queues: ").append(Arrays.toString(loops.getQueueSizes())).append('\n');
+        sb.append("room thread queues: ").append(Arrays.toString(workers.getQueueSizes())).append('\n');
+        sb.append("kick queue: ").append(kicks.getQueueSize()).append('\n');
+        for (GameServer server : servers) {
+            long queued = 0;
+            for (PacketHandler handler : server.getConnectionManager().getHandlers()) {
+                queued += handler.getQueuedBytes();
+            }
+            sb.append(String.format("port %d: %d bytes queued for clients%n", server.getProperties().port, queued));
+        }
+        return sb.toString().trim();
+    }
+}
@@ -0,0 +1,235 @@
+package me.colinator27;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The addresses connections are refused from, checked right after accepting, before a connection
+ * gets a handler. Shared by all servers.
+ *
+ * <p>Permanent bans come from the ban file, one address or CIDR range (like {@code 10.0.0.0/8} or
+ * {@code 2001:db8::/32}) per line, and are held in a prefix trie that is rebuilt and swapped in
+ * whenever the file is reloaded, so checking never waits for a reload. Temporary bans are handed
+ * out to addresses that commit too many violations (hitting ratelimits, sending invalid data)
+ * within {@link #VIOLATION_WINDOW} ms.
+ */
+public class BanList {
+    /** Time (in ms) over which violations from an address are counted towards a temporary ban */
+    public static final int VIOLATION_WINDOW = 60000;
+
+    /** Bit prefixes, in arrays of nodes; node 0 is the root */
+    private static class PrefixTrie {
+        private int[] zero = new int[16], one = new int[16];
+        private boolean[] banned = new boolean[16];
+        private int size = 1;
+
+        /** Bans every address starting with the first bits of an address */
+        void add(byte[] address, int bits) {
+            int node = 0;
+            for (int i = 0; i < bits && !banned[node]; i++) {
+                int[] children = bit(address, i) ? one : zero;
+                if (children[node] == 0) {
+                    if (size == banned.length) this.grow();
+                    children = bit(address, i) ? one : zero;
+                    children[node] = size++;
+                }
+                node = children[node];
+            }
+            banned[node] = true;
+        }
+
+        boolean contains(byte[] address) {
+            int node = 0;
+            for (int i = 0; !banned[node]; i++) {
+                if (i == address.length * 8) return false;
+                node = (bit(address, i) ? one : zero)[node];
+                if (node == 0) return false;
+            }
+            return true;
+        }
+
+        private void grow() {
+            zero = Arrays.copyOf(zero, size * 2);
+            one = Arrays.copyOf(one, size * 2);
+            banned = Arrays.copyOf(banned, size * 2);
+        }
+
+        private static boolean bit(byte[] address, int i) {
+            return (address[i >> 3] & (0x80 >> (i & 7))) != 0;
+        }
+    }
+
+    /** Violations from an address in the current window */
+    private static class Reputation {
+        long windowStart;
+        int violations;
+    }
+
+    private final Log LOG;
+    private final Path file;
+
+    /** Prefixes from the ban file; IPv4 and IPv6 addresses are kept apart */
+    private volatile PrefixTrie bannedV4 = new PrefixTrie(), bannedV6 = new PrefixTrie();
+
+    /** Temporarily banned addresses, and the time (in ms) their bans run out */
+    private final Map<InetAddress, Long> temporary = new ConcurrentHashMap<>();
+
+    private final Map<InetAddress, Reputation> reputations = new ConcurrentHashMap<>();
+
+    private final AtomicLong refused = new AtomicLong();
+
+    private volatile int maxViolations, banMinutes;
+
+    /**
+     * @param file the ban file, which need not exist
+     * @param maxViolations the violations within the window that earn a temporary ban (0 to never)
+     * @param banMinutes the length of temporary bans
+     * @param log the log to report bans and errors in the ban file to
+     */
+    public BanList(Path file, int maxViolations, int banMinutes, Log log) {
+        this.LOG = log;
+        this.file = file;
+        this.setLimits(maxViolations, banMinutes);
+    }
+
+    /**
+     * @param maxViolations the violations within the window that earn a temporary ban (0 to never)
+     * @param banMinutes the length of temporary bans
+     */
+    public void setLimits(int maxViolations, int banMinutes) {
+        this.maxViolations = maxViolations;
+        this.banMinutes = banMinutes;
+    }
+
+    /** @return the ban file */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * (Re)loads the ban file, swapping in its bans once it is read in full. Lines that aren't an
+     * address or range are skipped, and reported.
+     */
+    public void load() {
+        PrefixTrie v4 = new PrefixTrie(), v6 = new PrefixTrie();
+        int count = 0;
+        if (Files.exists(file)) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                LOG.logger.warning("Failed to read ban file " + file + "; keeping current bans");
+                LOG.logException(e);
+                return;
+            }
+            for (int n = 0; n < lines.size(); n++) {
+                String line = lines.get(n);
+                int comment = line.indexOf('#');
+                if (comment >= 0) line = line.substring(0, comment);
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                try {
+                    int slash = line.indexOf('/');
+                    byte[] address = parseAddress(slash < 0 ? line : line.substring(0, slash)).getAddress();
+                    int bits = slash < 0 ? address.length * 8 : Integer.parseInt(line.substring(slash + 1));
+                    if (bits < 0 || bits > address.length * 8) throw new IllegalArgumentException("bad prefix length");
+                    (address.length == 4 ? v4 : v6).add(address, bits);
+                    count++;
+                } catch (IllegalArgumentException | IOException e) {
+                    LOG.logger.warning("Skipping line " + (n + 1) + " of ban file " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        bannedV4 = v4;
+        bannedV6 = v6;
+        LOG.logger.info("Loaded " + count + " bans from " + file);
+    }
+
+    /** @return an address written as an IPv4 or IPv6 literal, without looking up host names */
+    public static InetAddress parseAddress(String text) throws IOException {
+        if (text.isEmpty() || !text.matches("[0-9a-fA-F:.]+")) {
+            throw new IllegalArgumentException("not an address: " + text);
+        }
+        return InetAddress.getByName(text);
+    }
+
+    /**
+     * @param address the address of a new connection
+     * @return true if the connection should be refused; counted if so
+     */
+    public boolean refuse(InetAddress address) {
+        if (!this.isBanned(address)) return false;
+        refused.incrementAndGet();
+        return true;
+    }
+
+    /** @return whether an address is banned, permanently or temporarily */
+    public boolean isBanned(InetAddress address) {
+        if ((address instanceof Inet4Address ? bannedV4 : bannedV6).contains(address.getAddress())) {
+            return true;
+        }
+        Long until = temporary.get(address);
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    /**
+     * Counts a violation from an address, banning it temporarily once it has too many
+     *
+     * @return true if the address was banned because of it
+     */
+    public boolean recordViolation(InetAddress address) {
+        int maxViolations = this.maxViolations;
+        if (maxViolations <= 0) return false;
+        long now = System.currentTimeMillis();
+        Reputation reputation = reputations.computeIfAbsent(address, a -> new Reputation());
+        synchronized (reputation) {
+            if (now - reputation.windowStart > VIOLATION_WINDOW) {
+                reputation.windowStart = now;
+                reputation.violations = 0;
+            }
+            if (++reputation.violations < maxViolations) return false;
+            reputation.violations = 0;
+        }
+        this.ban(address, banMinutes);
+        LOG.logger.warning(
+                "Temporarily banned " + address.getHostAddress() + " for " + banMinutes + " minutes after repeated violations");
+        return true;
+    }
+
+    /** Bans an address for some time, e.g. from the admin console */
+    public void ban(InetAddress address, int minutes) {
+        temporary.put(address, System.currentTimeMillis() + minutes * 60000L);
+    }
+
+    /** @return false if the address had no temporary ban */
+    public boolean unban(InetAddress address) {
+        reputations.remove(address);
+        return temporary.remove(address) != null;
+    }
+
+    /** @return the temporarily banned addresses, and the time (in ms) their bans run out */
+    public Map<InetAddress, Long> getTemporaryBans() {
+        return temporary;
+    }
+
+    /** @return the number of connections refused so far */
+    public long getRefusedCount() {
+        return refused.get();
+    }
+
+    /** Forgets bans that have run out, and violations outside the window */
+    public void purge() {
+        long now = System.currentTimeMillis();
+        temporary.values().removeIf(until -> until <= now);
+        reputations.values().removeIf(reputation -> now - reputation.windowStart > VIOLATION_WINDOW);
+    }
+}
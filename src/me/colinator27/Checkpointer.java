@@ -0,0 +1,225 @@
+package me.colinator27;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Periodically writes each server's sessions (and the rooms they are in) to a checkpoint file, so
+ * that after a crash the sessions can be restored and their clients resume them, instead of every
+ * client logging in again at once. Checkpoints are written on a background thread, to a temporary
+ * file that then replaces the previous checkpoint atomically.
+ *
+ * <p>A checkpoint file starts with {@link #MAGIC} and the format version, followed by the time it
+ * was written (long, ms), the port (int) and the number of sessions (int), then for each session:
+ * UUID (two longs), ID (int), room (int), sprite index (short), image index (short), X and Y
+ * (floats), whether it has a profile key (byte) and the key (two longs, zero if none). The file
+ * ends with a CRC32 of everything before it (int).
+ */
+public class Checkpointer {
+    public static final byte[] MAGIC = {'U', 'T', 'O', 'C', 'K', 'P'};
+    public static final byte VERSION = 1;
+
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 8 + 4 + 4;
+    private static final int RECORD_SIZE = 16 + 4 + 4 + 2 + 2 + 4 + 4 + 1 + 16;
+
+    private final Log LOG;
+    private final Path dir;
+    private final List<GameServer> servers;
+    private final ScheduledExecutorService writer;
+
+    /**
+     * @param dir the directory to keep checkpoints in
+     * @param servers the servers to checkpoint
+     * @param log the log to report to
+     */
+    public Checkpointer(Path dir, List<GameServer> servers, Log log) throws IOException {
+        this.LOG = log;
+        this.dir = dir;
+        this.servers = servers;
+        Files.createDirectories(dir);
+
+        this.writer =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread thread = new Thread(r, "checkpoint-writer");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+    }
+
+    /**
+     * Restores the sessions in each server's checkpoint, if it has one. Call before the servers
+     * start.
+     *
+     * @return the number of sessions restored
+     */
+    public int restore() {
+        long start = System.currentTimeMillis();
+        int restored = 0;
+        for (GameServer server : servers) {
+            Path path = this.path(server);
+            if (!Files.exists(path)) continue;
+            try {
+                restored += this.read(server, ByteBuffer.wrap(Files.readAllBytes(path)));
+            } catch (Exception e) {
+                LOG.logger.warning("Failed to restore checkpoint " + path);
+                LOG.logException(e);
+            }
+        }
+        if (restored > 0) {
+            LOG.logger.info(
+                    "Restored "
+                            + restored
+                            + " sessions from checkpoints in "
+                            + (System.currentTimeMillis() - start)
+                            + " ms");
+        }
+        return restored;
+    }
+
+    /** @param interval the time (in seconds) between checkpoints */
+    public void start(int interval) {
+        writer.scheduleWithFixedDelay(this::checkpoint, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops checkpointing. After a clean shutdown, every session has been released, so the
+     * checkpoints are deleted rather than restored next time.
+     */
+    public void stop() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+            for (GameServer server : servers) Files.deleteIfExists(this.path(server));
+        } catch (IOException | InterruptedException e) {
+            LOG.logException(e);
+        }
+    }
+
+    /** Writes a checkpoint of every running server */
+    private void checkpoint() {
+        for (GameServer server : servers) {
+            if (!server.isAccepting()) continue;
+            try {
+                this.write(server);
+            } catch (Throwable e) {
+                LOG.logger.warning("Failed to write checkpoint for port " + server.getProperties().port);
+                LOG.logException(e);
+            }
+        }
+    }
+
+    private Path path(GameServer server) {
+        return dir.resolve("checkpoint-" + server.getProperties().port + ".bin");
+    }
+
+    private void write(GameServer server) throws IOException {
+        List<GamePlayer> players = server.getSessionManager().getPlayers();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + players.size() * RECORD_SIZE + 4);
+        buffer.put(MAGIC)
+                .put(VERSION)
+                .putLong(System.currentTimeMillis())
+                .putInt(server.getProperties().port)
+                .putInt(0);
+
+        int count = 0;
+        for (GamePlayer player : players) {
+            // Sessions reserved for redirected clients aren't worth keeping
+            if (player.socket == null && player.getRoom() == -1) continue;
+            UUID key = player.profileKey;
+            buffer.putLong(player.uuid.getMostSignificantBits())
+                    .putLong(player.uuid.getLeastSignificantBits())
+                    .putInt(player.id)
+                    .putInt(player.getRoom())
+                    .putShort((short) player.getSpriteIndex())
+                    .putShort((short) player.getImageIndex())
+                    .putFloat(player.getX())
+                    .putFloat(player.getY())
+                    .put((byte) (key == null ? 0 : 1))
+                    .putLong(key == null ? 0 : key.getMostSignificantBits())
+                    .putLong(key == null ? 0 : key.getLeastSignificantBits());
+            count++;
+        }
+        buffer.putInt(HEADER_SIZE - 4, count);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        Path path = this.path(server);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out =
+                FileChannel.open(
+                        temp,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return the number of sessions restored from a checkpoint */
+    private int read(GameServer server, ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_SIZE + 4) throw new IOException("Checkpoint is truncated");
+        CRC32 crc = new CRC32();
+        crc.update(in.array(), 0, in.limit() - 4);
+        if ((int) crc.getValue() != in.getInt(in.limit() - 4)) throw new IOException("Checkpoint is damaged");
+
+        byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || in.get() != VERSION) {
+            throw new IOException("Not a checkpoint of version " + VERSION);
+        }
+        long time = in.getLong();
+        if (in.getInt() != server.getProperties().port) throw new IOException("Checkpoint is for another port");
+        int count = in.getInt();
+        if (in.remaining() != count * RECORD_SIZE + 4) throw new IOException("Checkpoint is truncated");
+
+        SessionManager sessionManager = server.getSessionManager();
+        int restored = 0;
+        for (int i = 0; i < count; i++) {
+            UUID uuid = new UUID(in.getLong(), in.getLong());
+            int id = in.getInt();
+            int room = in.getInt();
+            int spriteIndex = in.getShort();
+            int imageIndex = in.getShort();
+            float x = in.getFloat();
+            float y = in.getFloat();
+            boolean hasKey = in.get() != 0;
+            UUID key = new UUID(in.getLong(), in.getLong());
+
+            GamePlayer player = sessionManager.restorePlayer(uuid, id);
+            if (player == null) continue;
+            player.profileKey = hasKey ? key : null;
+            player.setRoom(server.isValidRoom(room) ? room : -1);
+            player.setVisuals(spriteIndex, imageIndex, x, y);
+            restored++;
+        }
+        LOG.logger.info(
+                "Restored "
+                        + restored
+                        + " of "
+                        + count
+                        + " sessions for port "
+                        + server.getProperties().port
+                        + " from a checkpoint "
+                        + (System.currentTimeMillis() - time) / 1000
+                        + " s old");
+        return restored;
+    }
+}
@@ -0,0 +1,110 @@
+package me.colinator27;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches files in a directory and runs a callback when one of them changes, on a background
+ * thread. Bursts of events (editors often write a file several times) are coalesced into a single
+ * callback, once the file itself has been quiet for a while; changes to other files in the
+ * directory are ignored.
+ */
+public class ConfigWatcher {
+    /** Time (in ms) to wait for a burst of changes to settle before running callbacks */
+    private static final int SETTLE_TIME = 200;
+
+    private final Log LOG;
+    private final WatchService service;
+    private final Map<String, Runnable> callbacks;
+
+    /**
+     * Starts watching a directory
+     *
+     * @param dir the directory containing the watched files
+     * @param log the log to report errors to
+     */
+    public ConfigWatcher(Path dir, Log log) throws IOException {
+        this.LOG = log;
+        this.callbacks = new ConcurrentHashMap<>();
+        this.service = FileSystems.getDefault().newWatchService();
+        dir.register(
+                service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread thread = new Thread(this::run, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs a callback whenever a file in the directory changes
+     *
+     * @param fileName the name of the file
+     * @param callback the callback to run on the watcher thread
+     */
+    public void watch(String fileName, Runnable callback) {
+        callbacks.put(fileName, callback);
+    }
+
+    public void close() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            LOG.logException(e);
+        }
+    }
+
+    private void run() {
+        // Watched files with pending changes, and when each last changed
+        Map<String, Long> pending = new HashMap<>();
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = service.take();
+                } else {
+                    long wait = SETTLE_TIME - (System.currentTimeMillis() - Collections.min(pending.values()));
+                    key = wait > 0 ? service.poll(wait, TimeUnit.MILLISECONDS) : service.poll();
+                }
+                if (key != null) {
+                    long now = System.currentTimeMillis();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (!(event.context() instanceof Path)) continue;
+                        // Other files in the directory (logs, captures) change constantly; they
+                        // must not hold back the ones being watched
+                        String name = ((Path) event.context()).getFileName().toString();
+                        if (callbacks.containsKey(name)) pending.put(name, now);
+                    }
+                    key.reset();
+                }
+
+                long now = System.currentTimeMillis();
+                for (Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<String, Long> entry = it.next();
+                    if (now - entry.getValue() < SETTLE_TIME) continue;
+                    it.remove();
+                    try {
+                        callbacks.get(entry.getKey()).run();
+                    } catch (Throwable e) {
+                        LOG.logException(e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package me.colinator27;
 
 import java.net.Socket;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import me.colinator27.packet.PacketHandler;
 
@@ -13,32 +16,38 @@ public class GamePlayer {
     /** The internal ID of the player */
     public final UUID uuid;
 
-    /** The last time (in ms) of a move packet from this player being processed */
-    public long lastMovePacketTime = -1;
+    /** The stable key the player's profile is kept under, or null if its client sent none */
+    public volatile UUID profileKey;
 
-    /** The last time (in ms) of a change room packet from this player being processed */
-    public long lastRoomChangeTime = -1;
+    /** The time (in ms) the player's connection was lost, or -1 if connected */
+    public volatile long detachedTime = -1;
 
-    /** The current GameMaker room index of the player (if visible) */
-    public int room = -1;
+    /** Whether the player was kicked, and is only waiting to be released */
+    public volatile boolean kicked = false;
 
-    /** The current sprite index of the player */
-    public int spriteIndex = 1088;
+    /** The store holding the player's position, visuals, room and timestamps */
+    private final PlayerStates states;
 
-    /** The current image index of the player */
-    public int imageIndex = 0;
+    /** Recent accepted positions of the player, to check its movement against */
+    public final PositionHistory history = new PositionHistory();
 
-    /** The current X coordinate of the player */
-    public float x = 0f;
+    /** Smooths the timestamps of the player's visual updates */
+    public final MotionSmoother motion = new MotionSmoother();
 
-    /** The current Y coordinate of the player */
-    public float y = 0f;
+    /** The worker owning the player (that of its room), which runs its tasks */
+    volatile RoomWorkers.Worker worker;
 
-    /** The current connection of the player */
-    public Socket socket;
+    /** Tasks queued for the player, run in order by its worker */
+    final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+
+    /** Whether the player's inbox is queued to be run */
+    final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** The current connection of the player (replaced when the session is resumed) */
+    public volatile Socket socket;
     
     /** The {@link PacketHander} associate with this player */
-    public PacketHandler handler;
+    public volatile PacketHandler handler;
 
     /**
      * Initialize a new player object
@@ -47,21 +56,80 @@ public class GamePlayer {
      * @param handler the packet handler for the connection
      * @param uuid the private UUID of the player
      * @param id the public ID of the player
+     * @param states the store to keep the player's state in
      */
-    public GamePlayer(Socket socket, PacketHandler handler, UUID uuid, int id) {
+    public GamePlayer(Socket socket, PacketHandler handler, UUID uuid, int id, PlayerStates states) {
         this.socket = socket;
         this.handler = handler;
         this.uuid = uuid;
         this.id = id;
+        this.states = states;
+        states.reset(id);
+    }
+
+    /**
+     * @return the current GameMaker room index of the player (if visible), or -1. Only changed by
+     *     the worker owning the room.
+     */
+    public int getRoom() {
+        return states.getRoom(id);
+    }
+
+    public void setRoom(int room) {
+        states.setRoom(id, room);
+    }
+
+    /** @return the current sprite index of the player */
+    public int getSpriteIndex() {
+        return states.getSpriteIndex(id);
+    }
+
+    /** @return the current image index of the player */
+    public int getImageIndex() {
+        return states.getImageIndex(id);
+    }
+
+    /** @return the current X coordinate of the player */
+    public float getX() {
+        return states.getX(id);
+    }
+
+    /** @return the current Y coordinate of the player */
+    public float getY() {
+        return states.getY(id);
+    }
+
+    /** Sets the current sprite index, image index and coordinates of the player */
+    public void setVisuals(int spriteIndex, int imageIndex, float x, float y) {
+        states.setVisuals(id, spriteIndex, imageIndex, x, y);
+    }
+
+    /** @return the last time (in ms) of a move packet from this player being processed, or -1 */
+    public long getLastMovePacketTime() {
+        return states.getLastMoveTime(id);
+    }
+
+    public void setLastMovePacketTime(long time) {
+        states.setLastMoveTime(id, time);
+    }
+
+    /** @return the last time (in ms) of a change room packet from this player being processed, or -1 */
+    public long getLastRoomChangeTime() {
+        return states.getLastRoomChangeTime(id);
+    }
+
+    public void setLastRoomChangeTime(long time) {
+        states.setLastRoomChangeTime(id, time);
     }
     
     @Override
     public String toString() {
+    	Socket socket = this.socket;
     	return String.format(
     			"Player %d (%s) @ %s", 
     			id,
     			uuid,
-    			socket.getRemoteSocketAddress()
+    			socket == null ? "(reserved)" : socket.getRemoteSocketAddress()
     	);
     }
 }
@@ -1,53 +1,151 @@
 package me.colinator27;
 
+import me.colinator27.cluster.ClusterNode;
+import me.colinator27.RoomWorkers.Worker;
+import me.colinator27.cluster.RemotePlayer;
 import me.colinator27.packet.*;
-
-import java.net.ServerSocket;
-import java.net.Socket;
+import me.colinator27.profile.Profile;
+import me.colinator27.profile.ProfileStore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
-public class GameServer {
+public class GameServer implements EventLoop.Listener {
 
-    public final ServerProperties properties;
+    /** The current properties; swapped out as a whole when the config is reloaded */
+    private volatile ServerProperties properties;
     public final Log LOG;
 
     private ConnectionManager connectionManager;
     private SessionManager sessionManager;
 
-    private ServerSocket socket;
+    private ServerSocketChannel socket;
 
-    private ExecutorService executor;
-    private Future<?> future;
+    private EventLoopGroup loops;
+    private EventLoop loop;
+    private volatile boolean running, accepting, draining;
 
     private List<CopyOnWriteArrayList<GamePlayer>> rooms;
 
-    public GameServer(ServerProperties properties) {
+    /** Players from other cluster nodes in each room, by public ID */
+    private List<Map<Integer, RemotePlayer>> remoteRooms;
+
+    /** Spectators watching each room */
+    private List<CopyOnWriteArrayList<Spectator>> watchers;
+
+    /** Every spectator on this server */
+    private final Set<Spectator> spectators = ConcurrentHashMap.newKeySet();
+
+    /** The position, visuals and room of each local player, by ID */
+    private final PlayerStates states = new PlayerStates();
+
+    /** The encoded roster of each room, local and remote players alike */
+    private List<RoomSnapshot> snapshots;
+
+    private volatile PacketCapture capture;
+
+    private final PacketTracer tracer = new PacketTracer();
+
+    private volatile LoadBalancer balancer;
+
+    private volatile ProfileStore profiles;
+
+    private volatile BanList bans;
+
+    private volatile long drainDeadline;
+
+    private volatile ClusterNode cluster;
+    private int clusterShard;
+
+    private KickWorker kicks;
+    private RoomWorkers workers;
+
+    /**
+     * @param properties the properties of this server
+     * @param loops the I/O threads and scheduler shared by all servers
+     * @param kicks the worker that releases kicked players, shared by all servers
+     * @param workers the threads owning rooms and the players in them, shared by all servers
+     */
+    public GameServer(ServerProperties properties, EventLoopGroup loops, KickWorker kicks, RoomWorkers workers) {
         this.properties = properties;
+        this.kicks = kicks;
+        this.workers = workers;
 
         this.LOG = new Log("s" + properties.port);
 
-        this.connectionManager = new ConnectionManager(this);
+        this.loops = loops;
+        this.loop = loops.assignPort();
+        this.connectionManager = new ConnectionManager(this, loops);
         this.sessionManager = new SessionManager(this);
         this.rooms = new ArrayList<>();
-        for (int i = 0; i < properties.maxRoomID; i++)
+        this.remoteRooms = new ArrayList<>();
+        this.snapshots = new ArrayList<>();
+        this.watchers = new ArrayList<>();
+        for (int i = 0; i <= properties.maxRoomID; i++) {
             rooms.add(new CopyOnWriteArrayList<>());
+            watchers.add(new CopyOnWriteArrayList<>());
+            remoteRooms.add(new ConcurrentHashMap<>());
+            snapshots.add(new RoomSnapshot(i, states));
+        }
 
         LOG.logger.info("Server opening on port " + properties.port);
-        LOG.instantiateLogger();
         try {
-            this.socket = new ServerSocket(properties.port);
+            this.socket = ServerSocketChannel.open();
+            if (properties.reusePort) {
+                // Lets a new process bind the port while this one drains
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            socket.bind(new InetSocketAddress(properties.port));
+            socket.configureBlocking(false);
         } catch (Exception e) {
             LOG.logException(e);
-            return;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException closeError) {
+                    LOG.logException(closeError);
+                }
+            }
+            this.socket = null;
         }
+    }
 
-        this.executor = Executors.newSingleThreadExecutor();
+    /** @return the current properties of this server */
+    public ServerProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * Swaps in reloaded properties. Values that can only change on restart keep their current
+     * values.
+     *
+     * @param updated the reloaded properties
+     */
+    public void updateProperties(ServerProperties updated) {
+        ServerProperties current = this.properties;
+        if (updated.port != current.port
+                || updated.maxRoomID != current.maxRoomID
+                || updated.reusePort != current.reusePort) {
+            LOG.logger.warning("Changes to port, max-room-id and reuse-port only apply after a restart");
+        }
+        this.properties = updated.keepRestartValues(current);
+        LOG.logger.info("Applied reloaded properties");
     }
 
     public ConnectionManager getConnectionManager() {
@@ -58,6 +156,111 @@ public class GameServer {
         return sessionManager;
     }
 
+    public KickWorker getKickWorker() {
+        return kicks;
+    }
+
+    public RoomWorkers getRoomWorkers() {
+        return workers;
+    }
+
+    public PlayerStates getPlayerStates() {
+        return states;
+    }
+
+    /** @return the tracer recording the packets of particular connections on this server */
+    public PacketTracer getTracer() {
+        return tracer;
+    }
+
+    /** @return the capture that frames on this server are recorded to, or null if not capturing */
+    public PacketCapture getCapture() {
+        return capture;
+    }
+
+    /** @param capture the capture to record frames on this server to, or null to stop capturing */
+    public void setCapture(PacketCapture capture) {
+        this.capture = capture;
+    }
+
+    /** @return the load balancer logins may be redirected by, or null if not balancing */
+    public LoadBalancer getLoadBalancer() {
+        return balancer;
+    }
+
+    /** @param balancer the load balancer logins may be redirected by, or null to not balance */
+    public void setLoadBalancer(LoadBalancer balancer) {
+        this.balancer = balancer;
+    }
+
+    /** @return the store player profiles are kept in, or null if profiles are disabled */
+    public ProfileStore getProfileStore() {
+        return profiles;
+    }
+
+    /** @param profiles the store to keep player profiles in, or null to disable profiles */
+    public void setProfileStore(ProfileStore profiles) {
+        this.profiles = profiles;
+    }
+
+    /** @return the addresses connections are refused from, or null if none are */
+    public BanList getBanList() {
+        return bans;
+    }
+
+    /** @param bans the addresses to refuse connections from, or null to refuse none */
+    public void setBanList(BanList bans) {
+        this.bans = bans;
+    }
+
+    /** Queues a save of where a player is, if it has a profile and is in a room */
+    public void saveProfile(GamePlayer player) {
+        ProfileStore profiles = this.profiles;
+        UUID key = player.profileKey;
+        if (profiles == null || key == null || !this.isValidRoom(player.getRoom())) return;
+        profiles.save(
+                new Profile(
+                        key,
+                        System.currentTimeMillis(),
+                        player.getRoom(),
+                        player.getSpriteIndex(),
+                        player.getImageIndex(),
+                        player.getX(),
+                        player.getY()));
+    }
+
+    /**
+     * Looks up a player's profile, and tells its client where it left off, if anywhere. May
+     * finish after this returns.
+     */
+    public void restoreProfile(GamePlayer player) {
+        ProfileStore profiles = this.profiles;
+        UUID key = player.profileKey;
+        if (profiles == null || key == null) return;
+        profiles.load(
+                key,
+                profile -> {
+                    PacketHandler handler = player.handler;
+                    if (profile == null || handler == null || player.getRoom() != -1) return;
+                    handler.sendPacket(
+                            new PacketBuilder(OutboundPacketType.PROFILE)
+                                    .addInt(profile.room)
+                                    .addShort((short) profile.spriteIndex)
+                                    .addShort((short) profile.imageIndex)
+                                    .addFloat(profile.x)
+                                    .addFloat(profile.y));
+                });
+    }
+
+    /**
+     * @param cluster the cluster node to relay rooms through
+     * @param shard the index this server is matched up by on other nodes
+     */
+    public void setCluster(ClusterNode cluster, int shard) {
+        this.clusterShard = shard;
+        this.cluster = cluster;
+    }
+
     public List<GamePlayer> getPlayersInRoom(int room) {
         if (!this.isValidRoom(room)) {
             return Collections.emptyList();
@@ -65,63 +268,291 @@ public class GameServer {
         return Collections.unmodifiableList(this.getEditableRoom(room));
     }
 
+    /**
+     * Moves a player to another room. Must run as a task of the player (see {@link
+     * RoomWorkers#submit}): it leaves its current room right away, and joins the new one on the
+     * worker owning that room.
+     */
     public void addPlayerToRoom(GamePlayer player, int room) {
-        if (this.isValidRoom(room) && player.room != room) {
+        if (this.isValidRoom(room) && player.getRoom() != room) {
             long now = System.currentTimeMillis();
 
-            if (player.lastRoomChangeTime != -1 && now - player.lastRoomChangeTime < properties.minRoomChange) {
+            if (player.getLastRoomChangeTime() != -1 && now - player.getLastRoomChangeTime() < this.properties.minRoomChange) {
                 sessionManager.kick(player, "You are changing rooms too fast!");
                 return;
             }
-            if (player.room != -1) {
-                this.removePlayerFromRoom(player, player.room);
+            if (player.getRoom() != -1) {
+                this.removePlayerFromRoom(player, player.getRoom());
             }
-            player.lastRoomChangeTime = now;
-            player.room = room;
+            player.setLastRoomChangeTime(now);
+            player.motion.reset();
+            workers.moveTo(player, workers.forRoom(this, room), () -> this.joinRoom(player, room));
+        }
+    }
 
-            List<GamePlayer> list = this.getEditableRoom(room);
-            PacketBuilder packet =
-                    new PacketBuilder(OutboundPacketType.PLAYER_JOIN_ROOM)
-                            .addInt(room)
-                            .addShort((short) 1)
-                            .addInt(player.id)
-                            .addShort((short) player.spriteIndex)
-                            .addShort((short) player.imageIndex)
-                            .addFloat(player.x)
-                            .addFloat(player.y);
-
-            PacketBuilder packet2 =
-                    new PacketBuilder(OutboundPacketType.PLAYER_JOIN_ROOM)
-                            .addInt(room)
-                            .addShort((short) list.size());
-
-            for (GamePlayer other : list) {
-                other.handler.sendPacket(packet);
-
-                packet2.addInt(other.id)
-                        .addShort((short) other.spriteIndex)
-                        .addShort((short) other.imageIndex)
-                        .addFloat(other.x)
-                        .addFloat(other.y);
+    /** Puts a player in a room; runs on the worker owning the room */
+    private void joinRoom(GamePlayer player, int room) {
+        if (sessionManager.getPlayer(player.uuid) != player) return;
+        player.setRoom(room);
+
+        List<GamePlayer> list = this.getEditableRoom(room);
+        RoomSnapshot snapshot = snapshots.get(room);
+        boolean compress = player.handler.hasCapability(Capabilities.COMPRESSION);
+        for (byte[] packet : snapshot.getPackets(compress)) player.handler.sendPacket(packet);
+
+        snapshot.add(player.id);
+        this.broadcast(room, SharedBuffers.share(snapshot.getJoinPacket(player.id)), null);
+        list.add(player);
+
+        // Released while joining; see removePlayersFromRooms
+        if (sessionManager.getPlayer(player.uuid) != player) {
+            this.removePlayerFromRoom(player, room);
+            return;
+        }
+        this.saveProfile(player);
+
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) cluster.publishJoin(clusterShard, room, player);
+    }
+
+    /**
+     * Catches up a resumed player on its room. A player restored from a checkpoint isn't in its
+     * room's list until then, so it is put back in, and the rest of the room told about it.
+     */
+    public void resumeRoom(GamePlayer player) {
+        workers.submit(player, () -> this.catchUpRoom(player));
+    }
+
+    private void catchUpRoom(GamePlayer player) {
+        int room = player.getRoom();
+        if (!this.isValidRoom(room)) return;
+        Worker worker = workers.forRoom(this, room);
+        if (player.worker != worker) {
+            // Restored sessions start out in no room's worker
+            workers.moveTo(player, worker, () -> this.catchUpRoom(player));
+            return;
+        }
+        if (this.getEditableRoom(room).contains(player)) {
+            this.sendRoomTo(player);
+            return;
+        }
+        player.setRoom(-1);
+        player.setLastRoomChangeTime(-1);
+        this.addPlayerToRoom(player, room);
+    }
+
+    /**
+     * Sends a player everyone else in its current room, e.g. to catch up a resumed session on
+     * what it missed while detached
+     */
+    public void sendRoomTo(GamePlayer player) {
+        int room = player.getRoom();
+        if (!this.isValidRoom(room)) return;
+
+        boolean compress = player.handler.hasCapability(Capabilities.COMPRESSION);
+        for (byte[] packet : snapshots.get(room).getPackets(player.id, compress)) player.handler.sendPacket(packet);
+    }
+
+    /** Relays a visual update from a local player to other cluster nodes */
+    public void relayVisuals(GamePlayer player, long timestamp) {
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) cluster.publishVisual(clusterShard, timestamp, player);
+    }
+
+    /** Adds (or updates) a player from another cluster node, telling local players in its room */
+    public void addRemotePlayer(RemotePlayer remote) {
+        if (!this.isValidRoom(remote.room)) return;
+        Worker worker = workers.forRoom(this, remote.room);
+        if (!worker.inWorker()) {
+            worker.execute(() -> this.addRemotePlayer(remote));
+            return;
+        }
+        if (remoteRooms.get(remote.room).put(remote.id, remote) != null) return;
+
+        RoomSnapshot snapshot = snapshots.get(remote.room);
+        snapshot.put(remote.id, remote.spriteIndex, remote.imageIndex, remote.x, remote.y);
+        this.broadcast(remote.room, SharedBuffers.share(snapshot.getJoinPacket(remote.id)), null);
+    }
+
+    /** Removes a player from another cluster node, telling local players in its room */
+    public void removeRemotePlayer(int room, int id) {
+        if (!this.isValidRoom(room)) return;
+        Worker worker = workers.forRoom(this, room);
+        if (!worker.inWorker()) {
+            worker.execute(() -> this.removeRemotePlayer(room, id));
+            return;
+        }
+        if (remoteRooms.get(room).remove(id) == null) return;
+        snapshots.get(room).remove(id);
+
+        this.broadcast(room, PacketSchema.Outbound.PlayerLeaveRoom.shared(room, id), null);
+    }
+
+    /** Forwards a visual update from a player on another cluster node to local players in its room */
+    public void updateRemotePlayer(long timestamp, int room, int id, int spriteIndex, int imageIndex, float x, float y) {
+        if (!this.isValidRoom(room)) return;
+        Worker worker = workers.forRoom(this, room);
+        if (!worker.inWorker()) {
+            worker.execute(() -> this.updateRemotePlayer(timestamp, room, id, spriteIndex, imageIndex, x, y));
+            return;
+        }
+        RemotePlayer remote = remoteRooms.get(room).get(id);
+        if (remote == null) return;
+
+        remote.spriteIndex = spriteIndex;
+        remote.imageIndex = imageIndex;
+        remote.x = x;
+        remote.y = y;
+        snapshots.get(room).update(id, spriteIndex, imageIndex, x, y);
+
+        ByteBuffer packet =
+                PacketSchema.Outbound.PlayerVisualUpdate.shared(
+                        timestamp, room, id, (short) spriteIndex, (short) imageIndex, x, y);
+        this.broadcast(room, packet, null);
+    }
+
+    /** Removes every player from a cluster node whose link was lost */
+    public void removeRemoteNode(int node) {
+        for (int room = 0; room < remoteRooms.size(); room++) {
+            for (RemotePlayer remote : remoteRooms.get(room).values()) {
+                if (remote.node == node) this.removeRemotePlayer(room, remote.id);
             }
-            player.handler.sendPacket(packet2);
-            list.add(player);
         }
     }
 
+    /** Takes a player out of a room; runs on the worker owning the room */
     public void removePlayerFromRoom(GamePlayer player, int room) {
         if (this.isValidRoom(room)) {
             List<GamePlayer> list = this.getEditableRoom(room);
             list.remove(player);
+            snapshots.get(room).remove(player.id);
+
+            this.broadcast(room, PacketSchema.Outbound.PlayerLeaveRoom.shared(room, player.id), null);
+            player.setRoom(-1);
+
+            ClusterNode cluster = this.cluster;
+            if (cluster != null) cluster.publishLeave(clusterShard, room, player);
+        }
+    }
 
-            PacketBuilder packet =
-                    new PacketBuilder(OutboundPacketType.PLAYER_LEAVE_ROOM)
-                            .addInt(room)
-                            .addInt(player.id);
+    /**
+     * Removes released players from their rooms. Each room is updated in one go on the worker
+     * owning it, and the players left in it are sent a leave message for every departure;
+     * departing players aren't sent any.
+     *
+     * <p>The players' sessions must already be removed: a player joining a room meanwhile then
+     * either shows up in the room by the time it is updated, or takes itself back out. Their IDs
+     * are only freed once they are out of their rooms, so no new player takes an ID still in a room.
+     */
+    public void removePlayersFromRooms(Collection<GamePlayer> players) {
+        Map<Integer, List<GamePlayer>> byRoom = new HashMap<>();
+        for (GamePlayer player : players) {
+            int room = player.getRoom();
+            if (this.isValidRoom(room)) {
+                byRoom.computeIfAbsent(room, r -> new ArrayList<>()).add(player);
+            } else {
+                sessionManager.freeID(player);
+            }
+        }
+        for (Map.Entry<Integer, List<GamePlayer>> entry : byRoom.entrySet()) {
+            int room = entry.getKey();
+            workers.forRoom(this, room).execute(() -> this.removeFromRoom(room, entry.getValue()));
+        }
+    }
+
+    /**
+     * Takes released players out of a room, if they are in it, then frees their IDs; runs on the
+     * worker owning the room
+     */
+    private void removeFromRoom(int room, List<GamePlayer> players) {
+        List<GamePlayer> list = this.getEditableRoom(room);
+        List<GamePlayer> leaving = new ArrayList<>(players.size());
+        for (GamePlayer player : players) {
+            if (list.contains(player)) leaving.add(player);
+            if (player.getRoom() == room) player.setRoom(-1);
+        }
+        if (!leaving.isEmpty()) {
+            ClusterNode cluster = this.cluster;
+            list.removeAll(leaving);
+            RoomSnapshot snapshot = snapshots.get(room);
+            for (GamePlayer player : leaving) snapshot.remove(player.id);
+
+            for (GamePlayer player : leaving) {
+                this.broadcast(room, PacketSchema.Outbound.PlayerLeaveRoom.shared(room, player.id), null);
+                if (cluster != null) cluster.publishLeave(clusterShard, room, player);
+            }
+        }
+        for (GamePlayer player : players) sessionManager.freeID(player);
+    }
 
-            for (GamePlayer other : list) other.handler.sendPacket(packet);
-            player.room = -1;
+    /**
+     * Sends a packet to everyone in a room, players and spectators alike; runs on the worker
+     * owning the room
+     *
+     * @param packet the packet, from {@link SharedBuffers}
+     * @param except a player not to send it to, or null
+     */
+    public void broadcast(int room, ByteBuffer packet, GamePlayer except) {
+        for (GamePlayer other : this.getEditableRoom(room)) {
+            if (other != except) other.handler.sendPacket(packet);
         }
+        for (Spectator spectator : watchers.get(room)) spectator.handler.sendPacket(packet);
+    }
+
+    /**
+     * Takes on a spectator, if there is room for one. It doesn't watch anything until {@link
+     * #watchRooms}, so it can be told what it watches first.
+     *
+     * @param handler the connection of the spectator
+     * @param rooms the rooms it asked to watch; invalid ones are left out
+     * @return the spectator, or null if the server is at max-spectators
+     */
+    public synchronized Spectator addSpectator(PacketHandler handler, int[] rooms) {
+        if (spectators.size() >= properties.maxSpectators) return null;
+        Spectator spectator =
+                new Spectator(handler, Arrays.stream(rooms).filter(this::isValidRoom).distinct().toArray());
+        spectators.add(spectator);
+        return spectator;
+    }
+
+    /**
+     * Starts sending a spectator its rooms. Each room sends it its roster and takes it on in one
+     * go on the worker owning it, so the spectator misses nothing sent to the room in between.
+     */
+    public void watchRooms(Spectator spectator) {
+        for (int room : spectator.rooms) {
+            workers.forRoom(this, room).execute(() -> this.watchRoom(spectator, room));
+        }
+    }
+
+    private void watchRoom(Spectator spectator, int room) {
+        if (!spectators.contains(spectator)) return;
+        boolean compress = spectator.handler.hasCapability(Capabilities.COMPRESSION);
+        for (byte[] packet : snapshots.get(room).getPackets(compress)) spectator.handler.sendPacket(packet);
+        watchers.get(room).add(spectator);
+    }
+
+    /** Stops sending a spectator its rooms, once its connection is closed */
+    public void removeSpectator(Spectator spectator) {
+        if (!spectators.remove(spectator)) return;
+        for (int room : spectator.rooms) {
+            workers.forRoom(this, room).execute(() -> watchers.get(room).remove(spectator));
+        }
+    }
+
+    /** @return the number of spectators on this server */
+    public int getSpectatorCount() {
+        return spectators.size();
+    }
+
+    /** @return the number of spectators watching a room */
+    public int getSpectatorCount(int room) {
+        return this.isValidRoom(room) ? watchers.get(room).size() : 0;
+    }
+
+    /** @return the number of players from other cluster nodes in a room */
+    public int getRemotePlayerCount(int room) {
+        return this.isValidRoom(room) ? remoteRooms.get(room).size() : 0;
     }
 
     public boolean isValidRoom(int room) {
@@ -137,17 +568,19 @@ public class GameServer {
      * Validates visuals and movement from a player, supplied its information and its latest packet
      * in case of error
      *
+     * @param time the time (in ms) the packet was sent, or -1 to not check (or record) movement
      * @return true if not kicked, false if kicked
      */
-    public boolean validatePlayerVisuals(GamePlayer player, int spriteIndex, int imageIndex, float x, float y) {
+    public boolean validatePlayerVisuals(GamePlayer player, int spriteIndex, int imageIndex, float x, float y, long time) {
+        ServerProperties properties = this.properties;
         if (properties.verifyVisuals) {
-            if (player.spriteIndex < 1088 || (player.spriteIndex > 1139 && (player.spriteIndex < 2373 || (player.spriteIndex > 2376 && player.spriteIndex != 2517)))
-                || player.imageIndex < 0 || player.imageIndex > 10) {
+            if (player.getSpriteIndex() < 1088 || (player.getSpriteIndex() > 1139 && (player.getSpriteIndex() < 2373 || (player.getSpriteIndex() > 2376 && player.getSpriteIndex() != 2517)))
+                || player.getImageIndex() < 0 || player.getImageIndex() > 10) {
                 LOG.logger.info(player 
                 				+ " kicked for invalid visuals ("
-                                + player.spriteIndex
+                                + player.getSpriteIndex()
                                 + ","
-                                + player.imageIndex
+                                + player.getImageIndex()
                                 + ")");
                 sessionManager.kick(player, "Kicked for invalid visuals (may be a bug)");
                 return false;
@@ -160,10 +593,8 @@ public class GameServer {
         	return false;
         }
 
-        long now = System.currentTimeMillis();
-        if (player.lastMovePacketTime != -1) {
-            float elapsedFrames = ((now - player.lastMovePacketTime) / 1000f) * 30f;
-            if (Math.sqrt(Math.pow(x - player.x, 2) + Math.pow(y - player.y, 2)) > properties.maxSpeed * elapsedFrames) {
+        if (time != -1) {
+            if (!player.history.isReachable(time, x, y, properties.maxSpeed)) {
                 if (properties.kickInvalidMovement) {
                     LOG.logger.info(player + " kicked for invalid movement");
                     sessionManager.kick(player, "Kicked for invalid movement (may be a bug)");
@@ -171,48 +602,153 @@ public class GameServer {
                 } else {
                     player.handler.sendPacket(
                             new PacketBuilder(OutboundPacketType.FORCE_TELEPORT)
-                                    .addFloat(player.x)
-                                    .addFloat(player.y));
+                                    .addFloat(player.getX())
+                                    .addFloat(player.getY()));
                     return true;
                 }
             }
+            player.history.add(time, x, y);
         }
 
-        player.spriteIndex = spriteIndex;
-        player.imageIndex = imageIndex;
-        player.x = x;
-        player.y = y;
+        // The room's snapshot re-encodes the player from the store when next requested
+        player.setVisuals(spriteIndex, imageIndex, x, y);
 
         return true;
     }
 
-    public Future<?> start() {
-        return future = executor.submit(this::run);
+    public void start() {
+        if (socket == null || running) return;
+        running = true;
+        accepting = true;
+        loop.register(socket, SelectionKey.OP_ACCEPT, this);
     }
 
-    public void stop() {
-        if (future != null && !future.isCancelled()) {
-            future.cancel(true);
-            sessionManager
-                    .getPlayers()
-                    .forEach(player -> sessionManager.kick(player, "Server halted"));
+    /**
+     * Stops accepting connections, without touching the ones already open. Load balancing no
+     * longer picks this server as a target afterwards, so when several servers drain together,
+     * they should all stop accepting first, or clients get redirected to a server that is about to
+     * drain too.
+     */
+    public void stopAccepting() {
+        if (!accepting) return;
+        accepting = false;
+        LOG.logger.info("Stopped accepting connections on port " + properties.port);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOG.logException(e);
         }
     }
 
+    /**
+     * Starts draining the server: stops accepting connections, tells every client to reconnect
+     * elsewhere (a REDIRECT to another server in this process that is still accepting, if load
+     * balancing is on, otherwise a kick message), and closes connections as their queues are
+     * written out. Connections are closed by the event loops as they finish writing, so this
+     * returns right away; see {@link #awaitDrained}.
+     *
+     * @param reason the message sent to clients that are not redirected
+     * @param deadline the time (in ms) by which every connection is closed regardless
+     */
+    public void drain(String reason, long deadline) {
+        if (!running || draining) return;
+        draining = true;
+        drainDeadline = deadline;
+        LOG.logger.info("Draining server on port " + properties.port);
+        this.stopAccepting();
+
+        LoadBalancer balancer = this.balancer;
+        List<GamePlayer> redirected = new ArrayList<>(), kicked = new ArrayList<>();
+        for (GamePlayer player : sessionManager.getPlayers()) {
+            PacketHandler handler = player.handler;
+            GameServer target = handler == null || balancer == null ? null : balancer.pickAlternative(this);
+            GamePlayer reserved = target == null ? null : target.getSessionManager().reservePlayer(player.profileKey);
+            if (reserved != null) {
+                handler.sendPacket(
+                        new PacketBuilder(OutboundPacketType.REDIRECT)
+                                .addInt(target.getProperties().port)
+                                .addUUID(reserved.uuid));
+                handler.stop(deadline);
+                redirected.add(player);
+            } else {
+                kicked.add(player);
+            }
+        }
+        ByteBuffer message = SharedBuffers.share(new PacketBuilder(OutboundPacketType.KICK_MESSAGE).addString(reason).build());
+        for (Spectator spectator : spectators) {
+            spectator.handler.sendPacket(message);
+            spectator.handler.stop(deadline);
+        }
+        // Every player's connection is stopped before any is released, so releasing doesn't send
+        // leave messages to anyone
+        sessionManager.kickAll(kicked, reason, deadline);
+        kicks.release(this, redirected);
+        for (PacketHandler handler : connectionManager.getHandlers()) handler.stop(deadline);
+    }
+
+    /**
+     * Waits for a drain to finish, closing whatever connections are left at its deadline
+     *
+     * @return true if every connection was closed before the deadline
+     */
+    public boolean awaitDrained() {
+        if (!running) return true;
+        boolean clean = true;
+        while (connectionManager.getOpenCount() > 0) {
+            if (System.currentTimeMillis() >= drainDeadline) {
+                clean = false;
+                connectionManager.closeAll();
+                break;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        connectionManager.stop();
+        running = false;
+        LOG.logger.info(
+                "Drained server on port "
+                        + properties.port
+                        + (clean ? "" : " (closed remaining connections at the deadline)"));
+        return clean;
+    }
+
+    /** @return whether the server is running (including while it drains) */
     public boolean isRunning() {
-        return future != null && !future.isDone();
+        return running;
+    }
+
+    /** @return whether the server is accepting new connections */
+    public boolean isAccepting() {
+        return accepting;
     }
 
-    private void run() {
-    	Socket socket;
+    @Override
+    public void onReady(SelectionKey key) {
+        SocketChannel channel;
         while (true) {
             try {
-                socket = this.socket.accept();
-                socket.setSoTimeout(4000);
-                connectionManager.handleConnection(socket);
+                channel = socket.accept();
+                if (channel == null) return;
+                BanList bans = this.bans;
+                if (bans != null && bans.refuse(channel.socket().getInetAddress())) {
+                    // Before the connection gets a handler, or takes up a selector slot
+                    channel.close();
+                    continue;
+                }
+                connectionManager.handleConnection(channel, loops.assignConnection(loop));
             } catch (Throwable e) {
                 LOG.logException(e);
+                return;
             }
         }
     }
+
+    @Override
+    public void onError(Throwable e) {
+        LOG.logException(e);
+    }
 }
@@ -0,0 +1,98 @@
+package me.colinator27;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Releases kicked players on a background thread shared by all servers, so kicking (even en masse)
+ * never stalls the thread that did it. Kicks that pile up while a batch is being processed are
+ * released together, and leave messages are sent out one room at a time.
+ */
+public class KickWorker {
+
+    /** Players of one server to release together */
+    private static class Batch {
+        final GameServer server;
+        final Collection<GamePlayer> players;
+
+        Batch(GameServer server, Collection<GamePlayer> players) {
+            this.server = server;
+            this.players = players;
+        }
+    }
+
+    private final Log LOG;
+    private final BlockingQueue<Batch> queue;
+    private final Thread thread;
+
+    /** @param log the log to report errors to */
+    public KickWorker(Log log) {
+        this.LOG = log;
+        this.queue = new LinkedBlockingQueue<>();
+
+        this.thread = new Thread(this::run, "kick-worker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues players to be released from a server
+     *
+     * @param server the server the players are on
+     * @param players the players, whose connections should already be stopped
+     */
+    public void release(GameServer server, Collection<GamePlayer> players) {
+        if (players.isEmpty()) return;
+        queue.add(new Batch(server, players));
+    }
+
+    /** @return the number of batches waiting to be released */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /** Releases whatever is still queued, then stops the worker */
+    public void stop() {
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Batch> batches = new ArrayList<>();
+        while (true) {
+            try {
+                batches.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batches);
+            this.process(batches);
+            batches.clear();
+        }
+        queue.drainTo(batches);
+        this.process(batches);
+    }
+
+    private void process(List<Batch> batches) {
+        Map<GameServer, List<GamePlayer>> byServer = new IdentityHashMap<>();
+        for (Batch batch : batches) {
+            byServer.computeIfAbsent(batch.server, s -> new ArrayList<>()).addAll(batch.players);
+        }
+        for (Map.Entry<GameServer, List<GamePlayer>> entry : byServer.entrySet()) {
+            try {
+                entry.getKey().getSessionManager().releasePlayers(entry.getValue());
+            } catch (Throwable e) {
+                LOG.logException(e);
+            }
+        }
+    }
+}
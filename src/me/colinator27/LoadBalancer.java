@@ -0,0 +1,80 @@
+package me.colinator27;
+
+import java.util.List;
+
+/**
+ * Spreads logins across the servers in this process by load. Instead of taking (or rejecting) a
+ * login itself, a server can reserve a session on a less loaded server and redirect the client
+ * there with a REDIRECT packet; the client then resumes the reserved session on the target port.
+ *
+ * <p>Clients must understand REDIRECT for this to be enabled.
+ */
+public class LoadBalancer {
+
+    /** When logins are redirected to other servers */
+    public enum Mode {
+        /** Never redirect */
+        OFF,
+        /** Redirect only logins a server has no room for */
+        OVERFLOW,
+        /** Redirect any login to whichever server is the least loaded */
+        LEAST_LOADED;
+    }
+
+    private final List<GameServer> servers;
+    private final Mode mode;
+
+    /**
+     * @param servers the servers to balance across
+     * @param mode when logins are redirected
+     */
+    public LoadBalancer(List<GameServer> servers, Mode mode) {
+        this.servers = servers;
+        this.mode = mode;
+    }
+
+    /**
+     * Picks the server a login arriving at a server should go to
+     *
+     * @param origin the server the login arrived at
+     * @return another server to redirect the client to, or null to handle it on the origin
+     */
+    public GameServer pickTarget(GameServer origin) {
+        if (mode == Mode.OFF) return null;
+
+        float originLoad = load(origin);
+        if (mode == Mode.OVERFLOW && originLoad < 1f) return null;
+
+        return leastLoaded(origin, originLoad);
+    }
+
+    /**
+     * Picks another server to send the clients of a draining server to, regardless of mode
+     *
+     * @param origin the draining server
+     * @return the least loaded other server with room, or null if there is none
+     */
+    public GameServer pickAlternative(GameServer origin) {
+        return leastLoaded(origin, Float.MAX_VALUE);
+    }
+
+    /** @return the least loaded server other than origin with a load below maxLoad and room left */
+    private GameServer leastLoaded(GameServer origin, float maxLoad) {
+        GameServer best = null;
+        float bestLoad = maxLoad;
+        for (GameServer server : servers) {
+            if (server == origin || !server.isAccepting()) continue;
+            float load = load(server);
+            if (load < 1f && load < bestLoad) {
+                best = server;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /** @return the fraction of a server's player slots in use */
+    private static float load(GameServer server) {
+        return server.getSessionManager().getPlayerCount() / (float) server.getProperties().maxPlayers;
+    }
+}
@@ -11,7 +11,17 @@ public class Log {
     private Formatter loggerFormat;
     private String type;
 
-    public long lastInstantiation;
+    /** Maximum age (in ms) of a log file before rolling over, or 0 for no limit */
+    static volatile long rotateInterval = 60 * 60 * 1000;
+
+    /** Maximum size (in bytes) of a log file before rolling over, or 0 for no limit */
+    static volatile long maxFileSize = 0;
+
+    /** Whether closed log files are compressed with gzip */
+    static volatile boolean compress = false;
+
+    /** Maximum number of files kept per log, or 0 for no limit */
+    static volatile int maxFiles = 0;
 
     /** @param type the string identifier of the log */
     public Log(String type) {
@@ -19,6 +29,21 @@ public class Log {
         instantiateLogger();
     }
 
+    /**
+     * Sets the rotation and retention settings used by all logs
+     *
+     * @param rotateMinutes maximum age of a log file in minutes, or 0 for no limit
+     * @param maxSizeKB maximum size of a log file in kilobytes, or 0 for no limit
+     * @param compressOld whether closed log files are compressed with gzip
+     * @param keepFiles maximum number of files kept per log, or 0 for no limit
+     */
+    public static void configure(int rotateMinutes, int maxSizeKB, boolean compressOld, int keepFiles) {
+        rotateInterval = rotateMinutes * 60L * 1000L;
+        maxFileSize = maxSizeKB * 1024L;
+        compress = compressOld;
+        maxFiles = keepFiles;
+    }
+
     /**
      * Helper method to log exceptions
      *
@@ -34,7 +59,8 @@ public class Log {
 
     /**
      * Sets up the handlers and Java Logger for logging. If it was set up previously, the old
-     * handlers are flushed and replaced.
+     * handlers are flushed and replaced. The file handler rolls over to new files by itself
+     * according to {@link #configure}.
      */
     public void instantiateLogger() {
         if (logger != null) {
@@ -46,22 +72,12 @@ public class Log {
             }
         }
 
-        lastInstantiation = System.currentTimeMillis();
         logger = Logger.getLogger(type);
 
-        SimpleDateFormat format = new SimpleDateFormat("M-d_HHmmss");
-
         try {
             logger.setUseParentHandlers(false);
             logger.addHandler(new ConsoleHandler());
-            logger.addHandler(
-                    new FileHandler(
-                            Util.getWorkingDirectory()
-                                    + "log_"
-                                    + type
-                                    + "_"
-                                    + format.format(Calendar.getInstance().getTime())
-                                    + ".log"));
+            logger.addHandler(new RotatingFileHandler(type));
             loggerFormat =
                     new Formatter() {
                         @Override
@@ -3,13 +3,22 @@ package me.colinator27;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 
+import me.colinator27.cluster.ClusterNode;
+import me.colinator27.packet.EventLoopGroup;
+import me.colinator27.packet.PacketCapture;
+import me.colinator27.profile.ProfileStore;
+
 public class Main {
     private static final Log LOG = new Log("main");
 
@@ -17,7 +26,37 @@ public class Main {
     private static volatile List<GameServer> servers = new ArrayList<>();
 
     /** The config properties for the server(s) */
-    public static Properties properties;
+    public static volatile Properties properties;
+
+    /** The I/O threads and scheduler shared by all servers */
+    private static EventLoopGroup loops;
+
+    /** The cluster node relaying rooms to other processes, if enabled */
+    private static ClusterNode cluster;
+
+    /** Watches the config file for changes */
+    private static ConfigWatcher watcher;
+
+    /** The threads owning rooms, for all servers */
+    private static RoomWorkers workers;
+
+    /** Releases kicked players for all servers */
+    private static KickWorker kicks;
+
+    /** The store all servers keep player profiles in, if enabled */
+    private static ProfileStore profiles;
+
+    /** Writes checkpoints of all servers' sessions, if enabled */
+    private static Checkpointer checkpointer;
+
+    /** The capture all servers record packets to, if enabled */
+    private static PacketCapture capture;
+
+    /** The addresses all servers refuse connections from */
+    private static BanList bans;
+
+    /** The admin console, if enabled */
+    private static AdminConsole console;
 
     /** @return whether any of the servers are running */
     private static boolean anythingRunning() {
@@ -25,19 +64,38 @@ public class Main {
         return false;
     }
 
-    /** Sets the default config properties */
-    private static void defaultProperties() {
-        properties = new Properties();
+    /** @return the default config properties */
+    private static Properties defaultProperties() {
+        Properties properties = new Properties();
 
-        // Number of servers (on different ports/threads)
+        // Number of servers (on different ports)
         properties.setProperty("num-servers", "1");
 
+        // Time (in ms) given to clients to be told the server is shutting down, before
+        // their connections are closed regardless
+        properties.setProperty("drain-timeout", "5000");
+
+        // Number of I/O threads shared by all servers (0 for one per CPU core)
+        properties.setProperty("io-threads", "0");
+
+        // Number of threads owning rooms and the players in them, shared by all servers
+        // (0 for one per CPU core)
+        properties.setProperty("room-threads", "0");
+
+        // How connections are assigned to I/O threads: "port" keeps each server's
+        // connections on the thread its port is pinned to, "connection" spreads them out
+        properties.setProperty("io-affinity", "connection");
+
         // Ports for servers
         properties.setProperty("port", "1337");
 
         // Max players for servers
         properties.setProperty("max-players", "20");
 
+        // Max spectators (connections watching rooms without playing) for servers
+        // (0 to disallow spectating)
+        properties.setProperty("max-spectators", "0");
+
         // Max room IDs for the servers
         properties.setProperty("max-room-id", "335");
 
@@ -61,23 +119,107 @@ public class Main {
         // Whether to disallow more than one connection at a time from an IP
         // (recommended to be false)
         properties.setProperty("disallow-same-ip", "false");
+
+        // Whether other processes may bind the same port (Linux/BSD only), so that a new
+        // process can take over new connections while an old one drains
+        properties.setProperty("reuse-port", "false");
+
+        // Whether to extrapolate relayed player positions to the next frame boundary, and
+        // timestamp them with it, so clients can interpolate between whole frames
+        properties.setProperty("extrapolate-visuals", "false");
+
+        // Time (in ms) a disconnected player's session is held for the client to resume it,
+        // keeping its ID and room (0 to release sessions immediately)
+        properties.setProperty("resume-grace-period", "0");
+
+        // Minutes before a log file is rolled over (0 for no limit)
+        // (applies to all logs, not per server)
+        properties.setProperty("log-rotate-minutes", "60");
+
+        // Size in kilobytes before a log file is rolled over (0 for no limit)
+        properties.setProperty("log-max-size-kb", "8192");
+
+        // Whether to gzip log files once they are rolled over
+        properties.setProperty("log-compress", "false");
+
+        // Maximum number of files to keep for each log (0 for no limit)
+        properties.setProperty("log-max-files", "0");
+
+        // Whether logins are redirected to other servers in this process by load:
+        // "off", "overflow" (only when a server is full), or "least-loaded"
+        // (clients must support the REDIRECT packet)
+        properties.setProperty("load-balance", "off");
+
+        // Unique, positive ID of this process in a cluster of servers sharing rooms
+        // (0 to disable clustering)
+        properties.setProperty("cluster-node-id", "0");
+
+        // Address to accept links from other cluster nodes on (empty for all interfaces)
+        properties.setProperty("cluster-bind", "");
+
+        // Port to accept links from other cluster nodes on
+        // Links are not encrypted; firewall this port so only other nodes can reach it
+        properties.setProperty("cluster-port", "7337");
+
+        // Secret shared by every cluster node, which links must prove they know
+        // (clustering doesn't start without one)
+        properties.setProperty("cluster-secret", "");
+
+        // Addresses of other cluster nodes to link to, like cluster-peers=10.0.0.2:7337,10.0.0.3:7337
+        // Servers are matched up across nodes by their position in the port list
+        properties.setProperty("cluster-peers", "");
+
+        // File to record every packet on every server to, for replaying with PacketReplay
+        // (empty to disable)
+        properties.setProperty("capture-file", "");
+
+        // Directory to keep player profiles in, so returning players (whose clients send a
+        // profile key on login) are told where they left off (empty to disable)
+        properties.setProperty("profile-dir", "");
+
+        // Number of player profiles to keep cached in memory
+        properties.setProperty("profile-cache-size", "4096");
+
+        // Time (in seconds) between checkpoints of every session, restored on startup after
+        // a crash so clients can resume their sessions (0 to disable)
+        // (restored sessions are held for the resume grace period, or at least 10 seconds)
+        properties.setProperty("checkpoint-interval", "0");
+
+        // Directory to write checkpoints to
+        properties.setProperty("checkpoint-dir", "checkpoints");
+
+        // File of addresses and CIDR ranges (like 10.0.0.0/8) to refuse connections from,
+        // one per line; reloaded whenever it changes
+        properties.setProperty("ban-file", "bans.txt");
+
+        // Violations (packets over the ratelimit, invalid packets) from an address within a
+        // minute that get it banned temporarily (0 to never ban automatically)
+        properties.setProperty("temp-ban-violations", "100");
+
+        // Length (in minutes) of temporary bans
+        properties.setProperty("temp-ban-minutes", "10");
+
+        // Port for the admin console, which only accepts connections from this machine
+        // (0 to disable)
+        properties.setProperty("admin-port", "0");
+        return properties;
     }
 
     /** Loads the properties config file */
     private static void loadProperties() {
         LOG.logger.info("Loading properties...");
-        defaultProperties();
+        Properties loaded = defaultProperties();
 
         File propFile = new File(Util.getWorkingDirectory() + "config.properties");
         if (propFile.exists()) {
             try {
                 FileReader reader = new FileReader(propFile);
-                properties.load(reader);
+                loaded.load(reader);
                 reader.close();
             } catch (Exception e) {
                 LOG.logger.log(Level.WARNING, e.getMessage(), e);
                 LOG.logger.warning("Failed to load properties; using defaults");
-                defaultProperties();
+                loaded = defaultProperties();
             }
         } else {
             LOG.logger.info("Found no existing properties; generating a new one");
@@ -86,7 +228,7 @@ public class Main {
         // Write output file, regardless of if just loaded
         try {
             FileWriter writer = new FileWriter(propFile);
-            properties.store(
+            loaded.store(
                     writer,
                     "Server properties\n"
                             + "For multiple ports/threads, separate values with commas,\n"
@@ -95,23 +237,14 @@ public class Main {
         } catch (Exception e) {
             LOG.logger.log(Level.WARNING, e.getMessage(), e);
         }
+        properties = loaded;
     }
 
-    public static void main(String[] args) {
-        LOG.logger.info("Initializing...");
-
-        loadProperties();
-
-        Runtime.getRuntime()
-                .addShutdownHook(
-                        new Thread(
-                                () -> {
-                                    LOG.logger.info("Shutting down servers");
-                                    for (GameServer s : servers) s.stop();
-                                    LOG.logger.info("Completed shutdown");
-                                }));
-
-        // Add the servers on different ports
+    /**
+     * @param properties the config properties
+     * @return the properties of each server, parsed from the config properties
+     */
+    private static List<ServerProperties> parseServerProperties(Properties properties) {
         int count = Integer.parseInt(properties.getProperty("num-servers"));
         List<Integer> ports =
                 Arrays.stream(properties.getProperty("port").split(","))
@@ -123,6 +256,11 @@ public class Main {
                         .map(Integer::parseInt)
                         .collect(Collectors.toList());
         assert maxPlayers.size() == count;
+        List<Integer> maxSpectators =
+                Arrays.stream(properties.getProperty("max-spectators").split(","))
+                        .map(Integer::parseInt)
+                        .collect(Collectors.toList());
+        assert maxSpectators.size() == count;
         List<Integer> maxRoomIDs =
                 Arrays.stream(properties.getProperty("max-room-id").split(","))
                         .map(Integer::parseInt)
@@ -158,28 +296,260 @@ public class Main {
                         .map(Boolean::parseBoolean)
                         .collect(Collectors.toList());
         assert disallowSameIP.size() == count;
+        List<Integer> resumeGracePeriods =
+                Arrays.stream(properties.getProperty("resume-grace-period").split(","))
+                        .map(Integer::parseInt)
+                        .collect(Collectors.toList());
+        assert resumeGracePeriods.size() == count;
+        List<Boolean> reusePort =
+                Arrays.stream(properties.getProperty("reuse-port").split(","))
+                        .map(Boolean::parseBoolean)
+                        .collect(Collectors.toList());
+        assert reusePort.size() == count;
+        List<Boolean> extrapolateVisuals =
+                Arrays.stream(properties.getProperty("extrapolate-visuals").split(","))
+                        .map(Boolean::parseBoolean)
+                        .collect(Collectors.toList());
+        assert extrapolateVisuals.size() == count;
+        List<ServerProperties> result = new ArrayList<>();
         for (int i = 0; i < count; i++)
-            servers.add(
-                    new GameServer(
-                            new ServerProperties(
-                                    ports.get(i),
-                                    maxPlayers.get(i),
-                                    maxRoomIDs.get(i),
-                                    minRoomChanges.get(i),
-                                    maxSpeed.get(i),
-                                    
-                                    debugMode.get(i),
-                                    verifyVisuals.get(i),
-                                    kickInvalidMovement.get(i),
-                                    disallowSameIP.get(i))));
+            result.add(
+                    new ServerProperties(
+                            ports.get(i),
+                            maxPlayers.get(i),
+                            maxSpectators.get(i),
+                            maxRoomIDs.get(i),
+                            minRoomChanges.get(i),
+                            maxSpeed.get(i),
+                            
+                            debugMode.get(i),
+                            verifyVisuals.get(i),
+                            kickInvalidMovement.get(i),
+                            disallowSameIP.get(i),
+                            resumeGracePeriods.get(i),
+                            reusePort.get(i),
+                            extrapolateVisuals.get(i)));
+        return result;
+    }
+
+    /** Applies the log rotation settings from the config properties */
+    private static void configureLog(Properties properties) {
+        Log.configure(
+                Integer.parseInt(properties.getProperty("log-rotate-minutes")),
+                Integer.parseInt(properties.getProperty("log-max-size-kb")),
+                Boolean.parseBoolean(properties.getProperty("log-compress")),
+                Integer.parseInt(properties.getProperty("log-max-files")));
+    }
+
+    /**
+     * Reloads the properties config file after it changed, and swaps the new properties into the
+     * running servers. Keeps the current properties if the file can't be read or parsed. The
+     * reloaded properties are only published once parsed, so other threads never see a half-loaded
+     * table.
+     */
+    private static void reloadProperties() {
+        LOG.logger.info("Reloading properties...");
+        Properties loaded = defaultProperties();
+        List<ServerProperties> updated;
+        int maxViolations, banMinutes;
+        try {
+            FileReader reader = new FileReader(Util.getWorkingDirectory() + "config.properties");
+            loaded.load(reader);
+            reader.close();
+            updated = parseServerProperties(loaded);
+            maxViolations = Integer.parseInt(loaded.getProperty("temp-ban-violations"));
+            banMinutes = Integer.parseInt(loaded.getProperty("temp-ban-minutes"));
+            configureLog(loaded);
+        } catch (Exception e) {
+            LOG.logger.log(Level.WARNING, e.getMessage(), e);
+            LOG.logger.warning("Failed to reload properties; keeping current ones");
+            return;
+        }
+        properties = loaded;
+
+        if (updated.size() != servers.size()) {
+            LOG.logger.warning("Changes to num-servers only apply after a restart");
+        }
+        for (int i = 0; i < Math.min(updated.size(), servers.size()); i++)
+            servers.get(i).updateProperties(updated.get(i));
+        if (bans != null) bans.setLimits(maxViolations, banMinutes);
+    }
+
+    public static void main(String[] args) {
+        LOG.logger.info("Initializing...");
+
+        loadProperties();
+        configureLog(properties);
+
+        Runtime.getRuntime()
+                .addShutdownHook(
+                        new Thread(
+                                () -> {
+                                    LOG.logger.info("Shutting down servers");
+                                    if (console != null) console.stop();
+                                    if (cluster != null) cluster.stop();
+                                    // Drain all servers at once, so shutdown takes at most
+                                    // one drain timeout. None may accept first, or load balancing
+                                    // redirects players to a server that drains right after
+                                    long deadline =
+                                            System.currentTimeMillis()
+                                                    + Integer.parseInt(properties.getProperty("drain-timeout"));
+                                    for (GameServer s : servers) s.stopAccepting();
+                                    for (GameServer s : servers) s.drain("Server restarting; please reconnect in a moment", deadline);
+                                    for (GameServer s : servers) s.awaitDrained();
+                                    if (kicks != null) kicks.stop();
+                                    if (checkpointer != null) checkpointer.stop();
+                                    if (profiles != null) profiles.close();
+                                    if (capture != null) capture.close();
+                                    if (loops != null) loops.shutdown();
+                                    if (workers != null) workers.shutdown();
+                                    LOG.logger.info("Completed shutdown");
+                                }));
+
+        int threads = Integer.parseInt(properties.getProperty("io-threads"));
+        if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+        try {
+            loops =
+                    new EventLoopGroup(
+                            threads,
+                            EventLoopGroup.Affinity.valueOf(
+                                    properties.getProperty("io-affinity").toUpperCase()),
+                            LOG);
+        } catch (Exception e) {
+            LOG.logger.severe("Failed to start I/O threads");
+            LOG.logException(e);
+            return;
+        }
+        LOG.logger.info("Started " + threads + " I/O threads");
+
+        // Add the servers on different ports
+        List<ServerProperties> serverProperties = parseServerProperties(properties);
+        int count = serverProperties.size();
+        int roomThreads = Integer.parseInt(properties.getProperty("room-threads"));
+        if (roomThreads <= 0) roomThreads = Runtime.getRuntime().availableProcessors();
+        workers = new RoomWorkers(roomThreads, LOG);
+        kicks = new KickWorker(LOG);
+        for (int i = 0; i < count; i++) servers.add(new GameServer(serverProperties.get(i), loops, kicks, workers));
+        String captureFile = properties.getProperty("capture-file");
+        if (!captureFile.isEmpty()) {
+            try {
+                capture = new PacketCapture(Paths.get(Util.getWorkingDirectory()).resolve(captureFile), LOG);
+                servers.forEach(s -> s.setCapture(capture));
+                LOG.logger.info("Capturing packets to " + captureFile);
+            } catch (Exception e) {
+                LOG.logger.warning("Failed to open packet capture file " + captureFile);
+                LOG.logException(e);
+            }
+        }
+        String profileDir = properties.getProperty("profile-dir");
+        if (!profileDir.isEmpty()) {
+            try {
+                profiles =
+                        new ProfileStore(
+                                Paths.get(Util.getWorkingDirectory()).resolve(profileDir),
+                                Integer.parseInt(properties.getProperty("profile-cache-size")),
+                                LOG);
+                servers.forEach(s -> s.setProfileStore(profiles));
+            } catch (Exception e) {
+                LOG.logger.warning("Failed to open player profiles in " + profileDir);
+                LOG.logException(e);
+            }
+        }
+        LoadBalancer.Mode balanceMode =
+                LoadBalancer.Mode.valueOf(
+                        properties.getProperty("load-balance").toUpperCase().replace('-', '_'));
+        if (balanceMode != LoadBalancer.Mode.OFF) {
+            LoadBalancer balancer = new LoadBalancer(servers, balanceMode);
+            servers.forEach(s -> s.setLoadBalancer(balancer));
+        }
+
+        int nodeID = Integer.parseInt(properties.getProperty("cluster-node-id"));
+        if (nodeID > 0 && properties.getProperty("cluster-secret").isEmpty()) {
+            LOG.logger.warning("Not starting cluster node: cluster-secret is not set");
+        } else if (nodeID > 0) {
+            List<InetSocketAddress> peers = new ArrayList<>();
+            for (String peer : properties.getProperty("cluster-peers").split(",")) {
+                if (peer.trim().isEmpty()) continue;
+                String[] parts = peer.trim().split(":");
+                peers.add(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])));
+            }
+            cluster =
+                    new ClusterNode(
+                            nodeID,
+                            properties.getProperty("cluster-bind").trim(),
+                            Integer.parseInt(properties.getProperty("cluster-port")),
+                            properties.getProperty("cluster-secret"),
+                            peers,
+                            LOG);
+            for (int i = 0; i < count; i++) cluster.register(i, servers.get(i));
+            try {
+                cluster.start();
+            } catch (Exception e) {
+                LOG.logger.warning("Failed to start cluster node");
+                LOG.logException(e);
+            }
+        }
+        int checkpointInterval = Integer.parseInt(properties.getProperty("checkpoint-interval"));
+        if (checkpointInterval > 0) {
+            try {
+                checkpointer =
+                        new Checkpointer(
+                                Paths.get(Util.getWorkingDirectory()).resolve(properties.getProperty("checkpoint-dir")),
+                                servers,
+                                LOG);
+                checkpointer.restore();
+                checkpointer.start(checkpointInterval);
+            } catch (Exception e) {
+                LOG.logger.warning("Failed to set up checkpoints");
+                LOG.logException(e);
+            }
+        }
+        bans =
+                new BanList(
+                        Paths.get(Util.getWorkingDirectory()).resolve(properties.getProperty("ban-file")).toAbsolutePath().normalize(),
+                        Integer.parseInt(properties.getProperty("temp-ban-violations")),
+                        Integer.parseInt(properties.getProperty("temp-ban-minutes")),
+                        LOG);
+        bans.load();
+        servers.forEach(s -> s.setBanList(bans));
+        loops.scheduler().scheduleAtFixedRate(bans::purge, 1, 1, TimeUnit.MINUTES);
         servers.forEach(GameServer::start);
+
+        try {
+            watcher = new ConfigWatcher(Paths.get(Util.getWorkingDirectory()).toAbsolutePath(), LOG);
+            watcher.watch("config.properties", Main::reloadProperties);
+        } catch (Exception e) {
+            LOG.logger.warning("Failed to watch properties; changes will need a restart");
+            LOG.logException(e);
+        }
+        try {
+            Path banDir = bans.getFile().getParent();
+            ConfigWatcher banWatcher =
+                    watcher != null && banDir.equals(Paths.get(Util.getWorkingDirectory()).toAbsolutePath().normalize())
+                            ? watcher
+                            : new ConfigWatcher(banDir, LOG);
+            banWatcher.watch(bans.getFile().getFileName().toString(), bans::load);
+        } catch (Exception e) {
+            LOG.logger.warning("Failed to watch the ban file; changes will need a restart");
+            LOG.logException(e);
+        }
+        int adminPort = Integer.parseInt(properties.getProperty("admin-port"));
+        if (adminPort > 0) {
+            try {
+                console = new AdminConsole(servers, loops, workers, kicks, bans, LOG);
+                console.start(adminPort);
+            } catch (Exception e) {
+                LOG.logger.warning("Failed to start the admin console");
+                LOG.logException(e);
+            }
+        }
         // Wait for all of the servers to stop
         while (anythingRunning()) {
             try {
                 Thread.sleep(100);
-                // todo: do asynchronous operations here
             } catch (InterruptedException e) {
             }
         }
+        loops.shutdown();
     }
 }
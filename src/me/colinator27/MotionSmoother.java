@@ -0,0 +1,85 @@
+package me.colinator27;
+
+/**
+ * Turns the jittery arrival times of a player's visual updates into smooth, strictly increasing
+ * timestamps for the updates relayed to other players. The player's send cadence is tracked as a
+ * moving average, and each update is timestamped close to where the cadence predicts it, pulled
+ * only slightly toward when it actually arrived; so other clients can interpolate between updates
+ * with a smaller buffer. The velocity between updates is kept, to extrapolate positions to frame
+ * boundaries if enabled.
+ */
+public class MotionSmoother {
+    /** Length (in ms) of a frame of the game (30 FPS) */
+    public static final double FRAME_TIME = 1000.0 / 30;
+
+    /** How far each timestamp is pulled from the predicted time toward the arrival time */
+    private static final double TIME_GAIN = 0.1;
+
+    /** How fast the estimated interval between updates follows the measured ones */
+    private static final double INTERVAL_GAIN = 0.125;
+
+    /** Gap (in ms) between updates after which the player is assumed to have stopped sending */
+    private static final int RESET_GAP = 500;
+
+    /** The estimated interval (in ms) between updates before any are measured */
+    private static final double INITIAL_INTERVAL = 50;
+
+    private long lastArrival = -1;
+    private double time;
+    private double interval = INITIAL_INTERVAL;
+
+    private float x, y;
+    private float velocityX, velocityY;
+
+    /**
+     * Timestamps an update from the player
+     *
+     * @param arrival the monotonic time (in ms) the update arrived, from {@link Util#monotonicMillis}
+     * @param x the X coordinate of the player in the update
+     * @param y the Y coordinate of the player in the update
+     * @return the smoothed timestamp (in ms) of the update
+     */
+    public synchronized long update(long arrival, float x, float y) {
+        if (lastArrival == -1 || arrival - lastArrival > RESET_GAP) {
+            time = Math.max(arrival, time + 1);
+            velocityX = velocityY = 0;
+        } else {
+            interval += ((arrival - lastArrival) - interval) * INTERVAL_GAIN;
+
+            double predicted = time + interval;
+            double smoothed = predicted + (arrival - predicted) * TIME_GAIN;
+            // Never stray further than an interval from the arrival, and always move forward
+            smoothed = Math.max(arrival - interval, Math.min(arrival + interval, smoothed));
+            smoothed = Math.max(time + 1, smoothed);
+
+            velocityX = (float) ((x - this.x) / (smoothed - time));
+            velocityY = (float) ((y - this.y) / (smoothed - time));
+            time = smoothed;
+        }
+        lastArrival = arrival;
+        this.x = x;
+        this.y = y;
+        return (long) time;
+    }
+
+    /** @return the smoothed timestamp of the latest update, rounded up to a frame boundary */
+    public synchronized long getFrameTime() {
+        return (long) (Math.ceil(time / FRAME_TIME) * FRAME_TIME);
+    }
+
+    /** @return the X coordinate of the player, extrapolated to a time */
+    public synchronized float extrapolateX(long to) {
+        return x + velocityX * (float) (to - time);
+    }
+
+    /** @return the Y coordinate of the player, extrapolated to a time */
+    public synchronized float extrapolateY(long to) {
+        return y + velocityY * (float) (to - time);
+    }
+
+    /** Forgets the player's cadence and velocity, e.g. after it changed rooms or reconnected */
+    public synchronized void reset() {
+        lastArrival = -1;
+        velocityX = velocityY = 0;
+    }
+}
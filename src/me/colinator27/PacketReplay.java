@@ -0,0 +1,280 @@
+package me.colinator27;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.colinator27.packet.Capabilities;
+import me.colinator27.packet.PacketCapture;
+import me.colinator27.packet.PacketReader;
+
+/**
+ * Command line tool for packet captures written by {@link PacketCapture}. Either prints a capture
+ * in human-readable form, or replays its inbound frames against running servers, one TCP
+ * connection per captured connection, at real or accelerated speed.
+ *
+ * <p>Usage: {@code PacketReplay <capture file> [--dump] [--host <host>] [--port-offset <n>]
+ * [--speed <factor>]}. A speed of 0 replays as fast as possible.
+ */
+public class PacketReplay {
+
+    /** A single record of a capture file */
+    private static class Record {
+        long time;
+        int port, connectionID, playerID;
+        byte direction;
+        byte[] bytes;
+    }
+
+    /** Sequentially reads the records of a capture file */
+    private static class CaptureReader implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        CaptureReader(String path) throws IOException {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+
+            byte[] magic = new byte[PacketCapture.MAGIC.length];
+            if (!fill(magic.length + 1)) throw new EOFException("empty capture file");
+            buffer.get(magic);
+            if (!Arrays.equals(magic, PacketCapture.MAGIC)) throw new IOException("not a capture file");
+            byte version = buffer.get();
+            if (version != PacketCapture.VERSION)
+                throw new IOException("unsupported capture version " + version);
+        }
+
+        /** @return the next record, or null at the end of the file */
+        Record next() throws IOException {
+            if (!fill(PacketCapture.RECORD_HEADER_SIZE)) return null;
+            Record r = new Record();
+            r.time = buffer.getLong();
+            r.port = buffer.getShort() & 0xFFFF;
+            r.connectionID = buffer.getInt();
+            r.playerID = buffer.getInt();
+            r.direction = buffer.get();
+            r.bytes = new byte[buffer.getShort() & 0xFFFF];
+            if (!fill(r.bytes.length)) throw new EOFException("truncated record");
+            buffer.get(r.bytes);
+            return r;
+        }
+
+        private boolean fill(int needed) throws IOException {
+            if (buffer.remaining() >= needed) return true;
+            buffer.compact();
+            while (buffer.position() < needed) {
+                if (channel.read(buffer) < 0) {
+                    buffer.flip();
+                    return false;
+                }
+            }
+            buffer.flip();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /** A live connection standing in for one captured connection */
+    private static class Connection {
+        final Socket socket;
+        final OutputStream output;
+
+        /** Whether framing was agreed in the capture, so frames after SESSION need a length */
+        boolean framed;
+
+        /** Raw UUID bytes the server handed out in the capture, and in this replay */
+        byte[] capturedUUID;
+        volatile byte[] liveUUID;
+
+        Connection(String host, int port, AtomicLong received) throws IOException {
+            socket = new Socket(host, port);
+            output = socket.getOutputStream();
+
+            Thread reader =
+                    new Thread(
+                            () -> {
+                                byte[] buffer = new byte[4096];
+                                try {
+                                    InputStream input = socket.getInputStream();
+                                    int amount;
+                                    while ((amount = input.read(buffer)) > 0) {
+                                        received.addAndGet(amount);
+                                        findSession(buffer, amount);
+                                    }
+                                } catch (IOException e) {
+                                    // Connection closed
+                                }
+                            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void findSession(byte[] buffer, int amount) {
+            for (int i = 0; i + 25 <= amount; i++) {
+                if (buffer[i] == 'U' && buffer[i + 1] == 'T' && buffer[i + 2] == 'O' && buffer[i + 4] == 1) {
+                    liveUUID = Arrays.copyOfRange(buffer, i + 9, i + 25);
+                    return;
+                }
+            }
+        }
+
+        /** Swaps the captured session UUID in an inbound frame for the live one */
+        void rewrite(byte[] frame) throws InterruptedException {
+            if (capturedUUID == null || frame.length < 21) return;
+            if (!Arrays.equals(frame, 5, 21, capturedUUID, 0, 16)) return;
+            for (int waited = 0; liveUUID == null && waited < 1000; waited++) Thread.sleep(1);
+            if (liveUUID != null) System.arraycopy(liveUUID, 0, frame, 5, 16);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static void dump(CaptureReader reader) throws IOException {
+        Record r;
+        long start = -1;
+        while ((r = reader.next()) != null) {
+            if (start == -1) start = r.time;
+            String contents;
+            switch (r.direction) {
+                case PacketCapture.INBOUND:
+                    contents = "recv " + new PacketReader(r.bytes, r.bytes.length);
+                    break;
+                case PacketCapture.OUTBOUND:
+                    contents = "send " + Util.stringifyServerPacket(r.bytes, r.bytes.length);
+                    break;
+                default:
+                    contents = "close";
+            }
+            System.out.println(
+                    String.format(
+                            "%8d ms  :%d  conn %d  player %d  %s",
+                            r.time - start, r.port, r.connectionID, r.playerID, contents));
+        }
+    }
+
+    private static void replay(CaptureReader reader, String host, int portOffset, double speed)
+            throws IOException, InterruptedException {
+        Map<Integer, Connection> connections = new HashMap<>();
+        AtomicLong received = new AtomicLong();
+        long sent = 0, frames = 0;
+        long captureStart = -1, replayStart = System.nanoTime();
+
+        Record r;
+        while ((r = reader.next()) != null) {
+            if (captureStart == -1) captureStart = r.time;
+            if (speed > 0) {
+                long due = replayStart + (long) ((r.time - captureStart) * 1_000_000L / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+            }
+
+            Connection conn = connections.get(r.connectionID);
+            switch (r.direction) {
+                case PacketCapture.INBOUND:
+                    if (conn == null) {
+                        try {
+                            conn = new Connection(host, r.port + portOffset, received);
+                        } catch (IOException e) {
+                            System.err.println("Failed to connect to port " + (r.port + portOffset) + ": " + e);
+                            continue;
+                        }
+                        connections.put(r.connectionID, conn);
+                    }
+                    conn.rewrite(r.bytes);
+                    try {
+                        if (conn.framed) {
+                            conn.output.write(new byte[] {(byte) r.bytes.length, (byte) (r.bytes.length >> 8)});
+                        }
+                        conn.output.write(r.bytes);
+                        conn.output.flush();
+                        sent += r.bytes.length;
+                        frames++;
+                    } catch (IOException e) {
+                        connections.remove(r.connectionID).close();
+                    }
+                    break;
+                case PacketCapture.OUTBOUND:
+                    if (conn != null && r.bytes.length >= 25 && r.bytes[4] == 1) {
+                        conn.capturedUUID = Arrays.copyOfRange(r.bytes, 9, 25);
+                        // SESSION ends with the version and capabilities agreed, if echoed
+                        conn.framed =
+                                r.bytes.length >= 30
+                                        && (r.bytes[26] & Capabilities.FRAMING) != 0;
+                    }
+                    break;
+                case PacketCapture.CLOSE:
+                    if (conn != null) connections.remove(r.connectionID).close();
+                    break;
+            }
+        }
+
+        double elapsed = (System.nanoTime() - replayStart) / 1e9;
+        connections.values().forEach(Connection::close);
+        System.out.println(
+                String.format(
+                        "Replayed %d frames (%d bytes) in %.3f s; received %d bytes",
+                        frames, sent, elapsed, received.get()));
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println(
+                    "Usage: PacketReplay <capture file> [--dump] [--host <host>]"
+                            + " [--port-offset <n>] [--speed <factor>]");
+            System.exit(1);
+        }
+
+        boolean dump = false;
+        String host = "127.0.0.1";
+        int portOffset = 0;
+        double speed = 1;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dump":
+                    dump = true;
+                    break;
+                case "--host":
+                    host = args[++i];
+                    break;
+                case "--port-offset":
+                    portOffset = Integer.parseInt(args[++i]);
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        try (CaptureReader reader = new CaptureReader(args[0])) {
+            if (dump) dump(reader);
+            else replay(reader, host, portOffset, speed);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package me.colinator27;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The frequently changed state of a server's players (position, visuals, room and timestamps),
+ * kept in parallel primitive arrays indexed by player ID rather than in the player objects, so
+ * walking a room's players to encode them reads a few contiguous arrays instead of chasing an
+ * object per player. {@link GamePlayer} only holds its ID and reads its state from here.
+ *
+ * <p>The arrays are split into pages of {@link #PAGE_SIZE} players, allocated as IDs are first
+ * used; raising max-players only adds pages, so state already written is never copied. A player's
+ * state is written by the worker owning it (see {@link RoomWorkers}); the room is also read by
+ * other threads, so it is kept in an atomic array.
+ */
+public class PlayerStates {
+    /** The number of players in a page */
+    public static final int PAGE_SIZE = 256;
+
+    /** The state of {@link #PAGE_SIZE} consecutive player IDs */
+    private static class Page {
+        final float[] xs = new float[PAGE_SIZE];
+        final float[] ys = new float[PAGE_SIZE];
+        final short[] sprites = new short[PAGE_SIZE];
+        final short[] images = new short[PAGE_SIZE];
+        final AtomicIntegerArray rooms = new AtomicIntegerArray(PAGE_SIZE);
+        final long[] lastMoves = new long[PAGE_SIZE];
+        final long[] lastRoomChanges = new long[PAGE_SIZE];
+
+        /** Whether the visuals changed since the player was last encoded */
+        final boolean[] dirty = new boolean[PAGE_SIZE];
+    }
+
+    private volatile Page[] pages = new Page[0];
+
+    /**
+     * Resets the state of an ID for a new player, allocating its page if needed
+     *
+     * @param id the ID of the new player
+     */
+    public void reset(int id) {
+        Page page = this.ensurePage(id);
+        int i = id % PAGE_SIZE;
+        page.xs[i] = 0f;
+        page.ys[i] = 0f;
+        page.sprites[i] = 1088;
+        page.images[i] = 0;
+        page.lastMoves[i] = -1;
+        page.lastRoomChanges[i] = -1;
+        page.dirty[i] = true;
+        page.rooms.set(i, -1);
+    }
+
+    private synchronized Page ensurePage(int id) {
+        int index = id / PAGE_SIZE;
+        Page[] pages = this.pages;
+        if (index >= pages.length) {
+            Page[] grown = new Page[index + 1];
+            System.arraycopy(pages, 0, grown, 0, pages.length);
+            this.pages = pages = grown;
+        }
+        if (pages[index] == null) pages[index] = new Page();
+        return pages[index];
+    }
+
+    private Page page(int id) {
+        return pages[id / PAGE_SIZE];
+    }
+
+    public int getRoom(int id) {
+        return this.page(id).rooms.get(id % PAGE_SIZE);
+    }
+
+    public void setRoom(int id, int room) {
+        this.page(id).rooms.set(id % PAGE_SIZE, room);
+    }
+
+    public int getSpriteIndex(int id) {
+        return this.page(id).sprites[id % PAGE_SIZE];
+    }
+
+    public int getImageIndex(int id) {
+        return this.page(id).images[id % PAGE_SIZE];
+    }
+
+    public float getX(int id) {
+        return this.page(id).xs[id % PAGE_SIZE];
+    }
+
+    public float getY(int id) {
+        return this.page(id).ys[id % PAGE_SIZE];
+    }
+
+    /** Sets the visuals of a player, marking it to be encoded again */
+    public void setVisuals(int id, int spriteIndex, int imageIndex, float x, float y) {
+        Page page = this.page(id);
+        int i = id % PAGE_SIZE;
+        page.sprites[i] = (short) spriteIndex;
+        page.images[i] = (short) imageIndex;
+        page.xs[i] = x;
+        page.ys[i] = y;
+        page.dirty[i] = true;
+    }
+
+    public long getLastMoveTime(int id) {
+        return this.page(id).lastMoves[id % PAGE_SIZE];
+    }
+
+    public void setLastMoveTime(int id, long time) {
+        this.page(id).lastMoves[id % PAGE_SIZE] = time;
+    }
+
+    public long getLastRoomChangeTime(int id) {
+        return this.page(id).lastRoomChanges[id % PAGE_SIZE];
+    }
+
+    public void setLastRoomChangeTime(int id, long time) {
+        this.page(id).lastRoomChanges[id % PAGE_SIZE] = time;
+    }
+
+    /** @return whether the player's visuals changed since it was last encoded */
+    public boolean isDirty(int id) {
+        return this.page(id).dirty[id % PAGE_SIZE];
+    }
+
+    /**
+     * Encodes a player as a PLAYER_JOIN_ROOM entry: ID, sprite index, image index, X and Y
+     *
+     * @param id the ID of the player
+     * @param out the buffer to encode to, in little-endian order
+     * @param clean whether to clear the player's dirty mark
+     */
+    public void encode(int id, ByteBuffer out, boolean clean) {
+        Page page = this.page(id);
+        int i = id % PAGE_SIZE;
+        out.putInt(id)
+                .putShort(page.sprites[i])
+                .putShort(page.images[i])
+                .putFloat(page.xs[i])
+                .putFloat(page.ys[i]);
+        if (clean) page.dirty[i] = false;
+    }
+}
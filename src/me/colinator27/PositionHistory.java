@@ -0,0 +1,83 @@
+package me.colinator27;
+
+/**
+ * The last few accepted positions of a player, with the times they were sent, in a fixed-size ring
+ * buffer. Movement is checked against every sample still in the buffer, so a burst of packets that
+ * were delayed in transit (and arrive together) isn't mistaken for the player moving too fast.
+ *
+ * <p>Clients may send their own clock with each update; it is mapped onto the server's clock by the
+ * smallest offset seen between the two (the quickest a packet has arrived), and never ahead of the
+ * arrival time, so a client can't claim more time than has really passed.
+ */
+public class PositionHistory {
+    /** The number of samples kept */
+    public static final int CAPACITY = 16;
+
+    /** Jump (in ms) in the client's clock offset after which it is assumed to have restarted */
+    private static final int RESYNC_THRESHOLD = 10000;
+
+    private final long[] times = new long[CAPACITY];
+    private final float[] xs = new float[CAPACITY];
+    private final float[] ys = new float[CAPACITY];
+    private int head, size;
+
+    private boolean synced;
+    private long clockOffset;
+
+    /**
+     * Works out when an update was sent, on the server's clock
+     *
+     * @param clientTime the client's clock (in ms) when it sent the update
+     * @param arrival the time (in ms) the update arrived
+     * @return the time (in ms) the update was sent, between the latest sample and the arrival
+     */
+    public synchronized long toServerTime(int clientTime, long arrival) {
+        long offset = arrival - clientTime;
+        if (!synced || offset < clockOffset || offset - clockOffset > RESYNC_THRESHOLD) {
+            clockOffset = offset;
+            synced = true;
+        }
+        long time = Math.min(arrival, clientTime + clockOffset);
+        return size == 0 ? time : Math.max(time, this.latestTime());
+    }
+
+    /** Adds an accepted position, replacing the oldest sample if the buffer is full */
+    public synchronized void add(long time, float x, float y) {
+        head = (head + 1) % CAPACITY;
+        times[head] = time;
+        xs[head] = x;
+        ys[head] = y;
+        if (size < CAPACITY) size++;
+    }
+
+    /**
+     * Checks whether a player could have reached a position by some time, from any of the samples
+     *
+     * @param time the time (in ms) the player was at the position
+     * @param x the X coordinate of the position
+     * @param y the Y coordinate of the position
+     * @param maxSpeed the maximum distance a player can move in a frame (at 30 FPS)
+     * @return true if the position is reachable, or if there are no samples to check against
+     */
+    public synchronized boolean isReachable(long time, float x, float y, float maxSpeed) {
+        if (size == 0) return true;
+        for (int i = 0; i < size; i++) {
+            int index = (head - i + CAPACITY) % CAPACITY;
+            long elapsed = time - times[index];
+            float frames = (Math.max(elapsed, 0) / 1000f) * 30f;
+            double distance = Math.sqrt(Math.pow(x - xs[index], 2) + Math.pow(y - ys[index], 2));
+            if (distance <= maxSpeed * frames) return true;
+        }
+        return false;
+    }
+
+    /** @return the time (in ms) of the latest sample */
+    public synchronized long latestTime() {
+        return times[head];
+    }
+
+    /** Forgets every sample, e.g. when the player changes rooms */
+    public synchronized void clear() {
+        size = 0;
+    }
+}
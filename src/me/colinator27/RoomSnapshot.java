@@ -0,0 +1,288 @@
+package me.colinator27;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import me.colinator27.packet.OutboundPacketType;
+import me.colinator27.packet.PacketBuilder;
+import me.colinator27.packet.PacketCompressor;
+
+/**
+ * The encoded roster of a room, as sent to players joining it. The PLAYER_JOIN_ROOM packets are
+ * only rebuilt when members joined or left since they were last requested, so a burst of joins
+ * doesn't re-encode the room for every newcomer.
+ *
+ * <p>Local members are kept as a sorted list of IDs and encoded straight from the server's {@link
+ * PlayerStates} in one pass over its arrays, so moving doesn't touch the snapshot at all; members
+ * from other cluster nodes keep an entry that is encoded once and updated in place as they move.
+ * Moves of either kind don't count as roster changes: the packets already built are patched with
+ * the entries of members that moved instead, copying (and recompressing) only the packets holding
+ * them, as the old ones may still be queued.
+ *
+ * <p>Rosters too large for one packet are split across several, which clients add up.
+ */
+public class RoomSnapshot {
+    /** The size of a member's entry: ID, sprite index, image index, X and Y */
+    public static final int ENTRY_SIZE = 4 + 2 + 2 + 4 + 4;
+
+    /** The size of a PLAYER_JOIN_ROOM packet before its entries: header, room and count */
+    private static final int HEADER_SIZE = PacketBuilder.SEND_OFFSET + 4 + 2;
+
+    /** The most entries sent in one packet, keeping packets within PacketBuilder's buffer size */
+    public static final int MAX_ENTRIES = (4096 - HEADER_SIZE) / ENTRY_SIZE;
+
+    private final int room;
+    private final PlayerStates states;
+
+    /** The IDs of local members, in ascending order */
+    private int[] locals = new int[8];
+    private int localCount;
+
+    /** The entries of remote members, by ID */
+    private final Map<Integer, byte[]> entries;
+
+    /** Bumped whenever a member joins or leaves */
+    private int version, builtVersion = -1;
+    private List<byte[]> packets;
+
+    /**
+     * Where each remote member's entry is in the built packets: the index of the packet in the
+     * upper 16 bits, the offset in it in the lower
+     */
+    private final Map<Integer, Integer> placed;
+
+    /** Remote members that moved since the packets were built */
+    private final Set<Integer> moved;
+
+    /** The packets compressed, and the packets they were compressed from */
+    private List<byte[]> compressed, compressedFrom;
+
+    /**
+     * @param room the GameMaker room index
+     * @param states the state of the server's players
+     */
+    public RoomSnapshot(int room, PlayerStates states) {
+        this.room = room;
+        this.states = states;
+        this.entries = new LinkedHashMap<>();
+        this.placed = new HashMap<>();
+        this.moved = new HashSet<>();
+    }
+
+    /** Adds a local member, whose state is read from the store */
+    public synchronized void add(int id) {
+        int index = Arrays.binarySearch(locals, 0, localCount, id);
+        if (index >= 0) return;
+        index = -index - 1;
+        if (localCount == locals.length) locals = Arrays.copyOf(locals, localCount * 2);
+        System.arraycopy(locals, index, locals, index + 1, localCount - index);
+        locals[index] = id;
+        localCount++;
+        version++;
+    }
+
+    /** Adds a remote member, or replaces its entry if it is already in the room */
+    public synchronized void put(int id, int spriteIndex, int imageIndex, float x, float y) {
+        byte[] entry = entries.get(id);
+        if (entry == null) {
+            entry = new byte[ENTRY_SIZE];
+            entries.put(id, entry);
+        }
+        encode(entry, id, spriteIndex, imageIndex, x, y);
+        version++;
+    }
+
+    /** Updates the entry of a remote member that moved; does nothing if it isn't in the room */
+    public synchronized void update(int id, int spriteIndex, int imageIndex, float x, float y) {
+        byte[] entry = entries.get(id);
+        if (entry == null) return;
+        encode(entry, id, spriteIndex, imageIndex, x, y);
+        if (packets != null) moved.add(id);
+    }
+
+    public synchronized void remove(int id) {
+        int index = Arrays.binarySearch(locals, 0, localCount, id);
+        if (index >= 0) {
+            System.arraycopy(locals, index + 1, locals, index, localCount - index - 1);
+            localCount--;
+            version++;
+        } else if (entries.remove(id) != null) {
+            version++;
+        }
+    }
+
+    /**
+     * @return the PLAYER_JOIN_ROOM packets listing everyone in the room (at least one, even if
+     *     the room is empty). They are shared, so must not be modified.
+     */
+    public synchronized List<byte[]> getPackets() {
+        if (builtVersion != version) {
+            packets = Collections.unmodifiableList(this.build(-1, true));
+            builtVersion = version;
+            moved.clear();
+        } else {
+            List<byte[]> patched = this.patch();
+            if (patched != null) packets = Collections.unmodifiableList(patched);
+        }
+        return packets;
+    }
+
+    /** @return the built packets with the entries of members that moved rewritten, or null if none did */
+    private List<byte[]> patch() {
+        List<byte[]> patched = null;
+        for (int i = 0; i < localCount; i++) {
+            int id = locals[i];
+            if (!states.isDirty(id)) continue;
+            if (patched == null) patched = new ArrayList<>(packets);
+            // Local members come first and in order, so the roster not having changed, the i-th is
+            // where it was built
+            ByteBuffer out = ByteBuffer.wrap(this.copy(patched, i / MAX_ENTRIES)).order(ByteOrder.LITTLE_ENDIAN);
+            out.position(HEADER_SIZE + i % MAX_ENTRIES * ENTRY_SIZE);
+            states.encode(id, out, true);
+        }
+        for (int id : moved) {
+            Integer place = placed.get(id);
+            byte[] entry = entries.get(id);
+            if (place == null || entry == null) continue;
+            if (patched == null) patched = new ArrayList<>(packets);
+            System.arraycopy(entry, 0, this.copy(patched, place >>> 16), place & 0xFFFF, ENTRY_SIZE);
+        }
+        moved.clear();
+        return patched;
+    }
+
+    /** @return the packet at an index of the patched packets, copied from the built one if not yet */
+    private byte[] copy(List<byte[]> patched, int index) {
+        // Copied once per packet; the old one may still be queued
+        if (patched.get(index) == packets.get(index)) patched.set(index, packets.get(index).clone());
+        return patched.get(index);
+    }
+
+    /**
+     * @param compress whether to compress large packets, for clients that accept COMPRESSED packets
+     * @return the PLAYER_JOIN_ROOM packets listing everyone in the room, each compressed once
+     *     per change to it if requested
+     */
+    public synchronized List<byte[]> getPackets(boolean compress) {
+        List<byte[]> packets = this.getPackets();
+        if (!compress) return packets;
+        if (compressedFrom != packets) {
+            List<byte[]> recompressed = new ArrayList<>(packets.size());
+            for (int i = 0; i < packets.size(); i++) {
+                // Patching leaves the packets that held no moved member as they were
+                boolean same = compressedFrom != null && i < compressedFrom.size() && compressedFrom.get(i) == packets.get(i);
+                recompressed.add(same ? compressed.get(i) : PacketCompressor.compress(packets.get(i)));
+            }
+            compressed = Collections.unmodifiableList(recompressed);
+            compressedFrom = packets;
+        }
+        return compressed;
+    }
+
+    /**
+     * @param excludeID the ID of a member to leave out, e.g. the one being sent the roster
+     * @param compress whether to compress large packets
+     * @return the PLAYER_JOIN_ROOM packets listing everyone in the room but one member
+     */
+    public synchronized List<byte[]> getPackets(int excludeID, boolean compress) {
+        if (!this.contains(excludeID)) return this.getPackets(compress);
+        // Leaves the dirty marks alone, as the shared packets aren't rebuilt
+        List<byte[]> packets = this.build(excludeID, false);
+        return compress ? compressAll(packets) : packets;
+    }
+
+    private static List<byte[]> compressAll(List<byte[]> packets) {
+        List<byte[]> compressed = new ArrayList<>(packets.size());
+        for (byte[] packet : packets) compressed.add(PacketCompressor.compress(packet));
+        return compressed;
+    }
+
+    /** @return a PLAYER_JOIN_ROOM packet for a single member, as sent to the rest of the room */
+    public synchronized byte[] getJoinPacket(int id) {
+        if (Arrays.binarySearch(locals, 0, localCount, id) >= 0) {
+            ByteBuffer packet = header(1);
+            states.encode(id, packet, false);
+            return packet.array();
+        }
+        byte[] entry = entries.get(id);
+        if (entry == null) return null;
+        ByteBuffer packet = header(1);
+        packet.put(entry);
+        return packet.array();
+    }
+
+    private boolean contains(int id) {
+        return Arrays.binarySearch(locals, 0, localCount, id) >= 0 || entries.containsKey(id);
+    }
+
+    /**
+     * @param excludeID the ID of a member to leave out, or -1
+     * @param clean whether to clear the dirty marks of the local members encoded, and note where
+     *     remote members are placed; true only when building the shared packets
+     */
+    private List<byte[]> build(int excludeID, boolean clean) {
+        if (clean) placed.clear();
+        int count = localCount + entries.size() - (this.contains(excludeID) ? 1 : 0);
+        List<byte[]> built = new ArrayList<>(count / MAX_ENTRIES + 1);
+
+        ByteBuffer packet = header(Math.min(count, MAX_ENTRIES));
+        int remaining = count;
+        int inPacket = 0;
+        for (int i = 0; i < localCount; i++) {
+            int id = locals[i];
+            if (id == excludeID) continue;
+            if (inPacket == MAX_ENTRIES) {
+                built.add(packet.array());
+                remaining -= inPacket;
+                packet = header(Math.min(remaining, MAX_ENTRIES));
+                inPacket = 0;
+            }
+            states.encode(id, packet, clean);
+            inPacket++;
+        }
+        for (Map.Entry<Integer, byte[]> entry : entries.entrySet()) {
+            if (entry.getKey() == excludeID) continue;
+            if (inPacket == MAX_ENTRIES) {
+                built.add(packet.array());
+                remaining -= inPacket;
+                packet = header(Math.min(remaining, MAX_ENTRIES));
+                inPacket = 0;
+            }
+            if (clean) placed.put(entry.getKey(), built.size() << 16 | packet.position());
+            packet.put(entry.getValue());
+            inPacket++;
+        }
+        built.add(packet.array());
+        return built;
+    }
+
+    /** @return a buffer for a PLAYER_JOIN_ROOM packet of the given number of entries, header filled in */
+    private ByteBuffer header(int count) {
+        byte[] bytes = new byte[HEADER_SIZE + count * ENTRY_SIZE];
+        PacketBuilder.fillHeader(bytes);
+        bytes[4] = OutboundPacketType.PLAYER_JOIN_ROOM.id;
+        ByteBuffer packet = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        packet.position(PacketBuilder.SEND_OFFSET);
+        packet.putInt(room).putShort((short) count);
+        return packet;
+    }
+
+    private static void encode(byte[] entry, int id, int spriteIndex, int imageIndex, float x, float y) {
+        ByteBuffer.wrap(entry)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(id)
+                .putShort((short) spriteIndex)
+                .putShort((short) imageIndex)
+                .putFloat(x)
+                .putFloat(y);
+    }
+}
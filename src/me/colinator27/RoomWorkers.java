@@ -0,0 +1,167 @@
+package me.colinator27;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The threads that own game state, shared by every server in the process. Each room is hashed onto
+ * one worker, and only that worker touches the room and the players in it, so game state has a
+ * single writer and needs no locks.
+ *
+ * <p>Packets from a player are queued in the player's inbox and run in order on the worker of the
+ * room the player is in. When a player changes rooms, it is handed over to the new room's worker
+ * (see {@link #moveTo}), which picks up its inbox from there.
+ */
+public class RoomWorkers {
+    /** The most tasks run from one player's inbox before other work gets a turn */
+    private static final int INBOX_BATCH = 64;
+
+    /** A worker thread, fed through a lock-free queue that any thread may add to */
+    public static class Worker implements Runnable {
+        private final Log LOG;
+        private final Queue<Runnable> tasks;
+        private final Thread thread;
+
+        private volatile boolean running, waiting;
+
+        Worker(String name, Log log) {
+            this.LOG = log;
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        /** @return the number of tasks waiting to run on this worker */
+        public int getQueueSize() {
+            return tasks.size();
+        }
+
+        /** @return whether the calling thread is this worker's thread */
+        public boolean inWorker() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Queues a task to run on this worker's thread
+         *
+         * @param task the task to run
+         */
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (waiting) LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    waiting = true;
+                    if (tasks.isEmpty() && running) LockSupport.park(this);
+                    waiting = false;
+                    continue;
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    LOG.logException(e);
+                }
+            }
+        }
+    }
+
+    private final Worker[] workers;
+
+    /**
+     * Creates and starts the workers
+     *
+     * @param threads the number of worker threads
+     * @param log the log to report task errors to
+     */
+    public RoomWorkers(int threads, Log log) {
+        this.workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) workers[i] = new Worker("room-" + i, log);
+        for (Worker worker : workers) {
+            worker.running = true;
+            worker.thread.start();
+        }
+    }
+
+    /** @return the number of tasks waiting to run on each worker */
+    public int[] getQueueSizes() {
+        int[] sizes = new int[workers.length];
+        for (int i = 0; i < workers.length; i++) sizes[i] = workers[i].getQueueSize();
+        return sizes;
+    }
+
+    /** @return the worker that owns a room of a server */
+    public Worker forRoom(GameServer server, int room) {
+        return workers[Math.floorMod(server.getProperties().port * 31 + room, workers.length)];
+    }
+
+    /**
+     * @return the worker that owns a player in no room; players are spread out by ID so the
+     *     players in no room don't all share one worker
+     */
+    public Worker forLobby(GameServer server, int id) {
+        return workers[Math.floorMod(server.getProperties().port * 31 - 1 - id, workers.length)];
+    }
+
+    /**
+     * Runs a task for a player on the worker owning it, after any tasks queued for it before
+     *
+     * @param player the player
+     * @param task the task to run
+     */
+    public void submit(GamePlayer player, Runnable task) {
+        player.inbox.add(task);
+        if (player.scheduled.compareAndSet(false, true)) player.worker.execute(() -> this.drain(player));
+    }
+
+    /**
+     * Hands a player over to the worker owning another room. Must be called from a task of the
+     * player; tasks queued for the player after it run on the new worker, after the given task.
+     *
+     * @param player the player
+     * @param worker the worker owning the player's new room
+     * @param task the first task to run on the new worker, e.g. joining the room
+     */
+    public void moveTo(GamePlayer player, Worker worker, Runnable task) {
+        player.worker = worker;
+        worker.execute(task);
+    }
+
+    /** Runs tasks from a player's inbox, until it is empty or the player moves to another worker */
+    private void drain(GamePlayer player) {
+        Worker self = player.worker;
+        if (!self.inWorker()) {
+            self.execute(() -> this.drain(player));
+            return;
+        }
+        Runnable task;
+        for (int i = 0; i < INBOX_BATCH && player.worker == self && (task = player.inbox.poll()) != null; i++) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                self.LOG.logException(e);
+            }
+        }
+        if (player.worker != self || !player.inbox.isEmpty()) {
+            // Moved, or more to do; continue at the back of the (new) worker's queue
+            player.worker.execute(() -> this.drain(player));
+            return;
+        }
+        player.scheduled.set(false);
+        if (!player.inbox.isEmpty() && player.scheduled.compareAndSet(false, true)) {
+            player.worker.execute(() -> this.drain(player));
+        }
+    }
+
+    /** Stops the workers once they run out of queued tasks */
+    public void shutdown() {
+        for (Worker worker : workers) {
+            worker.execute(() -> worker.running = false);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package me.colinator27;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.ErrorManager;
+import java.util.logging.LogRecord;
+import java.util.logging.StreamHandler;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Log file handler that rolls over to a new file once the current one is too old or too large.
+ * Closed files are compressed and pruned on a background thread, so logging threads only ever pay
+ * for opening the next file.
+ */
+class RotatingFileHandler extends StreamHandler {
+    /** Shared background thread for compressing and pruning closed log files */
+    private static final ExecutorService ARCHIVER =
+            Executors.newSingleThreadExecutor(
+                    r -> {
+                        Thread t = new Thread(r, "log-archiver");
+                        t.setDaemon(true);
+                        return t;
+                    });
+
+    private final String prefix;
+
+    private File file;
+    private long openedTime;
+    private long written;
+
+    /** @param type the string identifier of the log, used in file names */
+    RotatingFileHandler(String type) throws IOException {
+        this.prefix = "log_" + type + "_";
+        open();
+    }
+
+    @Override
+    public synchronized void publish(LogRecord record) {
+        if (!isLoggable(record)) return;
+        if (shouldRotate()) rotate();
+        super.publish(record);
+        flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        archive(null);
+    }
+
+    private boolean shouldRotate() {
+        long maxAge = Log.rotateInterval;
+        long maxSize = Log.maxFileSize;
+        return (maxAge > 0 && System.currentTimeMillis() - openedTime >= maxAge)
+                || (maxSize > 0 && written >= maxSize);
+    }
+
+    /** Switches to a new file and hands the old one off to the archiver */
+    private void rotate() {
+        File old = file;
+        try {
+            open();
+        } catch (IOException e) {
+            reportError(e.getMessage(), e, ErrorManager.OPEN_FAILURE);
+            return;
+        }
+        archive(old);
+    }
+
+    private void open() throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("M-d_HHmmss");
+        String base =
+                Util.getWorkingDirectory()
+                        + prefix
+                        + format.format(Calendar.getInstance().getTime());
+        File next = new File(base + ".log");
+        for (int i = 1; next.exists() || new File(next.getPath() + ".gz").exists(); i++)
+            next = new File(base + "_" + i + ".log");
+
+        OutputStream out = new FileOutputStream(next);
+        setOutputStream(
+                new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        written++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        written += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        out.close();
+                    }
+                });
+        file = next;
+        openedTime = System.currentTimeMillis();
+        written = 0;
+    }
+
+    /**
+     * Queues a closed log file for compression (if enabled), then prunes old files of this log
+     *
+     * @param closed the file that was just closed, or null to only prune
+     */
+    private void archive(File closed) {
+        boolean compress = Log.compress;
+        int maxFiles = Log.maxFiles;
+        File current = file;
+        ARCHIVER.execute(
+                () -> {
+                    if (closed != null && compress) gzip(closed);
+                    if (maxFiles > 0) prune(maxFiles, current);
+                });
+    }
+
+    private static void gzip(File source) {
+        File target = new File(source.getPath() + ".gz");
+        try (InputStream in = new FileInputStream(source);
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(target))) {
+            byte[] buffer = new byte[8192];
+            int amount;
+            while ((amount = in.read(buffer)) > 0) out.write(buffer, 0, amount);
+        } catch (IOException e) {
+            e.printStackTrace();
+            target.delete();
+            return;
+        }
+        source.delete();
+    }
+
+    /** Deletes the oldest files of this log until at most maxFiles remain */
+    private void prune(int maxFiles, File current) {
+        File dir = current.getAbsoluteFile().getParentFile();
+        File[] files =
+                dir.listFiles(
+                        (d, name) ->
+                                name.startsWith(prefix)
+                                        && (name.endsWith(".log") || name.endsWith(".log.gz")));
+        if (files == null || files.length <= maxFiles) return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length - maxFiles; i++) {
+            if (!files[i].getAbsoluteFile().equals(current.getAbsoluteFile())) files[i].delete();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package me.colinator27;
 public class ServerProperties {
     public final int port;
     public final int maxPlayers;
+    public final int maxSpectators;
     public final int maxRoomID;
     public final int minRoomChange;
     public final float maxSpeed;
@@ -10,19 +11,27 @@ public class ServerProperties {
     public final boolean verifyVisuals;
     public final boolean kickInvalidMovement;
     public final boolean disallowSameIP;
+    public final int resumeGracePeriod;
+    public final boolean reusePort;
+    public final boolean extrapolateVisuals;
 
     public ServerProperties(
             int port,
             int maxPlayers,
+            int maxSpectators,
             int maxRoomID,
             int minRoomChange,
             float maxSpeed,
             boolean debugMode,
             boolean verifyVisuals,
             boolean kickBadMovement,
-            boolean disallowSameIP) {
+            boolean disallowSameIP,
+            int resumeGracePeriod,
+            boolean reusePort,
+            boolean extrapolateVisuals) {
         this.port = port;
         this.maxPlayers = maxPlayers;
+        this.maxSpectators = maxSpectators;
         this.maxRoomID = maxRoomID;
         this.minRoomChange = minRoomChange;
         this.maxSpeed = maxSpeed;
@@ -31,5 +40,30 @@ public class ServerProperties {
         this.verifyVisuals = verifyVisuals;
         this.kickInvalidMovement = kickBadMovement;
         this.disallowSameIP = disallowSameIP;
+        this.resumeGracePeriod = resumeGracePeriod;
+        this.reusePort = reusePort;
+        this.extrapolateVisuals = extrapolateVisuals;
+    }
+
+    /**
+     * @param running the properties a server is running with
+     * @return a copy of these properties with the values that need a restart to change taken from
+     *     the running ones
+     */
+    public ServerProperties keepRestartValues(ServerProperties running) {
+        return new ServerProperties(
+                running.port,
+                maxPlayers,
+                maxSpectators,
+                running.maxRoomID,
+                minRoomChange,
+                maxSpeed,
+                debugMode,
+                verifyVisuals,
+                kickInvalidMovement,
+                disallowSameIP,
+                resumeGracePeriod,
+                running.reusePort,
+                extrapolateVisuals);
     }
 }
@@ -3,14 +3,16 @@ package me.colinator27;
 import me.colinator27.packet.OutboundPacketType;
 import me.colinator27.packet.PacketBuilder;
 import me.colinator27.packet.PacketHandler;
+import me.colinator27.packet.SharedBuffers;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -19,6 +21,9 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class SessionManager {
 
+    /** Time (in ms) a session reserved for a redirected client is held before it expires */
+    public static final int RESERVATION_TIMEOUT = 10000;
+
     private GameServer server;
     private Set<InetAddress> addresses;
     private Map<UUID, GamePlayer> sessions;
@@ -29,7 +34,7 @@ public class SessionManager {
 
     public SessionManager(GameServer server) {
         this.connections = new ConcurrentHashMap<>();
-        this.addresses = new HashSet<>();
+        this.addresses = Collections.newSetFromMap(new ConcurrentHashMap<>());
         this.playerIDs = Collections.newSetFromMap(new ConcurrentHashMap<>());
         this.sessions = new ConcurrentHashMap<>();
         this.server = server;
@@ -41,17 +46,32 @@ public class SessionManager {
         return new ArrayList<>(sessions.values());
     }
 
-    public GamePlayer createPlayer(Socket socket, PacketHandler handler) {
-        if (playerIDs.size() >= server.properties.maxPlayers) {
-            return null;
+    /** @return the number of sessions, including detached and reserved ones */
+    public int getPlayerCount() {
+        return playerIDs.size();
+    }
+
+    /** @return a free player ID, now taken, or -1 if the server is full */
+    private synchronized int allocateID() {
+        if (playerIDs.size() >= server.getProperties().maxPlayers) {
+            return -1;
         }
         int id;
-        for (id = 0; id < server.properties.maxPlayers && playerIDs.contains(id); id++);
+        for (id = 0; id < server.getProperties().maxPlayers && playerIDs.contains(id); id++);
 
         playerIDs.add(id);
+        return id;
+    }
+
+    public GamePlayer createPlayer(Socket socket, PacketHandler handler) {
+        int id = this.allocateID();
+        if (id == -1) {
+            return null;
+        }
 
         UUID uuid = UUID.randomUUID();
-        GamePlayer player = new GamePlayer(socket, handler, uuid, id);
+        GamePlayer player = new GamePlayer(socket, handler, uuid, id, server.getPlayerStates());
+        player.worker = server.getRoomWorkers().forLobby(server, id);
 
         connections.put(socket.getRemoteSocketAddress(), uuid);
         addresses.add(socket.getInetAddress());
@@ -60,6 +80,146 @@ public class SessionManager {
         return player;
     }
 
+    /**
+     * Reserves a session for a client being redirected here from another server. The session
+     * starts out detached, and is taken over when the client resumes it with its UUID.
+     *
+     * @param profileKey the profile key of the client, or null if it has none
+     * @return the reserved player, or null if the server is full
+     */
+    public GamePlayer reservePlayer(UUID profileKey) {
+        int id = this.allocateID();
+        if (id == -1) {
+            return null;
+        }
+
+        GamePlayer player = new GamePlayer(null, null, UUID.randomUUID(), id, server.getPlayerStates());
+        player.worker = server.getRoomWorkers().forLobby(server, id);
+        player.profileKey = profileKey;
+        player.detachedTime = System.currentTimeMillis();
+        sessions.put(player.uuid, player);
+        return player;
+    }
+
+    /**
+     * Restores a session from a checkpoint. The session starts out detached, like a reserved one,
+     * and is taken over when the client resumes it with its UUID.
+     *
+     * @param uuid the private UUID of the session
+     * @param id the public ID of the player
+     * @return the restored player, or null if the ID is taken or out of range
+     */
+    public synchronized GamePlayer restorePlayer(UUID uuid, int id) {
+        if (id < 0 || id >= server.getProperties().maxPlayers || !playerIDs.add(id)) {
+            return null;
+        }
+        GamePlayer player = new GamePlayer(null, null, uuid, id, server.getPlayerStates());
+        player.worker = server.getRoomWorkers().forLobby(server, id);
+        player.detachedTime = System.currentTimeMillis();
+        sessions.put(uuid, player);
+        return player;
+    }
+
+    /**
+     * Detaches the player from a lost connection, holding its session (ID, room and all) for the
+     * resume grace period. Releases the player outright if resuming is disabled.
+     *
+     * @param address the address of the lost connection
+     */
+    public void detachPlayer(SocketAddress address) {
+        if (server.getProperties().resumeGracePeriod <= 0) {
+            this.releasePlayer(address);
+            return;
+        }
+        UUID uuid = connections.remove(address);
+        if (uuid == null) return;
+        GamePlayer player = sessions.get(uuid);
+        if (player == null || player.kicked) return;
+
+        synchronized (player) {
+            player.detachedTime = System.currentTimeMillis();
+        }
+        LOG.logger.info(
+                "Detached player "
+                        + player.id
+                        + " ("
+                        + uuid
+                        + "); holding session for "
+                        + server.getProperties().resumeGracePeriod
+                        + " ms");
+    }
+
+    /**
+     * Reattaches a session to a new connection, taking it over from the old connection if that
+     * one is still open
+     *
+     * @param uuid the private UUID of the session, presented by the client
+     * @param socket the new connection
+     * @param handler the packet handler for the new connection
+     * @return the resumed player, or null if there is no such session
+     */
+    public GamePlayer resumePlayer(UUID uuid, Socket socket, PacketHandler handler) {
+        GamePlayer player = sessions.get(uuid);
+        if (player == null) return null;
+
+        PacketHandler oldHandler;
+        synchronized (player) {
+            if (!sessions.containsKey(uuid) || player.kicked) return null;
+
+            oldHandler = player.handler;
+            connections.values().remove(uuid);
+            if (player.socket != null) addresses.remove(player.socket.getInetAddress());
+
+            player.socket = socket;
+            player.handler = handler;
+            player.setLastMovePacketTime(-1);
+            player.history.clear();
+            player.detachedTime = -1;
+            player.motion.reset();
+
+            connections.put(socket.getRemoteSocketAddress(), uuid);
+            addresses.add(socket.getInetAddress());
+        }
+        if (oldHandler != null && oldHandler != handler) oldHandler.stop();
+
+        LOG.logger.info("Resumed player " + player.id + " (" + uuid + ") at " + socket);
+        return player;
+    }
+
+    /** Releases detached players whose resume grace period has run out */
+    public void releaseExpired() {
+        long now = System.currentTimeMillis();
+        for (GamePlayer player : sessions.values()) {
+            // Reserved and restored sessions have no connection yet
+            int timeout =
+                    player.socket == null
+                            ? Math.max(RESERVATION_TIMEOUT, server.getProperties().resumeGracePeriod)
+                            : server.getProperties().resumeGracePeriod;
+            synchronized (player) {
+                if (player.detachedTime != -1 && now - player.detachedTime > timeout) {
+                    this.releasePlayer(player);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases detached players last seen from an address, so the address can log in again
+     *
+     * @param address the address of the reconnecting client
+     */
+    public void releaseDetached(InetAddress address) {
+        for (GamePlayer player : sessions.values()) {
+            synchronized (player) {
+                if (player.detachedTime != -1
+                        && player.socket != null
+                        && player.socket.getInetAddress().equals(address)) {
+                    this.releasePlayer(player);
+                }
+            }
+        }
+    }
+
     public void releasePlayer(SocketAddress address) {
         this.releasePlayer(connections.get(address));
     }
@@ -73,13 +233,48 @@ public class SessionManager {
         GamePlayer player = sessions.get(uuid);
         if (player == null) return;
 
-        LOG.logger.info("Removing player " + player.id + " (" + uuid + ")");
-        connections.values().remove(uuid);
-        playerIDs.remove(player.id);
-        sessions.remove(uuid);
+        if (this.forget(player)) {
+            server.removePlayersFromRooms(Collections.singletonList(player));
+        }
+    }
+
+    /**
+     * Releases several players at once, telling the rest of each room about all of them in one
+     * pass. Departing players aren't told about each other.
+     */
+    public void releasePlayers(Collection<GamePlayer> players) {
+        List<GamePlayer> released = new ArrayList<>(players.size());
+        for (GamePlayer player : players) {
+            if (this.forget(player)) released.add(player);
+        }
+        server.removePlayersFromRooms(released);
+    }
+
+    /**
+     * Frees a released player's ID once the tasks already queued for it have run, so a new player
+     * given the ID can't have its state (kept by ID, see {@link PlayerStates}) overwritten by them.
+     * Called by {@link GameServer#removePlayersFromRooms} once the player is out of its room.
+     */
+    void freeID(GamePlayer player) {
+        server.getRoomWorkers().submit(player, () -> playerIDs.remove(player.id));
+    }
+
+    /**
+     * Removes a player's session, leaving its room untouched
+     *
+     * @return false if the session was already removed (e.g. by another thread)
+     */
+    private boolean forget(GamePlayer player) {
+        if (!sessions.remove(player.uuid, player)) return false;
 
-        server.removePlayerFromRoom(player, player.room);
-        addresses.remove(player.socket.getInetAddress());
+        LOG.logger.info("Removing player " + player.id + " (" + player.uuid + ")");
+        server.saveProfile(player);
+        Socket socket = player.socket;
+        if (socket == null || !connections.remove(socket.getRemoteSocketAddress(), player.uuid)) {
+            connections.values().remove(player.uuid);
+        }
+        if (socket != null) addresses.remove(socket.getInetAddress());
+        return true;
     }
 
     public GamePlayer getPlayer(SocketAddress address) {
@@ -92,21 +287,63 @@ public class SessionManager {
         return sessions.get(uuid);
     }
 
+    /** @return the player with a public ID, or null if there is none */
+    public GamePlayer getPlayer(int id) {
+        for (GamePlayer player : sessions.values()) {
+            if (player.id == id) return player;
+        }
+        return null;
+    }
+
     public boolean playerFromIPExists(InetAddress address) {
     	return addresses.contains(address);
     }
 
+    /**
+     * Tells a player why it is being kicked and stops its connection. The player is released
+     * (and its room told it left) asynchronously by the {@link KickWorker}.
+     */
     public void kick(GamePlayer player, String reason) {
-        this.releasePlayer(player);
-        
-        if(player.handler != null) {
-        	player.handler.sendPacket(new PacketBuilder(OutboundPacketType.KICK_MESSAGE).addString(reason));
-        	player.handler.stop();
+        if (player == null || player.kicked) return;
+        player.kicked = true;
+
+        PacketHandler handler = player.handler;
+        if(handler != null) {
+        	handler.sendPacket(new PacketBuilder(OutboundPacketType.KICK_MESSAGE).addString(reason));
+        	handler.stop();
         }
-        try {
-        	player.socket.close();
+        else if(player.socket != null) {
+        	try {
+        		player.socket.close();
+        	}
+        	catch(IOException e) {}
+        }
+        server.getKickWorker().release(server, Collections.singletonList(player));
+    }
+
+    /**
+     * Kicks several players at once, sharing one kick message and releasing them in a single
+     * batch
+     *
+     * @param players the players to kick
+     * @param reason the message sent to each of them
+     * @param deadline the time (in ms) by which their connections are closed regardless; 0 closes
+     *     them once what can be written immediately is
+     */
+    public void kickAll(Collection<GamePlayer> players, String reason, long deadline) {
+        ByteBuffer message = SharedBuffers.share(new PacketBuilder(OutboundPacketType.KICK_MESSAGE).addString(reason).build());
+        List<GamePlayer> kicked = new ArrayList<>(players.size());
+        for (GamePlayer player : players) {
+            if (player.kicked) continue;
+            player.kicked = true;
+            PacketHandler handler = player.handler;
+            if (handler != null) {
+                handler.sendPacket(message);
+                handler.stop(deadline);
+            }
+            kicked.add(player);
         }
-        catch(IOException e) {}
+        server.getKickWorker().release(server, kicked);
     }
 
     public void kick(UUID uuid, String reason) {
@@ -0,0 +1,24 @@
+package me.colinator27;
+
+import me.colinator27.packet.PacketHandler;
+
+/**
+ * A connection watching rooms without playing in them. It has no session, ID or state of its own;
+ * each room it watches sends it the same shared packets it sends its players.
+ */
+public class Spectator {
+    /** The connection of the spectator */
+    public final PacketHandler handler;
+
+    /** The rooms the spectator watches, each valid and listed once */
+    public final int[] rooms;
+
+    /**
+     * @param handler the connection of the spectator
+     * @param rooms the rooms the spectator watches
+     */
+    Spectator(PacketHandler handler, int[] rooms) {
+        this.handler = handler;
+        this.rooms = rooms;
+    }
+}
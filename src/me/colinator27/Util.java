@@ -3,17 +3,23 @@ package me.colinator27;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
 
 import me.colinator27.packet.OutboundPacketType;
+import me.colinator27.packet.PacketError;
+import me.colinator27.packet.PacketSchema;
 
 public class Util {
+    private static final long CLOCK_BASE_MILLIS = System.currentTimeMillis();
+    private static final long CLOCK_BASE_NANOS = System.nanoTime();
+
+    /**
+     * @return the current time (in ms since the epoch), as measured by a monotonic clock that
+     *     never jumps when the system clock is adjusted
+     */
+    public static long monotonicMillis() {
+        return CLOCK_BASE_MILLIS + (System.nanoTime() - CLOCK_BASE_NANOS) / 1000000;
+    }
+
     /**
      * @return the parent directory of the JAR file as a String (assuming the Main class is in the
      *     JAR)
@@ -46,79 +52,19 @@ public class Util {
     /**
      * Converts a server packet (from a PacketBuilder most likely) into a human-readable string
      * 
-     * This method assumes the packet is valid
+     * Packets that aren't valid are returned as raw bytes
      * 
      * @param bytes raw packet bytes
      * @param len length of packet
      * @return the packet in string form
      */
     public static String stringifyServerPacket(byte[] bytes, int len) {
-    	try {
-        	StringBuilder sb = new StringBuilder();
-        	Map<String, Object> args = new LinkedHashMap<>();
-        	ByteBuffer reader = ByteBuffer.wrap(bytes, 4, len-4);
-        	reader.order(ByteOrder.LITTLE_ENDIAN);
-        	
-        	OutboundPacketType type = OutboundPacketType.fromValue(reader.get());
-        	
-        	sb.append(type);
-        	sb.append(" ");
-        	
-        	switch(type) {
-    		case FORCE_TELEPORT: {
-    			args.put("coords", new Pair<Float, Float>(reader.getFloat(), reader.getFloat()));
-    		} break;
-    		case HEARTBEAT:
-    			break;
-    		case KICK_MESSAGE: {
-    			args.put("message", new String(Arrays.copyOfRange(bytes, 5, len-1), Charset.forName("utf-8")));
-    		} break;
-    		case PLAYER_JOIN_ROOM: {
-    			int room = reader.getInt();
-    			int numPlayers = reader.getShort();
-    			
-    			args.put("room", room);
-    			args.put("numPlayers", numPlayers);
-    			
-    			List<Object> players = new ArrayList<>();
-    			Map<String, Object> playerArgs;
-    			while(numPlayers-- > 0) {
-    				playerArgs = new LinkedHashMap<>();
-    				playerArgs.put("id", reader.getInt());
-    				playerArgs.put("sprite", reader.getShort());
-    				playerArgs.put("frame", reader.getShort());
-    				playerArgs.put("coords", new Pair<Float, Float>(reader.getFloat(), reader.getFloat()));
-    				players.add(playerArgs.entrySet());
-    			}
-    			args.put("players", players);
-    		} break;
-    		case PLAYER_LEAVE_ROOM: {
-    			args.put("room", reader.getInt());
-    			args.put("id", reader.getInt());
-    		} break;
-    		case PLAYER_VISUAL_UPDATE: {
-    			args.put("timestamp", reader.getLong());
-    			args.put("room", reader.getInt());
-    			args.put("id", reader.getInt());
-    			args.put("sprite", reader.getShort());
-    			args.put("frame", reader.getShort());
-    			args.put("coords", new Pair<Float, Float>(reader.getFloat(), reader.getFloat()));
-    		} break;
-    		case RATELIMIT_WARNING:
-    			break;
-    		case SESSION: {
-    			args.put("id", reader.getInt());
-    			args.put("uuid", new UUID(reader.getLong(), reader.getLong()));
-    		} break;
-    		default:
-    			args.put("contents", stringify(Arrays.copyOfRange(bytes, 5, len-5), len-5));
-        	}
-        	sb.append(args.entrySet());
-        	return sb.toString();
-    	}
-    	catch(Exception e) {
-    		e.printStackTrace();
-    		return stringify(bytes, len);
-    	}
+    	OutboundPacketType type = len < 5 ? null : OutboundPacketType.find(bytes[4]);
+    	if (type == null) return stringify(bytes, len);
+    	ByteBuffer reader = ByteBuffer.wrap(bytes, 0, len).slice();
+    	reader.order(ByteOrder.LITTLE_ENDIAN);
+    	PacketError error = PacketSchema.check(type, reader);
+    	if (error != PacketError.NONE) return error + " " + stringify(bytes, len);
+    	return PacketSchema.describe(type, reader);
     }
 }
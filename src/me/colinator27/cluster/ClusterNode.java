@@ -0,0 +1,386 @@
+package me.colinator27.cluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import me.colinator27.GamePlayer;
+import me.colinator27.GameServer;
+import me.colinator27.Log;
+
+/**
+ * Relays room membership and visual updates between several server processes, so that players
+ * connected to different nodes see each other. Servers are matched up across nodes by their shard
+ * index (their position in the port list), so nodes on one host can listen on different ports.
+ *
+ * <p>Players from other nodes are given public IDs of {@code (node << 16) | id}, so node IDs must
+ * be unique and positive, and servers must have fewer than 65536 players.
+ *
+ * <p>Links are authenticated with a secret shared by every node: each end sends a random challenge,
+ * and the other proves it knows the secret in its hello with an HMAC of that challenge and its node
+ * ID. Nothing is accepted over a link before its hello checks out. Links are not encrypted, so the
+ * cluster port should still only be reachable by other nodes.
+ */
+public class ClusterNode {
+    static final byte HELLO = 0;
+    static final byte JOIN = 1;
+    static final byte LEAVE = 2;
+    static final byte VISUAL = 3;
+    static final byte CHALLENGE = 4;
+
+    /** Size (in bytes) of the random challenge each end of a link sends */
+    static final int CHALLENGE_SIZE = 16;
+
+    /** Size (in bytes) of the proof of the secret in a hello (an HMAC-SHA256) */
+    private static final int PROOF_SIZE = 32;
+
+    private static final String PROOF_ALGORITHM = "HmacSHA256";
+
+    /** Time (in ms) between attempts to reconnect to a peer */
+    private static final int RECONNECT_DELAY = 2000;
+
+    final int nodeID;
+    final Log LOG;
+
+    private final String bind;
+    private final int port;
+    private final SecretKeySpec secret;
+    private final SecureRandom random;
+    private final List<InetSocketAddress> peers;
+
+    private final Map<Integer, GameServer> servers;
+    private final Map<Integer, PeerLink> links;
+
+    private volatile boolean running;
+    private ServerSocket listener;
+
+    /**
+     * @param nodeID the unique, positive ID of this node
+     * @param bind the address to accept links from other nodes on, or empty for all interfaces
+     * @param port the port to accept links from other nodes on
+     * @param secret the secret shared by every node in the cluster
+     * @param peers the addresses of other nodes to connect to
+     * @param log the log to report to
+     */
+    public ClusterNode(int nodeID, String bind, int port, String secret, List<InetSocketAddress> peers, Log log) {
+        if (secret.isEmpty()) throw new IllegalArgumentException("No cluster secret");
+        this.nodeID = nodeID;
+        this.bind = bind;
+        this.port = port;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), PROOF_ALGORITHM);
+        this.random = new SecureRandom();
+        this.peers = peers;
+        this.LOG = log;
+        this.servers = new ConcurrentHashMap<>();
+        this.links = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Converts the ID of a player on some node to its ID across the cluster
+     *
+     * @param node the ID of the node the player is connected to
+     * @param id the ID of the player on that node
+     */
+    public static int globalID(int node, int id) {
+        return (node << 16) | id;
+    }
+
+    /**
+     * Adds a server to the cluster
+     *
+     * @param shard the index the server is matched up by on other nodes
+     * @param server the server
+     */
+    public void register(int shard, GameServer server) {
+        servers.put(shard, server);
+        server.setCluster(this, shard);
+    }
+
+    /** Starts accepting links from, and connecting to, other nodes */
+    public void start() throws IOException {
+        running = true;
+        listener = new ServerSocket(port, 50, bind.isEmpty() ? null : InetAddress.getByName(bind));
+
+        Thread acceptor = new Thread(this::acceptLoop, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (InetSocketAddress peer : peers) {
+            Thread dialer = new Thread(() -> dialLoop(peer), "cluster-dial-" + peer);
+            dialer.setDaemon(true);
+            dialer.start();
+        }
+        LOG.logger.info("Cluster node " + nodeID + " listening on " + listener.getLocalSocketAddress());
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException e) {
+            LOG.logException(e);
+        }
+        links.values().forEach(PeerLink::close);
+    }
+
+    /** @return the number of nodes currently linked to this one */
+    public int getLinkedNodes() {
+        return links.size();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                new PeerLink(this, listener.accept(), false).start();
+            } catch (IOException e) {
+                if (running) LOG.logException(e);
+            }
+        }
+    }
+
+    private void dialLoop(InetSocketAddress peer) {
+        int knownNode = -1;
+        while (running) {
+            // Don't redial a node that already linked to us the other way around
+            if (knownNode != -1 && links.containsKey(knownNode)) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(peer, RECONNECT_DELAY);
+                PeerLink link = new PeerLink(this, socket, true);
+                link.start();
+                while (!link.isClosed()) Thread.sleep(RECONNECT_DELAY);
+                knownNode = link.remoteNode;
+            } catch (IOException e) {
+                // Peer not up yet; retry
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Decides whether a link that finished its hello is kept, and if so, syncs state over it */
+    private void linkUp(PeerLink link) {
+        PeerLink kept;
+        synchronized (links) {
+            PeerLink existing = links.get(link.remoteNode);
+            if (existing != null && !existing.isClosed()
+                    && (existing.isPreferred() || !link.isPreferred())) {
+                kept = existing;
+            } else {
+                links.put(link.remoteNode, link);
+                kept = link;
+            }
+            if (existing != null && existing != kept) existing.close();
+        }
+        if (kept != link) {
+            link.close();
+            return;
+        }
+        LOG.logger.info("Linked to cluster node " + link.remoteNode);
+
+        for (Map.Entry<Integer, GameServer> entry : servers.entrySet()) {
+            for (GamePlayer player : entry.getValue().getSessionManager().getPlayers()) {
+                int room = player.getRoom();
+                if (room != -1) link.send(join(entry.getKey(), room, player));
+            }
+        }
+    }
+
+    void linkDown(PeerLink link) {
+        if (link.remoteNode == -1) return;
+        if (!links.remove(link.remoteNode, link)) return;
+
+        LOG.logger.info("Lost link to cluster node " + link.remoteNode);
+        for (GameServer server : servers.values()) server.removeRemoteNode(link.remoteNode);
+    }
+
+    /** Handles a message received over a link */
+    void receive(PeerLink link, byte[] message) {
+        ByteBuffer in = ByteBuffer.wrap(message);
+        byte type = in.get();
+        if (type == CHALLENGE) {
+            if (in.remaining() != CHALLENGE_SIZE) {
+                link.close();
+                return;
+            }
+            byte[] challenge = new byte[CHALLENGE_SIZE];
+            in.get(challenge);
+            link.send(hello(challenge));
+            return;
+        }
+        if (type == HELLO) {
+            if (link.remoteNode != -1 || in.remaining() != 4 + PROOF_SIZE) {
+                link.close();
+                return;
+            }
+            int remoteNode = in.getInt();
+            byte[] proof = new byte[PROOF_SIZE];
+            in.get(proof);
+            if (!MessageDigest.isEqual(proof, prove(link.challenge, remoteNode))) {
+                LOG.logger.warning("Refusing link from " + link.getAddress() + ": wrong cluster secret");
+                link.close();
+                return;
+            }
+            if (remoteNode == nodeID) {
+                LOG.logger.warning("Refusing link from a node with this node's ID");
+                link.close();
+                return;
+            }
+            link.remoteNode = remoteNode;
+            link.verified();
+            linkUp(link);
+            return;
+        }
+        if (links.get(link.remoteNode) != link) return;
+
+        GameServer server = servers.get((int) in.getShort());
+        if (server == null) return;
+        switch (type) {
+            case JOIN:
+                {
+                    RemotePlayer remote = new RemotePlayer(link.remoteNode, globalID(link.remoteNode, in.getInt()));
+                    remote.room = in.getInt();
+                    remote.spriteIndex = in.getShort();
+                    remote.imageIndex = in.getShort();
+                    remote.x = in.getFloat();
+                    remote.y = in.getFloat();
+                    server.addRemotePlayer(remote);
+                }
+                break;
+            case LEAVE:
+                {
+                    int room = in.getInt();
+                    server.removeRemotePlayer(room, globalID(link.remoteNode, in.getInt()));
+                }
+                break;
+            case VISUAL:
+                {
+                    long timestamp = in.getLong();
+                    int room = in.getInt();
+                    int id = globalID(link.remoteNode, in.getInt());
+                    server.updateRemotePlayer(
+                            timestamp, room, id, in.getShort(), in.getShort(), in.getFloat(), in.getFloat());
+                }
+                break;
+        }
+    }
+
+    /** Tells other nodes a local player joined a room */
+    public void publishJoin(int shard, int room, GamePlayer player) {
+        publish(join(shard, room, player));
+    }
+
+    /** Tells other nodes a local player left a room */
+    public void publishLeave(int shard, int room, GamePlayer player) {
+        publish(message(LEAVE, shard).putInt(room).putInt(player.id).array());
+    }
+
+    /** Tells other nodes about a visual update from a local player */
+    public void publishVisual(int shard, long timestamp, GamePlayer player) {
+        publish(
+                message(VISUAL, shard)
+                        .putLong(timestamp)
+                        .putInt(player.getRoom())
+                        .putInt(player.id)
+                        .putShort((short) player.getSpriteIndex())
+                        .putShort((short) player.getImageIndex())
+                        .putFloat(player.getX())
+                        .putFloat(player.getY())
+                        .array());
+    }
+
+    /** @return a new random challenge for the other end of a link to prove the secret with */
+    byte[] newChallenge() {
+        byte[] challenge = new byte[CHALLENGE_SIZE];
+        random.nextBytes(challenge);
+        return challenge;
+    }
+
+    /** @return the message sending a challenge to the other end of a link */
+    byte[] challenge(byte[] challenge) {
+        return ByteBuffer.allocate(1 + CHALLENGE_SIZE).put(CHALLENGE).put(challenge).array();
+    }
+
+    /** @return this node's hello, answering the challenge from the other end of a link */
+    private byte[] hello(byte[] challenge) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(5 + PROOF_SIZE);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(HELLO);
+            out.writeInt(nodeID);
+            out.write(prove(challenge, nodeID));
+        } catch (IOException e) {
+            // Not thrown by a byte array stream
+        }
+        return bytes.toByteArray();
+    }
+
+    /** @return the proof that a node knows the secret, for a challenge sent to it */
+    private byte[] prove(byte[] challenge, int node) {
+        try {
+            Mac mac = Mac.getInstance(PROOF_ALGORITHM);
+            mac.init(secret);
+            mac.update(challenge);
+            return mac.doFinal(ByteBuffer.allocate(4).putInt(node).array());
+        } catch (GeneralSecurityException e) {
+            // Every Java platform supports HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] join(int shard, int room, GamePlayer player) {
+        return message(JOIN, shard)
+                .putInt(player.id)
+                .putInt(room)
+                .putShort((short) player.getSpriteIndex())
+                .putShort((short) player.getImageIndex())
+                .putFloat(player.getX())
+                .putFloat(player.getY())
+                .array();
+    }
+
+    /** @return a buffer sized for the given message type, with its type and shard filled in */
+    private static ByteBuffer message(byte type, int shard) {
+        int size;
+        switch (type) {
+            case JOIN:
+                size = 3 + 4 + 4 + 2 + 2 + 4 + 4;
+                break;
+            case LEAVE:
+                size = 3 + 4 + 4;
+                break;
+            default:
+                size = 3 + 8 + 4 + 4 + 2 + 2 + 4 + 4;
+        }
+        return ByteBuffer.allocate(size).put(type).putShort((short) shard);
+    }
+
+    private void publish(byte[] message) {
+        for (PeerLink link : links.values()) link.send(message);
+    }
+}
@@ -0,0 +1,136 @@
+package me.colinator27.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A TCP link to another node. Messages are length-prefixed; they are queued by game threads and
+ * written by a dedicated writer thread, so a slow peer never blocks packet processing.
+ */
+class PeerLink {
+    /** Maximum number of queued messages before the link is considered stalled and closed */
+    private static final int MAX_QUEUED = 65536;
+
+    /** Time (in ms) the other end has to prove it knows the cluster secret */
+    private static final int HELLO_TIMEOUT = 5000;
+
+    private static final byte[] CLOSE = new byte[0];
+
+    private final ClusterNode node;
+    private final Socket socket;
+    private final BlockingQueue<byte[]> queue;
+
+    /** Whether this side opened the connection */
+    final boolean dialed;
+
+    /** The challenge sent to the other end, which its hello must answer */
+    final byte[] challenge;
+
+    /** The ID of the node on the other end, or -1 before its hello arrives and checks out */
+    volatile int remoteNode = -1;
+
+    private volatile boolean closed;
+
+    PeerLink(ClusterNode node, Socket socket, boolean dialed) throws IOException {
+        this.node = node;
+        this.socket = socket;
+        this.dialed = dialed;
+        this.queue = new LinkedBlockingQueue<>();
+        this.challenge = node.newChallenge();
+
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(HELLO_TIMEOUT);
+        send(node.challenge(challenge));
+    }
+
+    void start() {
+        Thread reader = new Thread(this::readLoop, "cluster-read-" + socket.getRemoteSocketAddress());
+        Thread writer = new Thread(this::writeLoop, "cluster-write-" + socket.getRemoteSocketAddress());
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /**
+     * Whether this link is the one both ends keep when two nodes have dialed each other: the one
+     * dialed by the node with the lower ID
+     */
+    boolean isPreferred() {
+        return dialed ? node.nodeID < remoteNode : remoteNode < node.nodeID;
+    }
+
+    /** Queues an encoded message to be written to the peer */
+    void send(byte[] message) {
+        if (closed) return;
+        if (queue.size() >= MAX_QUEUED) {
+            node.LOG.logger.warning("Cluster link to node " + remoteNode + " stalled; closing");
+            close();
+            return;
+        }
+        queue.add(message);
+    }
+
+    /** Called once the other end's hello checked out, so the link may idle from then on */
+    void verified() {
+        try {
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    SocketAddress getAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        queue.add(CLOSE);
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void readLoop() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (!closed) {
+                byte[] message = new byte[in.readUnsignedShort()];
+                in.readFully(message);
+                node.receive(this, message);
+            }
+        } catch (IOException e) {
+            // Link lost
+        } catch (Throwable e) {
+            node.LOG.logException(e);
+        }
+        close();
+        node.linkDown(this);
+    }
+
+    private void writeLoop() {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            byte[] message;
+            while ((message = queue.take()) != CLOSE) {
+                out.writeShort(message.length);
+                out.write(message);
+                if (queue.isEmpty()) out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+}
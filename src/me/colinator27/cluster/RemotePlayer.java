@@ -0,0 +1,34 @@
+package me.colinator27.cluster;
+
+/** A player connected to another node in the cluster, as last reported by that node */
+public class RemotePlayer {
+    /** The ID of the node the player is connected to */
+    public final int node;
+
+    /** The public ID of the player, unique across the cluster */
+    public final int id;
+
+    /** The current GameMaker room index of the player */
+    public int room;
+
+    /** The current sprite index of the player */
+    public int spriteIndex;
+
+    /** The current image index of the player */
+    public int imageIndex;
+
+    /** The current X coordinate of the player */
+    public float x;
+
+    /** The current Y coordinate of the player */
+    public float y;
+
+    /**
+     * @param node the ID of the node the player is connected to
+     * @param id the public ID of the player, unique across the cluster
+     */
+    public RemotePlayer(int node, int id) {
+        this.node = node;
+        this.id = id;
+    }
+}
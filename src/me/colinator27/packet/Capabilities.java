@@ -0,0 +1,65 @@
+package me.colinator27.packet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Protocol features a client can ask for, as a bitmask after the profile key in LOGIN (or after
+ * the UUID in RESUME). The server agrees to the ones it supports, and echoes the agreed set and
+ * protocol version at the end of its SESSION packet; features not agreed to are never used on the
+ * connection, so old clients, which ask for nothing, keep the original protocol.
+ */
+public class Capabilities {
+    /** The newest protocol version understood; packets with a newer one are rejected */
+    public static final byte MAX_PROTOCOL_VERSION = 1;
+
+    /** Large packets may be sent as COMPRESSED packets, see {@link PacketCompressor} */
+    public static final int COMPRESSION = 1;
+
+    /**
+     * Every packet after SESSION, both ways, is preceded by its length (unsigned short), so
+     * packets no longer need a read or write each; see {@link PacketCodec.Framed}
+     */
+    public static final int FRAMING = 1 << 1;
+
+    /** Several packets may be sent in one write; needs {@link #FRAMING} */
+    public static final int BATCHING = 1 << 2;
+
+    /** Visual updates may be sent as changes from the previous one (not supported yet) */
+    public static final int DELTA = 1 << 3;
+
+    /** Visual updates may be sent over UDP (not supported yet) */
+    public static final int UDP = 1 << 4;
+
+    /**
+     * Visual updates from the client end with its clock (int, ms), to tell delayed updates apart.
+     * Without it, bytes after the coordinates are ignored, as they may be a coalesced packet.
+     */
+    public static final int CLIENT_TIME = 1 << 5;
+
+    /** The capabilities this server agrees to */
+    public static final int SUPPORTED = COMPRESSION | FRAMING | BATCHING | CLIENT_TIME;
+
+    private static final String[] NAMES = {"compression", "framing", "batching", "delta", "udp", "client-time"};
+
+    private Capabilities() {}
+
+    /**
+     * @param requested the capabilities a client asked for
+     * @return the capabilities agreed to
+     */
+    public static int negotiate(int requested) {
+        int agreed = requested & SUPPORTED;
+        if ((agreed & FRAMING) == 0) agreed &= ~BATCHING;
+        return agreed;
+    }
+
+    /** @return the names of a set of capabilities, for logging */
+    public static String toString(int capabilities) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < NAMES.length; i++) {
+            if ((capabilities & (1 << i)) != 0) names.add(NAMES[i]);
+        }
+        return names.toString();
+    }
+}
@@ -1,85 +1,117 @@
 package me.colinator27.packet;
 
+import me.colinator27.GamePlayer;
 import me.colinator27.GameServer;
 import me.colinator27.Log;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class ConnectionManager {
-	
-	private ScheduledExecutorService cleanupService;
+
+	private ScheduledFuture<?> cleanupTask;
 
     private Map<Socket, PacketHandler> handlers;
     private GameServer server;
-    
+
     private Log LOG;
 
-    public ConnectionManager(GameServer server) {
-    	this.cleanupService = Executors.newSingleThreadScheduledExecutor();
+    public ConnectionManager(GameServer server, EventLoopGroup loops) {
         this.handlers = new ConcurrentHashMap<>();
         this.server = server;
-        
+
         this.LOG = server.LOG;
-        
-        cleanupService.scheduleAtFixedRate(() -> {
-        	Set<Socket> dead = new HashSet<>();
-        	for(Socket socket : handlers.keySet()) {
-        		if(socket.isClosed() || !socket.isConnected()) {
-        			dead.add(socket);
-        		}
-        	}
-        	for(Socket socket :dead) {
-        		handlers.remove(socket);
-        		try {
-        			socket.close();
+
+        this.cleanupTask = loops.scheduler().scheduleAtFixedRate(() -> {
+        	long now = System.currentTimeMillis();
+        	for(PacketHandler handler : handlers.values()) {
+        		if(!handler.isRunning()) {
+        			if(handler.isOpen()) {
+        				handler.checkDeadline(now);
+        			}
+        			else {
+        				handlers.values().remove(handler);
+        			}
         		}
-        		catch(IOException e) {
-        			LOG.logException(e);
+        		else if(now - handler.getLastReceiveTime() > PacketHandler.TIMEOUT) {
+        			LOG.logger.info("Client at " + handler.getAddress() + " timed out");
+        			handler.stop();
         		}
         	}
+        	server.getSessionManager().releaseExpired();
         }, 1, 1, TimeUnit.SECONDS);
     }
 
-    public synchronized PacketHandler handleConnection(Socket socket) {
-        if(!handlers.containsKey(socket)) {
-        	PacketHandler handler = new PacketHandler(server, socket);
-        	handlers.put(socket, handler);
-        	handler.start();
-        }
-        return handlers.get(socket);
+    public PacketHandler handleConnection(SocketChannel channel, EventLoop loop) throws IOException {
+    	channel.configureBlocking(false);
+    	// Packets are small and already gathered into as few writes as possible
+    	channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    	PacketHandler handler = new PacketHandler(server, channel, loop);
+    	handlers.put(channel.socket(), handler);
+    	handler.start();
+        return handler;
     }
 
-    public void disconnectAll(InetAddress address) {
-    	Set<Socket> sockets = new HashSet<>();
-    	for(Socket socket : handlers.keySet()) {
-    		if(socket.getInetAddress().equals(address)) {
-    			sockets.add(socket);
-    		}
-    	}
-    	for(Socket socket : sockets) {
-    		server.getSessionManager().releasePlayer(socket.getRemoteSocketAddress());
-    		handlers.remove(socket);
-    		try {
-    			socket.close();
-    		}
-    		catch(IOException e) {
-    			LOG.logException(e);
+    /**
+     * Disconnects everyone connected from an address, kicking its players in one batch
+     *
+     * @param reason the message sent to its players
+     */
+    public void disconnectAll(InetAddress address, String reason) {
+    	List<GamePlayer> players = new ArrayList<>();
+    	List<PacketHandler> stopping = new ArrayList<>();
+    	for(Map.Entry<Socket, PacketHandler> entry : handlers.entrySet()) {
+    		if(((InetSocketAddress) entry.getValue().getAddress()).getAddress().equals(address)) {
+    			GamePlayer player = server.getSessionManager().getPlayer(entry.getValue().getAddress());
+    			if(player != null) {
+    				players.add(player);
+    			}
+    			handlers.remove(entry.getKey());
+    			stopping.add(entry.getValue());
     		}
     	}
+    	server.getSessionManager().kickAll(players, reason, 0);
+    	// Connections without a player (spectators, or not logged in yet)
+    	for(PacketHandler handler : stopping) handler.stop();
     }
 
     public List<Socket> getConnectedSockets() {
         return new ArrayList<>(handlers.keySet());
     }
+
+    public List<PacketHandler> getHandlers() {
+        return new ArrayList<>(handlers.values());
+    }
+
+    /** @return the number of connections still open, including stopped ones still flushing */
+    public int getOpenCount() {
+    	int count = 0;
+    	for(PacketHandler handler : handlers.values()) {
+    		if(handler.isOpen()) count++;
+    	}
+    	return count;
+    }
+
+    /** Closes every connection now, whether or not its queue has been written out */
+    public void closeAll() {
+    	for(PacketHandler handler : handlers.values()) {
+    		handler.stop();
+    		handler.checkDeadline(Long.MAX_VALUE);
+    	}
+    }
+
+    /** Stops the periodic cleanup of this server's connections */
+    public void stop() {
+        cleanupTask.cancel(false);
+    }
 }
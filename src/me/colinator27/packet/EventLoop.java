@@ -0,0 +1,151 @@
+package me.colinator27.packet;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import me.colinator27.Log;
+
+/**
+ * A single I/O thread multiplexing many non-blocking channels with a {@link Selector}. Channels
+ * are registered with a {@link Listener} that is called on this thread whenever they are ready.
+ * Other threads hand work to the loop with {@link #execute}.
+ */
+public class EventLoop implements Runnable {
+
+    /** Callback for a channel registered with an event loop */
+    public interface Listener {
+        /**
+         * Called on the event loop thread when the channel is ready for any of its interest ops
+         *
+         * @param key the selection key of the channel
+         */
+        void onReady(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the event loop thread when handling the channel failed
+         *
+         * @param e the exception thrown by {@link #onReady}
+         */
+        void onError(Throwable e);
+    }
+
+    private final Log LOG;
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final Thread thread;
+
+    private volatile boolean running;
+
+    EventLoop(String name, Log log) throws IOException {
+        this.LOG = log;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    /** @return the number of tasks waiting to run on this loop */
+    public int getQueueSize() {
+        return tasks.size();
+    }
+
+    /** @return whether the calling thread is this loop's thread */
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs a task on this loop's thread, inline if already on it
+     *
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers a channel with this loop. The channel must be in non-blocking mode.
+     *
+     * @param channel the channel to register
+     * @param ops the initial interest ops
+     * @param listener the callback for when the channel is ready
+     */
+    public void register(SelectableChannel channel, int ops, Listener listener) {
+        execute(
+                () -> {
+                    try {
+                        channel.register(selector, ops, listener);
+                    } catch (ClosedChannelException e) {
+                        listener.onError(e);
+                    }
+                });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                LOG.logException(e);
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    LOG.logException(e);
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                Listener listener = (Listener) key.attachment();
+                try {
+                    if (key.isValid()) listener.onReady(key);
+                } catch (CancelledKeyException e) {
+                    // Closed while handling; nothing left to do
+                } catch (Throwable e) {
+                    listener.onError(e);
+                }
+            }
+        }
+
+        try {
+            for (SelectionKey key : selector.keys()) key.channel().close();
+            selector.close();
+        } catch (IOException e) {
+            LOG.logException(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package me.colinator27.packet;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.colinator27.Log;
+
+/**
+ * The I/O threads and housekeeping scheduler shared by every server in the process. Each server's
+ * listening socket is pinned to one loop; its connections either stay on that loop or are spread
+ * round-robin across all loops, depending on the affinity mode.
+ */
+public class EventLoopGroup {
+
+    /** How connections are assigned to loops */
+    public enum Affinity {
+        /** Connections are handled by the loop their server's port is pinned to */
+        PORT,
+        /** Connections are spread round-robin across all loops */
+        CONNECTION;
+    }
+
+    private final EventLoop[] loops;
+    private final Affinity affinity;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicInteger nextPort, nextConnection;
+
+    /**
+     * Creates and starts the loops and scheduler
+     *
+     * @param threads the number of I/O threads
+     * @param affinity how connections are assigned to loops
+     * @param log the log to report loop errors to
+     */
+    public EventLoopGroup(int threads, Affinity affinity, Log log) throws IOException {
+        this.loops = new EventLoop[Math.max(1, threads)];
+        this.affinity = affinity;
+        this.nextPort = new AtomicInteger();
+        this.nextConnection = new AtomicInteger();
+
+        for (int i = 0; i < loops.length; i++) loops[i] = new EventLoop("io-" + i, log);
+        for (EventLoop loop : loops) loop.start();
+
+        this.scheduler =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread t = new Thread(r, "scheduler");
+                            t.setDaemon(true);
+                            return t;
+                        });
+    }
+
+    /** @return the loop to pin the next server's listening socket to */
+    public EventLoop assignPort() {
+        return loops[Math.floorMod(nextPort.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * @param portLoop the loop the connection's server is pinned to
+     * @return the loop to handle a new connection on
+     */
+    public EventLoop assignConnection(EventLoop portLoop) {
+        if (affinity == Affinity.PORT) return portLoop;
+        return loops[Math.floorMod(nextConnection.getAndIncrement(), loops.length)];
+    }
+
+    /** @return the scheduler shared by all servers for periodic housekeeping */
+    public ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /** @return the number of tasks waiting to run on each loop */
+    public int[] getQueueSizes() {
+        int[] sizes = new int[loops.length];
+        for (int i = 0; i < loops.length; i++) sizes[i] = loops[i].getQueueSize();
+        return sizes;
+    }
+
+    /** @return the number of I/O threads */
+    public int size() {
+        return loops.length;
+    }
+
+    /** Stops the loops (closing any channels still registered) and the scheduler */
+    public void shutdown() {
+        scheduler.shutdown();
+        for (EventLoop loop : loops) loop.shutdown();
+    }
+}
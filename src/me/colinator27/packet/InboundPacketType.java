@@ -1,23 +1,35 @@
+// Generated by tools/GeneratePackets.java from protocol/packets.schema; do not edit.
 package me.colinator27.packet;
 
 /** The various inbound (from client) packet types */
 public enum InboundPacketType {
     LOGIN((byte) 1),
     HEARTBEAT((byte) 2),
-
+    RESUME((byte) 3),
+    SPECTATE((byte) 4),
     PLAYER_CHANGE_ROOM((byte) 10),
     PLAYER_VISUAL_UPDATE((byte) 11);
 
+    private static final InboundPacketType[] BY_ID = new InboundPacketType[256];
+
+    static {
+        for (InboundPacketType type : values()) BY_ID[type.id & 0xFF] = type;
+    }
+
     public final byte id;
 
     InboundPacketType(byte id) {
         this.id = id;
     }
 
+    /** @return the packet type with an ID, or null if there is none */
+    public static InboundPacketType find(byte id) {
+        return BY_ID[id & 0xFF];
+    }
+
     public static InboundPacketType fromValue(byte id) {
-        for (InboundPacketType t : values()) {
-            if (t.id == id) return t;
-        }
-        throw new IllegalArgumentException("no packet type with id " + id);
+        InboundPacketType type = find(id);
+        if (type == null) throw new IllegalArgumentException("no packet type with id " + id);
+        return type;
     }
 }
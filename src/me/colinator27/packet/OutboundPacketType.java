@@ -1,28 +1,41 @@
+// Generated by tools/GeneratePackets.java from protocol/packets.schema; do not edit.
 package me.colinator27.packet;
 
 /** The various outbound (to client) packet types */
 public enum OutboundPacketType {
     SESSION((byte) 1),
     HEARTBEAT((byte) 2),
-
+    REDIRECT((byte) 3),
+    PROFILE((byte) 4),
+    COMPRESSED((byte) 5),
+    SPECTATE((byte) 6),
     PLAYER_JOIN_ROOM((byte) 10),
     PLAYER_LEAVE_ROOM((byte) 11),
     PLAYER_VISUAL_UPDATE((byte) 12),
-
     RATELIMIT_WARNING((byte) 253),
     FORCE_TELEPORT((byte) 254),
     KICK_MESSAGE((byte) 255);
 
+    private static final OutboundPacketType[] BY_ID = new OutboundPacketType[256];
+
+    static {
+        for (OutboundPacketType type : values()) BY_ID[type.id & 0xFF] = type;
+    }
+
     public final byte id;
 
     OutboundPacketType(byte id) {
         this.id = id;
     }
-    
+
+    /** @return the packet type with an ID, or null if there is none */
+    public static OutboundPacketType find(byte id) {
+        return BY_ID[id & 0xFF];
+    }
+
     public static OutboundPacketType fromValue(byte id) {
-    	for(OutboundPacketType type : values()) {
-    		if(type.id == id) return type;
-    	}
-    	throw new IllegalArgumentException("no packet type with id " + id);
+        OutboundPacketType type = find(id);
+        if (type == null) throw new IllegalArgumentException("no packet type with id " + id);
+        return type;
     }
 }
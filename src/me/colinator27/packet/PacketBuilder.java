@@ -8,7 +8,11 @@ import java.util.UUID;
 
 /** Helper class to fill packet send buffers with data */
 public class PacketBuilder {
-    /** The protocol version of packets being sent to and from clients */
+    /**
+     * The protocol version in the header of packets sent to clients. Clients may send newer
+     * versions (see {@link Capabilities}), but packets to them keep this one, as broadcasts are
+     * shared between connections.
+     */
     public static final byte PROTOCOL_VERSION = 0;
 
     /** The offset of the packet header plus type */
@@ -154,4 +158,14 @@ public class PacketBuilder {
     public byte[] build() {
     	return Arrays.copyOfRange(send, 0, offset);
     }
+
+    /**
+     * Builds the packet in direct memory, to be sent to many connections without a copy each
+     *
+     * @return a read-only buffer of the constructed packet
+     * @see SharedBuffers
+     */
+    public ByteBuffer buildShared() {
+    	return SharedBuffers.share(send, offset);
+    }
 }
@@ -0,0 +1,174 @@
+package me.colinator27.packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.colinator27.Log;
+
+/**
+ * Appends every inbound and outbound frame to a compact binary capture file. Frames are copied and
+ * queued by the network threads, and written out by a single background thread, so capturing never
+ * blocks packet processing (frames are dropped if the writer falls too far behind).
+ *
+ * <p>The file starts with {@link #MAGIC} and the format version, followed by records of:
+ * timestamp (long, ms), port (short), connection ID (int), player ID (int, -1 if none), direction
+ * (byte), length (short), and then the raw frame bytes. All values are little-endian.
+ */
+public class PacketCapture {
+    public static final byte[] MAGIC = {'U', 'T', 'O', 'C', 'A', 'P'};
+    public static final byte VERSION = 1;
+
+    /** Size of a record without its frame bytes */
+    public static final int RECORD_HEADER_SIZE = 8 + 2 + 4 + 4 + 1 + 2;
+
+    public static final byte INBOUND = 0;
+    public static final byte OUTBOUND = 1;
+    /** Marks a connection closing; carries no frame bytes */
+    public static final byte CLOSE = 2;
+
+    private static final Frame STOP = new Frame(0, 0, 0, 0, (byte) 0, new byte[0], 0);
+
+    private final Log LOG;
+    private final FileChannel channel;
+    private final BlockingQueue<Frame> queue;
+    private final Thread writer;
+    private final AtomicLong dropped;
+
+    private volatile boolean open;
+
+    /**
+     * Opens (or appends to) a capture file and starts its writer thread
+     *
+     * @param path the capture file
+     * @param log the log to report errors to
+     */
+    public PacketCapture(Path path, Log log) throws IOException {
+        this.LOG = log;
+        this.channel =
+                FileChannel.open(
+                        path,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+        this.queue = new ArrayBlockingQueue<>(65536);
+        this.dropped = new AtomicLong();
+
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1);
+            header.put(MAGIC).put(VERSION).flip();
+            while (header.hasRemaining()) channel.write(header);
+        }
+
+        this.open = true;
+        this.writer = new Thread(this::writeLoop, "packet-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a frame to be written. Never blocks; the frame is dropped if the queue is full.
+     *
+     * @param port the server port the frame was sent or received on
+     * @param connectionID the ID of the connection
+     * @param playerID the ID of the connection's player, or -1 if none
+     * @param direction {@link #INBOUND}, {@link #OUTBOUND} or {@link #CLOSE}
+     * @param bytes the frame bytes
+     * @param len the length of the frame
+     */
+    public void record(int port, int connectionID, int playerID, byte direction, byte[] bytes, int len) {
+        if (!open) return;
+        byte[] copy = new byte[len];
+        System.arraycopy(bytes, 0, copy, 0, len);
+        Frame frame =
+                new Frame(System.currentTimeMillis(), port, connectionID, playerID, direction, copy, len);
+        if (!queue.offer(frame)) dropped.incrementAndGet();
+    }
+
+    /** @return the number of frames dropped because the writer fell behind */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** Stops accepting frames, writes out what is queued, and closes the file */
+    public void close() {
+        if (!open) return;
+        open = false;
+        try {
+            queue.put(STOP);
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        List<Frame> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Frame frame : batch) {
+                    if (frame == STOP) {
+                        flush(buffer);
+                        return;
+                    }
+                    if (buffer.remaining() < RECORD_HEADER_SIZE + frame.len) flush(buffer);
+                    buffer.putLong(frame.time)
+                            .putShort((short) frame.port)
+                            .putInt(frame.connectionID)
+                            .putInt(frame.playerID)
+                            .put(frame.direction)
+                            .putShort((short) frame.len)
+                            .put(frame.bytes, 0, frame.len);
+                }
+                batch.clear();
+                flush(buffer);
+            }
+        } catch (InterruptedException e) {
+            // Exit quietly
+        } catch (IOException e) {
+            LOG.logger.severe("Packet capture stopped due to a write error");
+            LOG.logException(e);
+            open = false;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.logException(e);
+            }
+        }
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static class Frame {
+        final long time;
+        final int port, connectionID, playerID, len;
+        final byte direction;
+        final byte[] bytes;
+
+        Frame(long time, int port, int connectionID, int playerID, byte direction, byte[] bytes, int len) {
+            this.time = time;
+            this.port = port;
+            this.connectionID = connectionID;
+            this.playerID = playerID;
+            this.direction = direction;
+            this.bytes = bytes;
+            this.len = len;
+        }
+    }
+}
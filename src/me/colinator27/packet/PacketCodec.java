@@ -0,0 +1,112 @@
+package me.colinator27.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * How a connection's byte stream is cut into packets and packets are put onto it. Every
+ * connection starts out {@link Raw}, and may switch after its SESSION packet, depending on the
+ * {@link Capabilities} agreed to.
+ */
+public interface PacketCodec {
+    /** The most buffers a packet is framed into */
+    int MAX_BUFFERS = 2;
+
+    /** Receives packets decoded from a connection */
+    interface Sink {
+        /**
+         * @param bytes the packet, starting at index 0; only valid for the duration of the call
+         * @param len the length of the packet
+         */
+        void packet(byte[] bytes, int len);
+    }
+
+    /**
+     * Decodes bytes read from a connection
+     *
+     * @param received the bytes read, ready to be read from
+     * @param sink receives every complete packet
+     * @return false if the bytes can't be decoded, and the connection should be dropped
+     */
+    boolean decode(ByteBuffer received, Sink sink);
+
+    /**
+     * Frames a packet to be written. The buffer is framed as is, not copied; the buffers of a frame
+     * must go out in the same write, so the client never waits on half of one.
+     *
+     * @param packet the packet
+     * @param out the buffers to be written, with room for {@link #MAX_BUFFERS} more
+     * @param index where in out to put the frame
+     * @return the number of buffers put in out
+     */
+    int encode(ByteBuffer packet, ByteBuffer[] out, int index);
+
+    /** @return the codec to use for a connection after agreeing on some capabilities */
+    static PacketCodec forCapabilities(int capabilities) {
+        return (capabilities & Capabilities.FRAMING) != 0 ? new Framed() : Raw.INSTANCE;
+    }
+
+    /** The original protocol: each read from the connection is one packet */
+    class Raw implements PacketCodec {
+        public static final Raw INSTANCE = new Raw();
+
+        @Override
+        public boolean decode(ByteBuffer received, Sink sink) {
+            sink.packet(received.array(), received.remaining());
+            return true;
+        }
+
+        @Override
+        public int encode(ByteBuffer packet, ByteBuffer[] out, int index) {
+            out[index] = packet;
+            return 1;
+        }
+    }
+
+    /** Packets preceded by their length (unsigned short), however they are split across reads */
+    class Framed implements PacketCodec {
+        /** The largest packet accepted, the size of a PacketBuilder buffer */
+        public static final int MAX_PACKET = 4096;
+
+        /** Received bytes not yet making up a whole packet; only touched on the event loop thread */
+        private final ByteBuffer pending =
+                ByteBuffer.allocate(2 * (2 + MAX_PACKET)).order(ByteOrder.LITTLE_ENDIAN);
+
+        /** The packet being handed to the sink */
+        private final byte[] packet = new byte[MAX_PACKET];
+
+        @Override
+        public boolean decode(ByteBuffer received, Sink sink) {
+            while (received.hasRemaining()) {
+                int chunk = Math.min(received.remaining(), pending.remaining());
+                ByteBuffer slice = received.duplicate();
+                slice.limit(slice.position() + chunk);
+                pending.put(slice);
+                received.position(received.position() + chunk);
+
+                pending.flip();
+                while (pending.remaining() >= 2) {
+                    int len = pending.getShort(pending.position()) & 0xFFFF;
+                    if (len < 5 || len > MAX_PACKET) return false;
+                    if (pending.remaining() < 2 + len) break;
+                    int start = pending.position() + 2;
+                    // The sink expects the packet at index 0
+                    System.arraycopy(pending.array(), start, packet, 0, len);
+                    pending.position(start + len);
+                    sink.packet(packet, len);
+                }
+                pending.compact();
+            }
+            return true;
+        }
+
+        @Override
+        public int encode(ByteBuffer packet, ByteBuffer[] out, int index) {
+            ByteBuffer prefix = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+            prefix.putShort(0, (short) packet.remaining());
+            out[index] = prefix;
+            out[index + 1] = packet;
+            return 2;
+        }
+    }
+}
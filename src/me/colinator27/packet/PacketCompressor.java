@@ -0,0 +1,58 @@
+package me.colinator27.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses large packets for clients that agreed to {@link Capabilities#COMPRESSION}. A
+ * compressed packet is a COMPRESSED packet whose body is the length of the original packet (int)
+ * followed by the whole original packet, header included, deflated with zlib; clients inflate it
+ * and handle the original as if it had been sent as is.
+ *
+ * <p>Each thread reuses one {@link Deflater} and one output buffer, so compressing allocates only
+ * the resulting packet.
+ */
+public class PacketCompressor {
+    /** Packets smaller than this (in bytes) aren't worth compressing */
+    public static final int THRESHOLD = 256;
+
+    private static final int HEADER_SIZE = PacketBuilder.SEND_OFFSET + 4;
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[4096]);
+
+    private PacketCompressor() {}
+
+    /**
+     * @param packet the packet to compress
+     * @return the packet as a COMPRESSED packet, or the packet itself if it is below {@link
+     *     #THRESHOLD} or doesn't get any smaller
+     */
+    public static byte[] compress(byte[] packet) {
+        if (packet.length < THRESHOLD) return packet;
+
+        Deflater deflater = DEFLATERS.get();
+        byte[] out = BUFFERS.get();
+        if (out.length < packet.length) {
+            out = new byte[packet.length];
+            BUFFERS.set(out);
+        }
+        deflater.reset();
+        deflater.setInput(packet);
+        deflater.finish();
+        // Anything that doesn't fit in the original's size isn't worth sending compressed
+        int size = HEADER_SIZE;
+        while (!deflater.finished() && size < packet.length) {
+            size += deflater.deflate(out, size, packet.length - size);
+        }
+        if (!deflater.finished()) return packet;
+
+        PacketBuilder.fillHeader(out);
+        out[4] = OutboundPacketType.COMPRESSED.id;
+        ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN).putInt(PacketBuilder.SEND_OFFSET, packet.length);
+        return Arrays.copyOf(out, size);
+    }
+}
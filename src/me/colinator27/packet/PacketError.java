@@ -0,0 +1,24 @@
+package me.colinator27.packet;
+
+/**
+ * What is wrong with a received packet, as found by {@link PacketReader#check}. Invalid packets are
+ * reported with these rather than exceptions, so rejecting one costs no more than a few comparisons.
+ */
+public enum PacketError {
+    /** Nothing; the packet is valid */
+    NONE,
+    /** Shorter than the header */
+    NO_HEADER,
+    /** Doesn't start with "UTO" */
+    BAD_MAGIC,
+    /** A protocol version this server doesn't speak */
+    BAD_VERSION,
+    /** A packet type that doesn't exist, or can't be sent by clients */
+    UNKNOWN_TYPE,
+    /** Too short for the fields of its type */
+    TOO_SHORT,
+    /** Longer than any packet may be */
+    TOO_LONG,
+    /** A count of repeated entries that is negative, or more than the packet holds */
+    BAD_COUNT;
+}
@@ -1,294 +1,851 @@
 package me.colinator27.packet;
 
+import me.colinator27.BanList;
 import me.colinator27.GamePlayer;
 import me.colinator27.GameServer;
+import me.colinator27.LoadBalancer;
 import me.colinator27.Log;
 import me.colinator27.SessionManager;
+import me.colinator27.Spectator;
 import me.colinator27.Util;
+import me.colinator27.packet.PacketSchema.Inbound;
+import me.colinator27.packet.PacketSchema.Outbound;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class PacketHandler {
+public class PacketHandler implements EventLoop.Listener {
+
+    private static final AtomicInteger NEXT_CONNECTION_ID = new AtomicInteger();
+
+    /** Time (in ms) without receiving anything before a connection is dropped */
+    public static final int TIMEOUT = 4000;
+
+    /** Maximum number of bytes queued for a client before it is considered stalled and dropped */
+    public static final int MAX_QUEUED_BYTES = 1 << 20;
+
+    /** The most buffers handed to one gathering write, on connections that allow batching */
+    private static final int GATHER_LIMIT = 64;
 
     private Log LOG;
     private Socket owner;
+    private SocketAddress address;
+    private SocketChannel channel;
+    private EventLoop loop;
     private GameServer server;
-    private InputStream input;
-    private OutputStream output;
-    private ExecutorService executor;
 
     private List<Long> timestamps;
 
-    private final AtomicBoolean running, ratelimited;
+    /** The number of packets received on this connection; only written on the event loop thread */
+    private volatile long packetCount;
+
+    /** Process-wide unique ID of this connection, used to tell connections apart in captures */
+    public final int connectionID;
+
+    /** The ID of the player on this connection, or -1 if none */
+    private volatile int playerID = -1;
+
+    /** The spectator on this connection, or null if it isn't spectating */
+    private volatile Spectator spectator;
+
+    /** The last time (in ms) anything was received on this connection */
+    private volatile long lastReceiveTime;
+
+    /** The time (in ms) by which a stopped connection is closed, even if its queue isn't empty */
+    private volatile long closeDeadline;
+
+    /** Whether the channel was closed; only touched on the event loop thread */
+    private boolean closed;
+
+    /**
+     * The invalid packets received, of which only the first is logged; only touched on the event
+     * loop thread
+     */
+    private int invalidPackets;
+
+    private final ByteBuffer receive;
+    private final Queue<ByteBuffer> outbound;
+    private final AtomicInteger queuedBytes;
+
+    /**
+     * Packets taken off the queue and framed, being written; only touched on the event loop
+     * thread
+     */
+    private final ByteBuffer[] writing;
+    private int writingCount;
+
+    /** Whether the client accepts several packets in one write; only touched on the event loop thread */
+    private boolean batching;
+
+    /** The capabilities agreed with the client, see {@link Capabilities} */
+    private volatile int capabilities;
+
+    /** Cuts received bytes into packets; set along with capabilities, on the event loop thread */
+    private volatile PacketCodec codec = PacketCodec.Raw.INSTANCE;
+
+    /**
+     * Frames packets as they are taken off the queue; only touched on the event loop thread, so
+     * queueing packets takes no lock
+     */
+    private PacketCodec encoder = PacketCodec.Raw.INSTANCE;
 
-    public PacketHandler(GameServer server, Socket owner) {
+    /**
+     * The reply agreeing on capabilities, after which packets are framed with those capabilities;
+     * only touched on the event loop thread
+     */
+    private ByteBuffer switchAfter;
+    private int switchTo;
+    private final PacketCodec.Sink sink = this::process;
+
+    private final AtomicBoolean running, ratelimited, flushScheduled;
+
+    public PacketHandler(GameServer server, SocketChannel channel, EventLoop loop) {
         this.ratelimited = new AtomicBoolean(false);
         this.running = new AtomicBoolean(false);
+        this.flushScheduled = new AtomicBoolean(false);
 
-        this.executor = Executors.newSingleThreadExecutor();
         this.server = server;
-        this.owner = owner;
+        this.channel = channel;
+        this.loop = loop;
+        this.owner = channel.socket();
+        this.address = owner.getRemoteSocketAddress();
 
         this.timestamps = new CopyOnWriteArrayList<>();
+        this.connectionID = NEXT_CONNECTION_ID.getAndIncrement();
+
+        this.receive = ByteBuffer.allocate(4096);
+        this.outbound = new ConcurrentLinkedQueue<>();
+        this.queuedBytes = new AtomicInteger();
+        this.writing = new ByteBuffer[GATHER_LIMIT];
 
         this.LOG = server.LOG;
         LOG.logger.info("Created packet handler for " + owner);
     }
+
     public synchronized void start() {
         if (running.getAndSet(true)) {
             return;
         }
-        try {
-        	output = owner.getOutputStream();
-        	input = owner.getInputStream();
+        lastReceiveTime = System.currentTimeMillis();
+        loop.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isWritable()) {
+            this.flush();
         }
-        catch(IOException e) {
-        	LOG.logException(e);
-        	running.set(false);
-        	return;
+        if (key.isValid() && key.isReadable()) {
+            receive.clear();
+            int amount = channel.read(receive);
+            if (amount < 0) {
+                if (running.get()) {
+                    this.stop();
+                } else {
+                    this.close();
+                }
+                return;
+            }
+            if (amount > 0 && running.get()) {
+                lastReceiveTime = System.currentTimeMillis();
+                receive.flip();
+                if (!codec.decode(receive, sink)) {
+                    LOG.logger.warning("Client at " + owner + " sent an invalid frame; dropping connection");
+                    this.stop();
+                    this.violation();
+                }
+            }
         }
-        executor.execute(
-                () -> {
-                    SessionManager sessionManager = server.getSessionManager();
-
-                    PacketBuilder builder;
-                    PacketReader reader;
-                    GamePlayer player;
-                    UUID uuid;
-
-                    int spriteIndex, imageIndex, room;
-                    float x, y;
-                    long now;
-                    
-                    byte[] receive = new byte[4096];
-                    int amount;
-
-                    while (running.get() && !owner.isClosed()) {
-                    	try {
-                            player = null;
-                            uuid = null;
-                            
-                            amount = input.read(receive);
-                            
-                            if(amount < 0) {
-                            	break;
-                            }
-                            
-                            now = System.currentTimeMillis();
-
-                            if (this.checkRatelimit()) {
-                                if (!ratelimited.getAndSet(true)) {
-                                    LOG.logger.warning("Client at " + owner + " is hitting ratelimits");
-
-                                    this.sendPacket(new PacketBuilder(OutboundPacketType.RATELIMIT_WARNING));
-                                }
-                                continue;
-                            }
-                            if (ratelimited.getAndSet(false)) {
-                                LOG.logger.info("Client at " + owner + " is no longer hitting ratelimits");
-                            }
-
-                            reader = new PacketReader(receive, amount);
-
-                            if (!reader.validate()) {
-                                LOG.logger.warning("Client at " + owner + " sent invalid data");
-                                LOG.logger.warning(Util.stringify(receive, amount));
-                                continue;
-                            }
-                            
-                            if(server.properties.debugMode) {
-                            	LOG.logger.info(String.format("Recv %s:%d - %s", owner.getInetAddress(), owner.getPort(), reader));
-                            }
-
-                            try {
-                                switch (reader.parseType()) {
-                                    case LOGIN:
-                                        {
-                                            if (server.properties.disallowSameIP
-                                                    && sessionManager.playerFromIPExists(owner.getInetAddress())) {
-                                                LOG.logger.info(
-                                                        "Rejected session request from "
-                                                                + owner
-                                                                + " (same IPs disallowed)");
-                                                continue;
-                                            }
-                                            player = sessionManager.getPlayer(owner.getRemoteSocketAddress());
-                                            if(player != null) {
-                                            	sessionManager.kick(player, "Only one player is allowed per connection");
-                                            	break;
-                                            }
-                                            player = sessionManager.createPlayer(owner, this);
-                                            if (player == null) {
-                                                LOG.logger.info(
-                                                        "Rejected session request from "
-                                                                + owner
-                                                                + " (server is full)");
-                                                this.sendPacket(
-                                                        new PacketBuilder(OutboundPacketType.KICK_MESSAGE)
-                                                                .addString(
-                                                                        "Cannot join this server; it"
-                                                                            + " is at a maximum"
-                                                                            + " capacity of "
-                                                                                + server.properties
-                                                                                        .maxPlayers
-                                                                                + " players."));
-                                                continue;
-                                            }
-                                            LOG.logger.info(
-                                                    String.format(
-                                                            "Created session for %s (id = %d, uuid"
-                                                                + " = %s)",
-                                                            owner,
-                                                            player.id,
-                                                            player.uuid));
-                                            this.sendPacket(
-                                                    new PacketBuilder(OutboundPacketType.SESSION)
-                                                            .addInt(player.id)
-                                                            .addUUID(player.uuid));
-                                        }
-                                        break;
-                                    case HEARTBEAT:
-                                        {
-                                            uuid = reader.getUUID();
-                                            player = sessionManager.getPlayer(uuid);
-
-                                            if (player != null) {
-                                                this.sendPacket(new PacketBuilder(OutboundPacketType.HEARTBEAT));
-                                            }
-                                        }
-                                        break;
-                                    case PLAYER_CHANGE_ROOM:
-                                        {
-                                            uuid = reader.getUUID();
-                                            player = sessionManager.getPlayer(uuid);
-
-                                            if (player != null) {
-                                                room = reader.getShort();
-
-                                                spriteIndex = reader.getShort();
-                                                imageIndex = reader.getShort();
-                                                x = reader.getFloat();
-                                                y = reader.getFloat();
-
-                                                player.lastMovePacketTime = -1;
-                                                if (server.validatePlayerVisuals(
-                                                        player, spriteIndex, imageIndex, x, y)) {
-                                                    server.addPlayerToRoom(player, room);
-                                                }
-                                            }
-                                        }
-                                        break;
-                                    case PLAYER_VISUAL_UPDATE:
-                                        {
-                                            uuid = reader.getUUID();
-                                            player = sessionManager.getPlayer(uuid);
-
-                                            if (player != null) {
-                                                spriteIndex = reader.getShort();
-                                                imageIndex = reader.getShort();
-                                                x = reader.getFloat();
-                                                y = reader.getFloat();
-
-                                                if (server.validatePlayerVisuals(player, spriteIndex, imageIndex, x, y) && player.room != -1) {
-                                                    builder = new PacketBuilder(OutboundPacketType.PLAYER_VISUAL_UPDATE)
-                                                                    .addLong(now)
-                                                                    .addInt(player.room)
-                                                                    .addInt(player.id)
-                                                                    .addShort((short) spriteIndex)
-                                                                    .addShort((short) imageIndex)
-                                                                    .addFloat(x)
-                                                                    .addFloat(y);
-
-                                                    for (GamePlayer other :
-                                                            server.getPlayersInRoom(player.room)) {
-                                                        if (other == player) continue;
-                                                        other.handler.sendPacket(builder);
-                                                    }
-                                                }
-                                                player.lastMovePacketTime = now;
-                                            }
-                                        }
-                                        break;
-                                }
-                            } catch (Throwable e) {
-                                LOG.logger.severe(
-                                        "An internal error occured while processing a packet from "
-                                                + owner.getRemoteSocketAddress());
-
-                                if (player == null && uuid != null) {
-                                    player = sessionManager.getPlayer(uuid);
-                                }
-                                if (player != null) {
-                                    sessionManager.kick(player, "Invalid message received");
-                                    LOG.logger.severe("Player " + player.id + " (" + player.uuid + ")");
-                                }
-                                LOG.logger.severe(
-                                        "Bytes: "
-                                                + Util.stringify(receive, amount));
-                                LOG.logException(e);
-
-                            }
-          
-                    	}
-                    	catch(IOException e) {
-                    		break;
-                    	}
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        if (!(e instanceof IOException)) {
+            LOG.logException(e);
+        }
+        this.stop();
+    }
+
+    /**
+     * Handles a single packet received from the client
+     *
+     * @param receive the receive buffer
+     * @param amount the number of bytes received
+     */
+    private void process(byte[] receive, int amount) {
+        SessionManager sessionManager = server.getSessionManager();
+
+        PacketBuilder builder;
+        PacketReader reader;
+        GamePlayer player = null;
+        UUID uuid = null;
+
+        int spriteIndex, imageIndex, room;
+        float x, y;
+        long now;
+        PacketCapture capture;
+
+        now = System.currentTimeMillis();
+        packetCount++;
+
+        capture = server.getCapture();
+        if (capture != null) {
+            capture.record(server.getProperties().port, connectionID, playerID, PacketCapture.INBOUND, receive, amount);
+        }
+        PacketTracer tracer = server.getTracer();
+        if (tracer.isActive()) {
+            tracer.offer(this, true, ByteBuffer.wrap(receive, 0, amount));
+        }
+
+        if (this.checkRatelimit()) {
+            if (!ratelimited.getAndSet(true)) {
+                LOG.logger.warning("Client at " + owner + " is hitting ratelimits");
+
+                this.sendPacket(new PacketBuilder(OutboundPacketType.RATELIMIT_WARNING));
+            }
+            this.violation();
+            return;
+        }
+        if (ratelimited.getAndSet(false)) {
+            LOG.logger.info("Client at " + owner + " is no longer hitting ratelimits");
+        }
+
+        reader = new PacketReader(receive, amount);
+
+        PacketError error = reader.check();
+        if (error != PacketError.NONE) {
+            // Logging costs far more than rejecting, so a flood only logs once; see close()
+            if (invalidPackets++ == 0 || server.getProperties().debugMode) {
+                LOG.logger.warning("Client at " + owner + " sent invalid data (" + error + ", " + amount + " bytes)");
+                if (server.getProperties().debugMode) {
+                    LOG.logger.warning(Util.stringify(receive, amount));
+                }
+            }
+            this.violation();
+            return;
+        }
+        
+        if(server.getProperties().debugMode) {
+        	LOG.logger.info(String.format("Recv %s:%d - %s", owner.getInetAddress(), owner.getPort(), reader));
+        }
+
+        try {
+            ByteBuffer bb = reader.getBuffer();
+            InboundPacketType type = reader.getType();
+            // Spectators only watch; anything but heartbeats from them is ignored
+            if (spectator != null && type != InboundPacketType.HEARTBEAT) {
+                return;
+            }
+            switch (type) {
+                case LOGIN:
+                    {
+                        if (server.getProperties().disallowSameIP) {
+                            sessionManager.releaseDetached(owner.getInetAddress());
+                        }
+                        if (server.getProperties().disallowSameIP
+                                && sessionManager.playerFromIPExists(owner.getInetAddress())) {
+                            LOG.logger.info(
+                                    "Rejected session request from "
+                                            + owner
+                                            + " (same IPs disallowed)");
+                            return;
+                        }
+                        player = sessionManager.getPlayer(owner.getRemoteSocketAddress());
+                        if(player != null) {
+                        	sessionManager.kick(player, "Only one player is allowed per connection");
+                        	break;
+                        }
+                        // An all-zero key lets a client advertise capabilities without a profile
+                        UUID profileKey = Inbound.Login.hasProfile(bb) ? Inbound.Login.profile(bb) : null;
+                        if (profileKey != null
+                                && profileKey.getMostSignificantBits() == 0
+                                && profileKey.getLeastSignificantBits() == 0) {
+                            profileKey = null;
+                        }
+                        boolean advertised = Inbound.Login.hasCaps(bb) || reader.getVersion() > 0;
+                        int requested = Inbound.Login.hasCaps(bb) ? Inbound.Login.caps(bb) : 0;
+                        if (this.redirect(profileKey)) {
+                            return;
+                        }
+                        player = sessionManager.createPlayer(owner, this);
+                        if (player == null) {
+                            LOG.logger.info(
+                                    "Rejected session request from "
+                                            + owner
+                                            + " (server is full)");
+                            this.sendPacket(
+                                    new PacketBuilder(OutboundPacketType.KICK_MESSAGE)
+                                            .addString(
+                                                    "Cannot join this server; it"
+                                                        + " is at a maximum"
+                                                        + " capacity of "
+                                                            + server.getProperties()
+                                                                    .maxPlayers
+                                                            + " players."));
+                            return;
+                        }
+                        player.profileKey = profileKey;
+                        playerID = player.id;
+                        LOG.logger.info(
+                                String.format(
+                                        "Created session for %s (id = %d, uuid"
+                                            + " = %s)",
+                                        owner,
+                                        player.id,
+                                        player.uuid));
+                        this.sendSession(player, reader.getVersion(), requested, advertised);
+                        server.restoreProfile(player);
                     }
-                    LOG.logger.info(owner + " disconnected");
-                    sessionManager.releasePlayer(owner.getRemoteSocketAddress());
-                    this.dispose();
-                });
+                    break;
+                case RESUME:
+                    {
+                        uuid = Inbound.Resume.uuid(bb);
+                        boolean advertised = Inbound.Resume.hasCaps(bb) || reader.getVersion() > 0;
+                        int requested = Inbound.Resume.hasCaps(bb) ? Inbound.Resume.caps(bb) : 0;
+                        if (sessionManager.getPlayer(owner.getRemoteSocketAddress()) != null) {
+                            break;
+                        }
+                        player = sessionManager.resumePlayer(uuid, owner, this);
+                        if (player == null) {
+                            LOG.logger.info(
+                                    "Rejected resume request from "
+                                            + owner
+                                            + " (no such session)");
+                            this.sendPacket(
+                                    new PacketBuilder(OutboundPacketType.KICK_MESSAGE)
+                                            .addString("Session expired; please log in again."));
+                            return;
+                        }
+                        playerID = player.id;
+                        this.sendSession(player, reader.getVersion(), requested, advertised);
+                        server.resumeRoom(player);
+                    }
+                    break;
+                case HEARTBEAT:
+                    {
+                        uuid = Inbound.Heartbeat.uuid(bb);
+                        player = sessionManager.getPlayer(uuid);
+
+                        if (player != null || spectator != null) {
+                            this.sendPacket(new PacketBuilder(OutboundPacketType.HEARTBEAT));
+                        }
+                    }
+                    break;
+                case SPECTATE:
+                    {
+                        if (playerID != -1 || sessionManager.getPlayer(owner.getRemoteSocketAddress()) != null) {
+                            break;
+                        }
+                        int count = Inbound.Spectate.count(bb);
+                        int[] rooms = new int[count];
+                        for (int i = 0; i < count; i++) rooms[i] = Inbound.Spectate.roomsId(bb, i);
+                        Spectator watching = server.addSpectator(this, rooms);
+                        if (watching == null) {
+                            LOG.logger.info(
+                                    "Rejected spectate request from "
+                                            + owner
+                                            + " (spectators are full)");
+                            this.sendPacket(
+                                    new PacketBuilder(OutboundPacketType.KICK_MESSAGE)
+                                            .addString(
+                                                    "Cannot spectate on this server; it is at a"
+                                                            + " maximum capacity of "
+                                                            + server.getProperties().maxSpectators
+                                                            + " spectators."));
+                            return;
+                        }
+                        spectator = watching;
+                        LOG.logger.info(
+                                "Created spectator for "
+                                        + owner
+                                        + " (rooms = "
+                                        + Arrays.toString(watching.rooms)
+                                        + ")");
+                        this.sendSpectate(watching, Inbound.Spectate.caps(bb));
+                        server.watchRooms(watching);
+                    }
+                    break;
+                case PLAYER_CHANGE_ROOM:
+                    {
+                        uuid = Inbound.PlayerChangeRoom.uuid(bb);
+                        player = sessionManager.getPlayer(uuid);
+
+                        if (player != null) {
+                            room = Inbound.PlayerChangeRoom.room(bb);
+
+                            spriteIndex = Inbound.PlayerChangeRoom.sprite(bb);
+                            imageIndex = Inbound.PlayerChangeRoom.frame(bb);
+                            x = Inbound.PlayerChangeRoom.x(bb);
+                            y = Inbound.PlayerChangeRoom.y(bb);
+
+                            GamePlayer target = player;
+                            int targetRoom = room, targetSprite = spriteIndex, targetImage = imageIndex;
+                            float targetX = x, targetY = y;
+                            server.getRoomWorkers().submit(
+                                    player,
+                                    () -> this.changeRoom(target, targetRoom, targetSprite, targetImage, targetX, targetY));
+                        }
+                    }
+                    break;
+                case PLAYER_VISUAL_UPDATE:
+                    {
+                        uuid = Inbound.PlayerVisualUpdate.uuid(bb);
+                        player = sessionManager.getPlayer(uuid);
+
+                        if (player != null) {
+                            spriteIndex = Inbound.PlayerVisualUpdate.sprite(bb);
+                            imageIndex = Inbound.PlayerVisualUpdate.frame(bb);
+                            x = Inbound.PlayerVisualUpdate.x(bb);
+                            y = Inbound.PlayerVisualUpdate.y(bb);
+                            // Clients that agreed to it append their clock, to tell delayed packets
+                            // apart; from others, trailing bytes may be a coalesced packet
+                            Integer clientTime = this.hasCapability(Capabilities.CLIENT_TIME)
+                                            && Inbound.PlayerVisualUpdate.hasTime(bb)
+                                    ? Inbound.PlayerVisualUpdate.time(bb)
+                                    : null;
+
+                            GamePlayer target = player;
+                            int targetSprite = spriteIndex, targetImage = imageIndex;
+                            float targetX = x, targetY = y;
+                            long arrival = now;
+                            server.getRoomWorkers().submit(
+                                    player,
+                                    () -> this.updateVisuals(target, targetSprite, targetImage, targetX, targetY, clientTime, arrival));
+                        }
+                    }
+                    break;
+            }
+        } catch (Throwable e) {
+            LOG.logger.severe(
+                    "An internal error occured while processing a packet from "
+                            + owner.getRemoteSocketAddress());
+
+            if (player == null && uuid != null) {
+                player = sessionManager.getPlayer(uuid);
+            }
+            if (player != null) {
+                sessionManager.kick(player, "Invalid message received");
+                LOG.logger.severe("Player " + player.id + " (" + player.uuid + ")");
+            }
+            LOG.logger.severe(
+                    "Bytes: "
+                            + Util.stringify(receive, amount));
+            LOG.logException(e);
+            this.violation();
+
+        }
+    }
+
+    /** Handles a room change from a player; runs as a task of the player */
+    private void changeRoom(GamePlayer player, int room, int spriteIndex, int imageIndex, float x, float y) {
+        SessionManager sessionManager = server.getSessionManager();
+        if (sessionManager.getPlayer(player.uuid) != player) {
+            return;
+        }
+        try {
+            player.setLastMovePacketTime(-1);
+            player.history.clear();
+            if (server.validatePlayerVisuals(player, spriteIndex, imageIndex, x, y, -1)) {
+                server.addPlayerToRoom(player, room);
+            }
+        } catch (Throwable e) {
+            this.taskFailed(player, e);
+        }
+    }
+
+    /**
+     * Handles a visual update from a player, relaying it to the rest of its room; runs as a task
+     * of the player
+     *
+     * @param clientTime the client's clock when it sent the update, or null if it didn't say
+     * @param arrival the time (in ms) the update arrived
+     */
+    private void updateVisuals(
+            GamePlayer player, int spriteIndex, int imageIndex, float x, float y, Integer clientTime, long arrival) {
+        SessionManager sessionManager = server.getSessionManager();
+        if (sessionManager.getPlayer(player.uuid) != player) {
+            return;
+        }
+        try {
+            long timestamp = clientTime != null
+                    ? player.history.toServerTime(clientTime, arrival)
+                    : arrival;
+
+            if (server.validatePlayerVisuals(player, spriteIndex, imageIndex, x, y, timestamp) && player.getRoom() != -1) {
+                timestamp = player.motion.update(Util.monotonicMillis(), x, y);
+                if (server.getProperties().extrapolateVisuals) {
+                    timestamp = player.motion.getFrameTime();
+                    x = player.motion.extrapolateX(timestamp);
+                    y = player.motion.extrapolateY(timestamp);
+                }
+                ByteBuffer packet = Outbound.PlayerVisualUpdate.shared(
+                        timestamp, player.getRoom(), player.id, (short) spriteIndex, (short) imageIndex, x, y);
+
+                server.broadcast(player.getRoom(), packet, player);
+                server.relayVisuals(player, timestamp);
+            }
+            player.setLastMovePacketTime(arrival);
+        } catch (Throwable e) {
+            this.taskFailed(player, e);
+        }
+    }
+
+    /**
+     * Counts a violation (hitting ratelimits, sending invalid data) against the client's address,
+     * disconnecting everyone from it if that gets it banned
+     */
+    private void violation() {
+        BanList bans = server.getBanList();
+        InetAddress address = ((InetSocketAddress) this.address).getAddress();
+        if (bans != null && bans.recordViolation(address)) {
+            server.getConnectionManager().disconnectAll(address, "You have been temporarily banned.");
+        }
+    }
+
+    private void taskFailed(GamePlayer player, Throwable e) {
+        LOG.logger.severe("An internal error occured while processing a packet from " + player);
+        server.getSessionManager().kick(player, "Invalid message received");
+        LOG.logException(e);
     }
-    
+
+    /**
+     * Sends the SESSION packet, agreeing on the capabilities the client asked for. Everything
+     * queued after it uses the codec of the agreed capabilities.
+     *
+     * @param version the protocol version of the client's request
+     * @param requested the capabilities the client asked for
+     * @param echo whether to append the version and agreed capabilities, for clients that know to
+     *     expect them
+     */
+    private void sendSession(GamePlayer player, byte version, int requested, boolean echo) {
+        int agreed = Capabilities.negotiate(requested);
+        PacketBuilder session =
+                new PacketBuilder(OutboundPacketType.SESSION)
+                        .addInt(player.id)
+                        .addUUID(player.uuid);
+        if (echo) session.addByte(version).addInt(agreed);
+        this.agree(session, agreed);
+    }
+
+    /**
+     * Sends the SPECTATE reply, agreeing on the capabilities the client asked for, and telling it
+     * which of the rooms it asked for it watches
+     */
+    private void sendSpectate(Spectator spectator, int requested) {
+        int agreed = Capabilities.negotiate(requested);
+        PacketBuilder reply =
+                new PacketBuilder(OutboundPacketType.SPECTATE)
+                        .addInt(agreed)
+                        .addShort((short) spectator.rooms.length);
+        for (int room : spectator.rooms) reply.addShort((short) room);
+        this.agree(reply, agreed);
+    }
+
+    /**
+     * Sends the packet telling the client the agreed capabilities, and switches to them for
+     * everything queued after it. Runs on the event loop thread, like {@link #flush}, which
+     * switches the encoder once it has framed the reply.
+     */
+    private void agree(PacketBuilder reply, int agreed) {
+        ByteBuffer packet = ByteBuffer.wrap(reply.build());
+        this.switchAfter = packet;
+        this.switchTo = agreed;
+        this.enqueue(packet);
+        // Packets queued by others after this may rely on the capabilities; they are behind the reply
+        this.capabilities = agreed;
+        this.codec = PacketCodec.forCapabilities(agreed);
+        if (agreed != 0) {
+            LOG.logger.info("Agreed on " + Capabilities.toString(agreed) + " with " + owner);
+        }
+    }
+
+    /**
+     * Redirects a login to another server if the load balancer picks one, reserving a session
+     * there for the client to resume
+     *
+     * @param profileKey the profile key of the client, or null if it has none
+     * @return true if the client was redirected
+     */
+    private boolean redirect(UUID profileKey) {
+        LoadBalancer balancer = server.getLoadBalancer();
+        if (balancer == null) {
+            return false;
+        }
+        GameServer target = balancer.pickTarget(server);
+        if (target == null) {
+            return false;
+        }
+        GamePlayer reserved = target.getSessionManager().reservePlayer(profileKey);
+        if (reserved == null) {
+            return false;
+        }
+        LOG.logger.info(
+                "Redirected session request from "
+                        + owner
+                        + " to port "
+                        + target.getProperties().port
+                        + " (id = "
+                        + reserved.id
+                        + ")");
+        this.sendPacket(
+                new PacketBuilder(OutboundPacketType.REDIRECT)
+                        .addInt(target.getProperties().port)
+                        .addUUID(reserved.uuid));
+        return true;
+    }
+
     public boolean sendPacket(PacketBuilder packet) {
+    	if(!running.get()) {
+    		return false;
+    	}
     	return this.sendPacket(packet.build());
     }
     public boolean sendPacket(byte[] bytes) {
     	return this.sendPacket(bytes, bytes.length);
     }
+    /**
+     * Queues a packet to be written to the client. The array is not copied, so it must not be
+     * modified afterwards.
+     *
+     * @return false if the connection is closed or the client has stalled
+     */
     public boolean sendPacket(byte[] bytes, int len) {
-    	try {
-    		if(server.properties.debugMode) {
+    	return this.enqueue(ByteBuffer.wrap(bytes, 0, len));
+    }
+    /**
+     * Queues a packet shared with other connections, from {@link SharedBuffers#share}. Only a view
+     * of the buffer is queued, so it is not copied.
+     *
+     * @return false if the connection is closed or the client has stalled
+     */
+    public boolean sendPacket(ByteBuffer packet) {
+    	return this.enqueue(packet.duplicate());
+    }
+
+    private boolean enqueue(ByteBuffer buffer) {
+    	if(!running.get()) {
+    		return false;
+    	}
+    	int len = buffer.remaining();
+    	PacketCapture capture = server.getCapture();
+    	PacketTracer tracer = server.getTracer();
+    	if(tracer.isActive()) {
+    		tracer.offer(this, false, buffer);
+    	}
+    	if(server.getProperties().debugMode || capture != null) {
+    		byte[] bytes = new byte[len];
+    		buffer.duplicate().get(bytes);
+    		if(server.getProperties().debugMode) {
     			LOG.logger.info(String.format("Send %s:%d - %s", owner.getInetAddress(), owner.getPort(), Util.stringifyServerPacket(bytes, len)));
     		}
-    		output.write(bytes, 0, len);
-    		output.flush();
-    		return true;
+    		if(capture != null) {
+    			capture.record(server.getProperties().port, connectionID, playerID, PacketCapture.OUTBOUND, bytes, len);
+    		}
     	}
-    	catch(Throwable e) {
-    		LOG.logException(e);
+    	outbound.add(buffer);
+    	if(queuedBytes.addAndGet(len) > MAX_QUEUED_BYTES) {
+    		LOG.logger.warning("Client at " + owner + " stalled; dropping connection");
+    		this.stop();
     		return false;
     	}
+    	if(loop.inLoop()) {
+    		this.flush();
+    	}
+    	else if(!flushScheduled.getAndSet(true)) {
+    		loop.execute(this::flush);
+    	}
+    	return true;
     }
 
-    public void stop() {
-        this.running.set(false);
+    /** @return whether a capability was agreed with the client, see {@link Capabilities} */
+    public boolean hasCapability(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    /**
+     * Writes queued packets until the queue is empty or the socket buffer is full, in which case
+     * the rest is written once the channel is writable again. Runs on the event loop thread.
+     */
+    private void flush() {
+        flushScheduled.set(false);
         try {
-        	owner.close();
+            while (true) {
+                // Without batching, each packet is written on its own, though always as one frame
+                ByteBuffer next;
+                while ((batching ? writingCount + PacketCodec.MAX_BUFFERS <= GATHER_LIMIT : writingCount == 0)
+                        && (next = outbound.poll()) != null) {
+                    this.frame(next);
+                }
+                if (writingCount == 0) break;
+
+                queuedBytes.addAndGet((int) -channel.write(writing, 0, writingCount));
+                int done = 0;
+                while (done < writingCount && !writing[done].hasRemaining()) done++;
+                System.arraycopy(writing, done, writing, 0, writingCount - done);
+                Arrays.fill(writing, writingCount - done, writingCount, null);
+                writingCount -= done;
+                if (writingCount > 0) {
+                    // The socket buffer is full
+                    break;
+                }
+            }
+            boolean empty = writingCount == 0 && outbound.isEmpty();
+            if (!running.get()
+                    && (empty || System.currentTimeMillis() >= closeDeadline)) {
+                this.close();
+                return;
+            }
+            SelectionKey key = channel.keyFor(loop.selector());
+            if (key != null && key.isValid()) {
+                int ops = empty
+                        ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+                if (key.interestOps() != ops) key.interestOps(ops);
+            }
+        } catch (IOException e) {
+            this.running.set(false);
+            this.close();
         }
-        catch(IOException e) {
-        	LOG.logException(e);
+    }
+
+    /** Frames a packet taken off the queue into the buffers being written */
+    private void frame(ByteBuffer packet) {
+        int len = packet.remaining();
+        int count = encoder.encode(packet, writing, writingCount);
+        int framed = 0;
+        for (int i = writingCount; i < writingCount + count; i++) framed += writing[i].remaining();
+        writingCount += count;
+        // What framing adds is counted too, as it is subtracted once written
+        if (framed != len) queuedBytes.addAndGet(framed - len);
+        if (packet == switchAfter) {
+            switchAfter = null;
+            encoder = PacketCodec.forCapabilities(switchTo);
+            batching = (switchTo & Capabilities.BATCHING) != 0;
         }
     }
 
-    public void dispose() {
-        this.stop();
-        executor.shutdown();
+    /**
+     * Closes the connection after writing out whatever can be written immediately, and detaches
+     * its player (if any) from the session
+     */
+    public void stop() {
+        this.stop(0);
+    }
+
+    /**
+     * Stops taking packets, and closes the connection once everything queued has been written
+     * out, or at the deadline, whichever comes first. Detaches its player (if any) from the
+     * session once closed.
+     *
+     * @param deadline the time (in ms) by which the connection is closed regardless
+     */
+    public void stop(long deadline) {
+        if (!this.running.getAndSet(false)) {
+            return;
+        }
+        this.closeDeadline = deadline;
+        loop.execute(this::flush);
+    }
+
+    /** Closes a stopped connection whose deadline has passed, even if its queue isn't empty */
+    public void checkDeadline(long now) {
+        if (!running.get() && now >= closeDeadline) {
+            loop.execute(this::close);
+        }
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.logException(e);
+        }
+        outbound.clear();
+        Arrays.fill(writing, null);
+        writingCount = 0;
+
+        LOG.logger.info(owner + " disconnected");
+        if (invalidPackets > 1) {
+            LOG.logger.warning("Client at " + address + " sent " + invalidPackets + " invalid packets in total");
+        }
+        PacketCapture capture = server.getCapture();
+        if (capture != null) {
+            capture.record(server.getProperties().port, connectionID, playerID, PacketCapture.CLOSE, receive.array(), 0);
+        }
+        Spectator watching = spectator;
+        if (watching != null) {
+            server.removeSpectator(watching);
+            return;
+        }
+        server.getSessionManager().detachPlayer(address);
     }
 
     public boolean isRunning() {
         return this.running.get();
     }
 
+    /** @return whether the connection is still open (it may be stopped but still flushing) */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /** @return the number of packets received on this connection */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /** @return the number of packets received on this connection in the last second */
+    public int getPacketRate(long now) {
+        int rate = 0;
+        for (long stamp : timestamps) {
+            if (now - stamp <= 1000) rate++;
+        }
+        return rate;
+    }
+
+    /** @return the number of bytes queued for the client, not yet written */
+    public int getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /** @return the ID of the player on this connection, or -1 if none */
+    public int getPlayerID() {
+        return playerID;
+    }
+
+    /** @return whether the connection is spectating rather than playing */
+    public boolean isSpectating() {
+        return spectator != null;
+    }
+
+    /** @return the last time (in ms) anything was received on this connection */
+    public long getLastReceiveTime() {
+        return lastReceiveTime;
+    }
+
+    /** @return the address of the client, even after the connection is closed */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
     private boolean checkRatelimit() {
         long time = System.currentTimeMillis();
         timestamps.removeIf(stamp -> time - stamp > 1000);
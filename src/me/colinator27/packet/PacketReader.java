@@ -2,112 +2,69 @@ package me.colinator27.packet;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.UUID;
 
-import me.colinator27.Pair;
 import me.colinator27.Util;
 
 /** Helper class to parse packet receive buffers */
 public class PacketReader {
     private ByteBuffer bb;
-    private byte[] data;
-    
-    private boolean validated;
+
+    private PacketError error;
+    private byte version;
+    private InboundPacketType type;
     private String str;
 
     /**
-     * Initializes a PacketReader, wrapping around a receive buffer
+     * Initializes a PacketReader, wrapping around a receive buffer. The buffer isn't copied, so the
+     * reader is only valid for as long as the buffer holds the packet.
      *
-     * @param receive the buffer to wrap around
+     * @param receive the buffer to wrap around, with the packet at index 0
+     * @param len the length of the packet
      */
     public PacketReader(byte[] receive, int len) {
-        data = Arrays.copyOfRange(receive, 0, len);
-        bb = ByteBuffer.wrap(data);
+        bb = ByteBuffer.wrap(receive, 0, len).slice();
         bb.order(ByteOrder.LITTLE_ENDIAN);
     }
 
-    public boolean validate() {
-    	if(validated) return true;
-        if (data.length < 5) return false;
-        if (!parseHeader()) return false;
-
-        bb.mark();
-
-        try {
-            InboundPacketType type = parseType();
-            StringBuilder sb = new StringBuilder();
-            Map<String, Object> args = new LinkedHashMap<>();
-            sb.append(type);
-            sb.append(" ");
-            
-            switch (type) {
-                case HEARTBEAT:
-                    {
-                        args.put("uuid", getUUID());
-                    }
-                    break;
-                case LOGIN:
-                    {
-                        bb.reset();
-                    }
-                    break;
-                case PLAYER_CHANGE_ROOM:
-                    {
-                    	args.put("uuid", getUUID());
-                    	args.put("room", getShort());
-                        args.put("sprite", getShort());
-                        args.put("frame", getShort());
-                        args.put("coords", new Pair<Float, Float>(getFloat(), getFloat()));
-                    }
-                    break;
-                case PLAYER_VISUAL_UPDATE:
-                    {
-                    	args.put("uuid", getUUID());
-                        args.put("sprite", getShort());
-                        args.put("frame", getShort());
-                        args.put("coords", new Pair<Float, Float>(getFloat(), getFloat()));
-                    }
-                    break;
-                default:
-                	{
-                		byte[] contents = Arrays.copyOfRange(data, 4, data.length);
-                		args.put("contents", Util.stringify(contents, contents.length));
-                	}
-            }
-            sb.append(args.entrySet());
-            str = sb.toString();
-            bb.reset();
-        } catch (Throwable e) {
-            return false;
-        }
-        validated = true;
-        return true;
-    }
-
     /**
-     * Parses the header of a packet, returning whether it is valid
+     * Checks the header of the packet and that it holds all the fields of its type. Only bounds are
+     * compared, so this never throws and costs the same however the packet is malformed. The
+     * result is kept, and once valid the reader is positioned after the header.
      *
-     * @return true if valid, false otherwise
+     * @return {@link PacketError#NONE}, or what is wrong with the packet
      */
-    public boolean parseHeader() {
-    	if (bb.capacity() < 5) return false;
-        if (bb.get() != 'U') return false;
-        if (bb.get() != 'T') return false;
-        if (bb.get() != 'O') return false;
-        if (bb.get() != PacketBuilder.PROTOCOL_VERSION) return false;
-        return true;
+    public PacketError check() {
+        if (error == null) {
+            error = this.checkPacket();
+            if (error == PacketError.NONE) bb.position(5);
+        }
+        return error;
     }
 
-    /**
-     * Parses the type of the packet, and returns the enum value
-     *
-     * @return the packet type enum
-     */
-    public InboundPacketType parseType() {
-        return InboundPacketType.fromValue(bb.get());
+    private PacketError checkPacket() {
+        if (bb.limit() < 5) return PacketError.NO_HEADER;
+        if (bb.get(0) != 'U' || bb.get(1) != 'T' || bb.get(2) != 'O') return PacketError.BAD_MAGIC;
+        version = bb.get(3);
+        if (version < 0 || version > Capabilities.MAX_PROTOCOL_VERSION) return PacketError.BAD_VERSION;
+        type = InboundPacketType.find(bb.get(4));
+        if (type == null) return PacketError.UNKNOWN_TYPE;
+        return PacketSchema.check(type, bb);
+    }
+
+    /** @return whether the packet is valid; see {@link #check} */
+    public boolean validate() {
+        return this.check() == PacketError.NONE;
+    }
+
+    /** @return the protocol version in the packet's header, once checked */
+    public byte getVersion() {
+        return version;
+    }
+
+    /** @return the type of the packet, once checked; null if it has none */
+    public InboundPacketType getType() {
+        return type;
     }
 
     /** Returns the next byte in the packet and advances */
@@ -140,6 +97,19 @@ public class PacketReader {
         return bb.getDouble();
     }
 
+    /**
+     * Returns the whole packet, for the accessors of {@link PacketSchema.Inbound}, which read at
+     * fixed offsets regardless of the position
+     */
+    public ByteBuffer getBuffer() {
+        return bb;
+    }
+
+    /** Returns the number of bytes left in the packet */
+    public int remaining() {
+        return bb.remaining();
+    }
+
     /** Returns the next UUID (128-bit) in the packet and advances */
     public UUID getUUID() {
         long mostSignificantBits = bb.getLong();
@@ -150,8 +120,10 @@ public class PacketReader {
     @Override
     public String toString() {
     	if(str == null) {
-    		if(!this.validate()) {
-    			str = Util.stringify(data, data.length);
+    		if(this.validate()) {
+    			str = PacketSchema.describe(type, bb);
+    		} else {
+    			str = error + " " + Util.stringify(bb.array(), bb.limit());
     		}
     	}
     	return str;
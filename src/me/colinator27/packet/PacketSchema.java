@@ -0,0 +1,935 @@
+// Generated by tools/GeneratePackets.java from protocol/packets.schema; do not edit.
+package me.colinator27.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The layout of every packet. Each packet's class has the offset of each field from the start of
+ * the packet, accessors reading a field from a little-endian buffer holding the packet at index
+ * 0, the sizes packets of the type may have, and, for fixed-size packets sent to clients, an
+ * encoder.
+ */
+public final class PacketSchema {
+    /** The largest packet, the size of a PacketBuilder buffer */
+    public static final int MAX_PACKET = 4096;
+
+    private PacketSchema() {}
+
+    /**
+     * Checks that a packet of a type holds all of its fields (it may be longer), so its accessors
+     * can't read past its end. Never throws, whatever the packet holds.
+     *
+     * @param bb the packet, at index 0 up to the limit
+     * @return {@link PacketError#NONE}, or what is wrong with the packet
+     */
+    public static PacketError check(InboundPacketType type, ByteBuffer bb) {
+        int len = bb.limit();
+        if (len > MAX_PACKET) return PacketError.TOO_LONG;
+        switch (type) {
+            case LOGIN:
+                if (len < Inbound.Login.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case HEARTBEAT:
+                if (len < Inbound.Heartbeat.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case RESUME:
+                if (len < Inbound.Resume.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case SPECTATE:
+                if (len < Inbound.Spectate.MIN_SIZE) return PacketError.TOO_SHORT;
+                if (Inbound.Spectate.count(bb) < 0
+                        || len < Inbound.Spectate.ROOMS + Inbound.Spectate.count(bb) * Inbound.Spectate.ROOMS_ENTRY_SIZE) {
+                    return PacketError.BAD_COUNT;
+                }
+                return PacketError.NONE;
+            case PLAYER_CHANGE_ROOM:
+                if (len < Inbound.PlayerChangeRoom.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case PLAYER_VISUAL_UPDATE:
+                if (len < Inbound.PlayerVisualUpdate.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            default:
+                return PacketError.UNKNOWN_TYPE;
+        }
+    }
+
+    /** @return a packet in human-readable form, e.g. for logs; the packet must pass {@link #check} */
+    public static String describe(InboundPacketType type, ByteBuffer bb) {
+        StringBuilder sb = new StringBuilder(type.toString()).append(" [");
+        switch (type) {
+            case LOGIN:
+                Inbound.Login.describe(bb, sb);
+                break;
+            case HEARTBEAT:
+                Inbound.Heartbeat.describe(bb, sb);
+                break;
+            case RESUME:
+                Inbound.Resume.describe(bb, sb);
+                break;
+            case SPECTATE:
+                Inbound.Spectate.describe(bb, sb);
+                break;
+            case PLAYER_CHANGE_ROOM:
+                Inbound.PlayerChangeRoom.describe(bb, sb);
+                break;
+            case PLAYER_VISUAL_UPDATE:
+                Inbound.PlayerVisualUpdate.describe(bb, sb);
+                break;
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Checks that a packet of a type holds all of its fields (it may be longer), so its accessors
+     * can't read past its end. Never throws, whatever the packet holds.
+     *
+     * @param bb the packet, at index 0 up to the limit
+     * @return {@link PacketError#NONE}, or what is wrong with the packet
+     */
+    public static PacketError check(OutboundPacketType type, ByteBuffer bb) {
+        int len = bb.limit();
+        if (len > MAX_PACKET) return PacketError.TOO_LONG;
+        switch (type) {
+            case SESSION:
+                if (len < Outbound.Session.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case HEARTBEAT:
+                if (len < Outbound.Heartbeat.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case REDIRECT:
+                if (len < Outbound.Redirect.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case PROFILE:
+                if (len < Outbound.Profile.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case COMPRESSED:
+                if (len < Outbound.Compressed.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case SPECTATE:
+                if (len < Outbound.Spectate.MIN_SIZE) return PacketError.TOO_SHORT;
+                if (Outbound.Spectate.count(bb) < 0
+                        || len < Outbound.Spectate.ROOMS + Outbound.Spectate.count(bb) * Outbound.Spectate.ROOMS_ENTRY_SIZE) {
+                    return PacketError.BAD_COUNT;
+                }
+                return PacketError.NONE;
+            case PLAYER_JOIN_ROOM:
+                if (len < Outbound.PlayerJoinRoom.MIN_SIZE) return PacketError.TOO_SHORT;
+                if (Outbound.PlayerJoinRoom.count(bb) < 0
+                        || len < Outbound.PlayerJoinRoom.PLAYERS + Outbound.PlayerJoinRoom.count(bb) * Outbound.PlayerJoinRoom.PLAYERS_ENTRY_SIZE) {
+                    return PacketError.BAD_COUNT;
+                }
+                return PacketError.NONE;
+            case PLAYER_LEAVE_ROOM:
+                if (len < Outbound.PlayerLeaveRoom.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case PLAYER_VISUAL_UPDATE:
+                if (len < Outbound.PlayerVisualUpdate.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case RATELIMIT_WARNING:
+                if (len < Outbound.RatelimitWarning.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case FORCE_TELEPORT:
+                if (len < Outbound.ForceTeleport.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            case KICK_MESSAGE:
+                if (len < Outbound.KickMessage.MIN_SIZE) return PacketError.TOO_SHORT;
+                return PacketError.NONE;
+            default:
+                return PacketError.UNKNOWN_TYPE;
+        }
+    }
+
+    /** @return a packet in human-readable form, e.g. for logs; the packet must pass {@link #check} */
+    public static String describe(OutboundPacketType type, ByteBuffer bb) {
+        StringBuilder sb = new StringBuilder(type.toString()).append(" [");
+        switch (type) {
+            case SESSION:
+                Outbound.Session.describe(bb, sb);
+                break;
+            case HEARTBEAT:
+                Outbound.Heartbeat.describe(bb, sb);
+                break;
+            case REDIRECT:
+                Outbound.Redirect.describe(bb, sb);
+                break;
+            case PROFILE:
+                Outbound.Profile.describe(bb, sb);
+                break;
+            case COMPRESSED:
+                Outbound.Compressed.describe(bb, sb);
+                break;
+            case SPECTATE:
+                Outbound.Spectate.describe(bb, sb);
+                break;
+            case PLAYER_JOIN_ROOM:
+                Outbound.PlayerJoinRoom.describe(bb, sb);
+                break;
+            case PLAYER_LEAVE_ROOM:
+                Outbound.PlayerLeaveRoom.describe(bb, sb);
+                break;
+            case PLAYER_VISUAL_UPDATE:
+                Outbound.PlayerVisualUpdate.describe(bb, sb);
+                break;
+            case RATELIMIT_WARNING:
+                Outbound.RatelimitWarning.describe(bb, sb);
+                break;
+            case FORCE_TELEPORT:
+                Outbound.ForceTeleport.describe(bb, sb);
+                break;
+            case KICK_MESSAGE:
+                Outbound.KickMessage.describe(bb, sb);
+                break;
+        }
+        return sb.append(']').toString();
+    }
+
+    private static void append(StringBuilder sb, String name, Object value) {
+        if (sb.charAt(sb.length() - 1) != '[') sb.append(", ");
+        sb.append(name).append('=').append(value);
+    }
+
+    private static void header(ByteBuffer out, int at, byte type) {
+        out.put(at, (byte) 'U').put(at + 1, (byte) 'T').put(at + 2, (byte) 'O');
+        out.put(at + 3, PacketBuilder.PROTOCOL_VERSION).put(at + 4, type);
+    }
+
+    private static String string(ByteBuffer bb, int offset) {
+        int end = offset;
+        while (end < bb.limit() && bb.get(end) != 0) end++;
+        byte[] bytes = new byte[end - offset];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = bb.get(offset + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Packets from clients */
+    public static final class Inbound {
+        private Inbound() {}
+
+        /** LOGIN (1) */
+        public static final class Login {
+            public static final byte TYPE = (byte) 1;
+            public static final int PROFILE = 5;
+            public static final int CAPS = 21;
+            public static final int MIN_SIZE = 5;
+            public static final int MAX_SIZE = 25;
+
+            private Login() {}
+
+            public static boolean hasProfile(ByteBuffer bb) {
+                return bb.limit() >= PROFILE + 16;
+            }
+
+            public static UUID profile(ByteBuffer bb) {
+                return new UUID(bb.getLong(PROFILE), bb.getLong(PROFILE + 8));
+            }
+
+            public static boolean hasCaps(ByteBuffer bb) {
+                return bb.limit() >= CAPS + 4;
+            }
+
+            public static int caps(ByteBuffer bb) {
+                return bb.getInt(CAPS);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                if (hasProfile(bb)) append(sb, "profile", profile(bb));
+                if (hasCaps(bb)) append(sb, "caps", caps(bb));
+            }
+        }
+
+        /** HEARTBEAT (2) */
+        public static final class Heartbeat {
+            public static final byte TYPE = (byte) 2;
+            public static final int UUID = 5;
+            public static final int MIN_SIZE = 21;
+            public static final int MAX_SIZE = 21;
+
+            private Heartbeat() {}
+
+            public static UUID uuid(ByteBuffer bb) {
+                return new UUID(bb.getLong(UUID), bb.getLong(UUID + 8));
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "uuid", uuid(bb));
+            }
+        }
+
+        /** RESUME (3) */
+        public static final class Resume {
+            public static final byte TYPE = (byte) 3;
+            public static final int UUID = 5;
+            public static final int CAPS = 21;
+            public static final int MIN_SIZE = 21;
+            public static final int MAX_SIZE = 25;
+
+            private Resume() {}
+
+            public static UUID uuid(ByteBuffer bb) {
+                return new UUID(bb.getLong(UUID), bb.getLong(UUID + 8));
+            }
+
+            public static boolean hasCaps(ByteBuffer bb) {
+                return bb.limit() >= CAPS + 4;
+            }
+
+            public static int caps(ByteBuffer bb) {
+                return bb.getInt(CAPS);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "uuid", uuid(bb));
+                if (hasCaps(bb)) append(sb, "caps", caps(bb));
+            }
+        }
+
+        /** SPECTATE (4) */
+        public static final class Spectate {
+            public static final byte TYPE = (byte) 4;
+            public static final int CAPS = 5;
+            public static final int COUNT = 9;
+            public static final int ROOMS = 11;
+            public static final int ROOMS_ENTRY_SIZE = 2;
+            public static final int ROOMS_ID = 0;
+            public static final int MIN_SIZE = 11;
+            public static final int MAX_SIZE = MAX_PACKET;
+
+            private Spectate() {}
+
+            public static int caps(ByteBuffer bb) {
+                return bb.getInt(CAPS);
+            }
+
+            public static short count(ByteBuffer bb) {
+                return bb.getShort(COUNT);
+            }
+
+            public static short roomsId(ByteBuffer bb, int index) {
+                return bb.getShort(ROOMS + index * ROOMS_ENTRY_SIZE + ROOMS_ID);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "caps", caps(bb));
+                append(sb, "count", count(bb));
+                StringBuilder entries = new StringBuilder("[");
+                for (int i = 0; i < count(bb); i++) {
+                    if (i > 0) entries.append(", ");
+                    entries.append('[');
+                    append(entries, "id", roomsId(bb, i));
+                    entries.append(']');
+                }
+                append(sb, "rooms", entries.append(']'));
+            }
+        }
+
+        /** PLAYER_CHANGE_ROOM (10) */
+        public static final class PlayerChangeRoom {
+            public static final byte TYPE = (byte) 10;
+            public static final int UUID = 5;
+            public static final int ROOM = 21;
+            public static final int SPRITE = 23;
+            public static final int FRAME = 25;
+            public static final int X = 27;
+            public static final int Y = 31;
+            public static final int MIN_SIZE = 35;
+            public static final int MAX_SIZE = 35;
+
+            private PlayerChangeRoom() {}
+
+            public static UUID uuid(ByteBuffer bb) {
+                return new UUID(bb.getLong(UUID), bb.getLong(UUID + 8));
+            }
+
+            public static short room(ByteBuffer bb) {
+                return bb.getShort(ROOM);
+            }
+
+            public static short sprite(ByteBuffer bb) {
+                return bb.getShort(SPRITE);
+            }
+
+            public static short frame(ByteBuffer bb) {
+                return bb.getShort(FRAME);
+            }
+
+            public static float x(ByteBuffer bb) {
+                return bb.getFloat(X);
+            }
+
+            public static float y(ByteBuffer bb) {
+                return bb.getFloat(Y);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "uuid", uuid(bb));
+                append(sb, "room", room(bb));
+                append(sb, "sprite", sprite(bb));
+                append(sb, "frame", frame(bb));
+                append(sb, "x", x(bb));
+                append(sb, "y", y(bb));
+            }
+        }
+
+        /** PLAYER_VISUAL_UPDATE (11) */
+        public static final class PlayerVisualUpdate {
+            public static final byte TYPE = (byte) 11;
+            public static final int UUID = 5;
+            public static final int SPRITE = 21;
+            public static final int FRAME = 23;
+            public static final int X = 25;
+            public static final int Y = 29;
+            public static final int TIME = 33;
+            public static final int MIN_SIZE = 33;
+            public static final int MAX_SIZE = 37;
+
+            private PlayerVisualUpdate() {}
+
+            public static UUID uuid(ByteBuffer bb) {
+                return new UUID(bb.getLong(UUID), bb.getLong(UUID + 8));
+            }
+
+            public static short sprite(ByteBuffer bb) {
+                return bb.getShort(SPRITE);
+            }
+
+            public static short frame(ByteBuffer bb) {
+                return bb.getShort(FRAME);
+            }
+
+            public static float x(ByteBuffer bb) {
+                return bb.getFloat(X);
+            }
+
+            public static float y(ByteBuffer bb) {
+                return bb.getFloat(Y);
+            }
+
+            public static boolean hasTime(ByteBuffer bb) {
+                return bb.limit() >= TIME + 4;
+            }
+
+            public static int time(ByteBuffer bb) {
+                return bb.getInt(TIME);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "uuid", uuid(bb));
+                append(sb, "sprite", sprite(bb));
+                append(sb, "frame", frame(bb));
+                append(sb, "x", x(bb));
+                append(sb, "y", y(bb));
+                if (hasTime(bb)) append(sb, "time", time(bb));
+            }
+        }
+    }
+
+    /** Packets to clients */
+    public static final class Outbound {
+        private Outbound() {}
+
+        /** SESSION (1) */
+        public static final class Session {
+            public static final byte TYPE = (byte) 1;
+            public static final int ID = 5;
+            public static final int UUID = 9;
+            public static final int VERSION = 25;
+            public static final int CAPS = 26;
+            public static final int MIN_SIZE = 25;
+            public static final int MAX_SIZE = 30;
+
+            private Session() {}
+
+            public static int id(ByteBuffer bb) {
+                return bb.getInt(ID);
+            }
+
+            public static UUID uuid(ByteBuffer bb) {
+                return new UUID(bb.getLong(UUID), bb.getLong(UUID + 8));
+            }
+
+            public static boolean hasVersion(ByteBuffer bb) {
+                return bb.limit() >= VERSION + 1;
+            }
+
+            public static byte version(ByteBuffer bb) {
+                return bb.get(VERSION);
+            }
+
+            public static boolean hasCaps(ByteBuffer bb) {
+                return bb.limit() >= CAPS + 4;
+            }
+
+            public static int caps(ByteBuffer bb) {
+                return bb.getInt(CAPS);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "id", id(bb));
+                append(sb, "uuid", uuid(bb));
+                if (hasVersion(bb)) append(sb, "version", version(bb));
+                if (hasCaps(bb)) append(sb, "caps", caps(bb));
+            }
+        }
+
+        /** HEARTBEAT (2) */
+        public static final class Heartbeat {
+            public static final byte TYPE = (byte) 2;
+            public static final int MIN_SIZE = 5;
+            public static final int MAX_SIZE = 5;
+            public static final int SIZE = 5;
+
+            private Heartbeat() {}
+
+            /** Writes the packet at the buffer's position, and advances past it */
+            public static void encode(ByteBuffer out) {
+                int at = out.position();
+                header(out, at, TYPE);
+                out.position(at + SIZE);
+            }
+
+            /** @return the packet in direct memory, to be sent to many connections, see {@link SharedBuffers} */
+            public static ByteBuffer shared() {
+                ByteBuffer out = SharedBuffers.allocate(SIZE);
+                encode(out);
+                return SharedBuffers.seal(out);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+            }
+        }
+
+        /** REDIRECT (3) */
+        public static final class Redirect {
+            public static final byte TYPE = (byte) 3;
+            public static final int PORT = 5;
+            public static final int TOKEN = 9;
+            public static final int MIN_SIZE = 25;
+            public static final int MAX_SIZE = 25;
+            public static final int SIZE = 25;
+
+            private Redirect() {}
+
+            public static int port(ByteBuffer bb) {
+                return bb.getInt(PORT);
+            }
+
+            public static UUID token(ByteBuffer bb) {
+                return new UUID(bb.getLong(TOKEN), bb.getLong(TOKEN + 8));
+            }
+
+            /** Writes the packet at the buffer's position, and advances past it */
+            public static void encode(ByteBuffer out, int port, UUID token) {
+                int at = out.position();
+                header(out, at, TYPE);
+                out.putInt(at + PORT, port);
+                out.putLong(at + TOKEN, token.getMostSignificantBits()).putLong(at + TOKEN + 8, token.getLeastSignificantBits());
+                out.position(at + SIZE);
+            }
+
+            /** @return the packet in direct memory, to be sent to many connections, see {@link SharedBuffers} */
+            public static ByteBuffer shared(int port, UUID token) {
+                ByteBuffer out = SharedBuffers.allocate(SIZE);
+                encode(out, port, token);
+                return SharedBuffers.seal(out);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "port", port(bb));
+                append(sb, "token", token(bb));
+            }
+        }
+
+        /** PROFILE (4) */
+        public static final class Profile {
+            public static final byte TYPE = (byte) 4;
+            public static final int ROOM = 5;
+            public static final int SPRITE = 9;
+            public static final int FRAME = 11;
+            public static final int X = 13;
+            public static final int Y = 17;
+            public static final int MIN_SIZE = 21;
+            public static final int MAX_SIZE = 21;
+            public static final int SIZE = 21;
+
+            private Profile() {}
+
+            public static int room(ByteBuffer bb) {
+                return bb.getInt(ROOM);
+            }
+
+            public static short sprite(ByteBuffer bb) {
+                return bb.getShort(SPRITE);
+            }
+
+            public static short frame(ByteBuffer bb) {
+                return bb.getShort(FRAME);
+            }
+
+            public static float x(ByteBuffer bb) {
+                return bb.getFloat(X);
+            }
+
+            public static float y(ByteBuffer bb) {
+                return bb.getFloat(Y);
+            }
+
+            /** Writes the packet at the buffer's position, and advances past it */
+            public static void encode(ByteBuffer out, int room, short sprite, short frame, float x, float y) {
+                int at = out.position();
+                header(out, at, TYPE);
+                out.putInt(at + ROOM, room);
+                out.putShort(at + SPRITE, sprite);
+                out.putShort(at + FRAME, frame);
+                out.putFloat(at + X, x);
+                out.putFloat(at + Y, y);
+                out.position(at + SIZE);
+            }
+
+            /** @return the packet in direct memory, to be sent to many connections, see {@link SharedBuffers} */
+            public static ByteBuffer shared(int room, short sprite, short frame, float x, float y) {
+                ByteBuffer out = SharedBuffers.allocate(SIZE);
+                encode(out, room, sprite, frame, x, y);
+                return SharedBuffers.seal(out);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "room", room(bb));
+                append(sb, "sprite", sprite(bb));
+                append(sb, "frame", frame(bb));
+                append(sb, "x", x(bb));
+                append(sb, "y", y(bb));
+            }
+        }
+
+        /** COMPRESSED (5) */
+        public static final class Compressed {
+            public static final byte TYPE = (byte) 5;
+            public static final int LENGTH = 5;
+            public static final int DATA = 9;
+            public static final int MIN_SIZE = 9;
+            public static final int MAX_SIZE = MAX_PACKET;
+
+            private Compressed() {}
+
+            public static int length(ByteBuffer bb) {
+                return bb.getInt(LENGTH);
+            }
+
+            public static int dataLength(ByteBuffer bb) {
+                return bb.limit() - DATA;
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "length", length(bb));
+                append(sb, "data", dataLength(bb) + " bytes");
+            }
+        }
+
+        /** SPECTATE (6) */
+        public static final class Spectate {
+            public static final byte TYPE = (byte) 6;
+            public static final int CAPS = 5;
+            public static final int COUNT = 9;
+            public static final int ROOMS = 11;
+            public static final int ROOMS_ENTRY_SIZE = 2;
+            public static final int ROOMS_ID = 0;
+            public static final int MIN_SIZE = 11;
+            public static final int MAX_SIZE = MAX_PACKET;
+
+            private Spectate() {}
+
+            public static int caps(ByteBuffer bb) {
+                return bb.getInt(CAPS);
+            }
+
+            public static short count(ByteBuffer bb) {
+                return bb.getShort(COUNT);
+            }
+
+            public static short roomsId(ByteBuffer bb, int index) {
+                return bb.getShort(ROOMS + index * ROOMS_ENTRY_SIZE + ROOMS_ID);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "caps", caps(bb));
+                append(sb, "count", count(bb));
+                StringBuilder entries = new StringBuilder("[");
+                for (int i = 0; i < count(bb); i++) {
+                    if (i > 0) entries.append(", ");
+                    entries.append('[');
+                    append(entries, "id", roomsId(bb, i));
+                    entries.append(']');
+                }
+                append(sb, "rooms", entries.append(']'));
+            }
+        }
+
+        /** PLAYER_JOIN_ROOM (10) */
+        public static final class PlayerJoinRoom {
+            public static final byte TYPE = (byte) 10;
+            public static final int ROOM = 5;
+            public static final int COUNT = 9;
+            public static final int PLAYERS = 11;
+            public static final int PLAYERS_ENTRY_SIZE = 16;
+            public static final int PLAYERS_ID = 0;
+            public static final int PLAYERS_SPRITE = 4;
+            public static final int PLAYERS_FRAME = 6;
+            public static final int PLAYERS_X = 8;
+            public static final int PLAYERS_Y = 12;
+            public static final int MIN_SIZE = 11;
+            public static final int MAX_SIZE = MAX_PACKET;
+
+            private PlayerJoinRoom() {}
+
+            public static int room(ByteBuffer bb) {
+                return bb.getInt(ROOM);
+            }
+
+            public static short count(ByteBuffer bb) {
+                return bb.getShort(COUNT);
+            }
+
+            public static int playersId(ByteBuffer bb, int index) {
+                return bb.getInt(PLAYERS + index * PLAYERS_ENTRY_SIZE + PLAYERS_ID);
+            }
+
+            public static short playersSprite(ByteBuffer bb, int index) {
+                return bb.getShort(PLAYERS + index * PLAYERS_ENTRY_SIZE + PLAYERS_SPRITE);
+            }
+
+            public static short playersFrame(ByteBuffer bb, int index) {
+                return bb.getShort(PLAYERS + index * PLAYERS_ENTRY_SIZE + PLAYERS_FRAME);
+            }
+
+            public static float playersX(ByteBuffer bb, int index) {
+                return bb.getFloat(PLAYERS + index * PLAYERS_ENTRY_SIZE + PLAYERS_X);
+            }
+
+            public static float playersY(ByteBuffer bb, int index) {
+                return bb.getFloat(PLAYERS + index * PLAYERS_ENTRY_SIZE + PLAYERS_Y);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "room", room(bb));
+                append(sb, "count", count(bb));
+                StringBuilder entries = new StringBuilder("[");
+                for (int i = 0; i < count(bb); i++) {
+                    if (i > 0) entries.append(", ");
+                    entries.append('[');
+                    append(entries, "id", playersId(bb, i));
+                    append(entries, "sprite", playersSprite(bb, i));
+                    append(entries, "frame", playersFrame(bb, i));
+                    append(entries, "x", playersX(bb, i));
+                    append(entries, "y", playersY(bb, i));
+                    entries.append(']');
+                }
+                append(sb, "players", entries.append(']'));
+            }
+        }
+
+        /** PLAYER_LEAVE_ROOM (11) */
+        public static final class PlayerLeaveRoom {
+            public static final byte TYPE = (byte) 11;
+            public static final int ROOM = 5;
+            public static final int ID = 9;
+            public static final int MIN_SIZE = 13;
+            public static final int MAX_SIZE = 13;
+            public static final int SIZE = 13;
+
+            private PlayerLeaveRoom() {}
+
+            public static int room(ByteBuffer bb) {
+                return bb.getInt(ROOM);
+            }
+
+            public static int id(ByteBuffer bb) {
+                return bb.getInt(ID);
+            }
+
+            /** Writes the packet at the buffer's position, and advances past it */
+            public static void encode(ByteBuffer out, int room, int id) {
+                int at = out.position();
+                header(out, at, TYPE);
+                out.putInt(at + ROOM, room);
+                out.putInt(at + ID, id);
+                out.position(at + SIZE);
+            }
+
+            /** @return the packet in direct memory, to be sent to many connections, see {@link SharedBuffers} */
+            public static ByteBuffer shared(int room, int id) {
+                ByteBuffer out = SharedBuffers.allocate(SIZE);
+                encode(out, room, id);
+                return SharedBuffers.seal(out);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "room", room(bb));
+                append(sb, "id", id(bb));
+            }
+        }
+
+        /** PLAYER_VISUAL_UPDATE (12) */
+        public static final class PlayerVisualUpdate {
+            public static final byte TYPE = (byte) 12;
+            public static final int TIMESTAMP = 5;
+            public static final int ROOM = 13;
+            public static final int ID = 17;
+            public static final int SPRITE = 21;
+            public static final int FRAME = 23;
+            public static final int X = 25;
+            public static final int Y = 29;
+            public static final int MIN_SIZE = 33;
+            public static final int MAX_SIZE = 33;
+            public static final int SIZE = 33;
+
+            private PlayerVisualUpdate() {}
+
+            public static long timestamp(ByteBuffer bb) {
+                return bb.getLong(TIMESTAMP);
+            }
+
+            public static int room(ByteBuffer bb) {
+                return bb.getInt(ROOM);
+            }
+
+            public static int id(ByteBuffer bb) {
+                return bb.getInt(ID);
+            }
+
+            public static short sprite(ByteBuffer bb) {
+                return bb.getShort(SPRITE);
+            }
+
+            public static short frame(ByteBuffer bb) {
+                return bb.getShort(FRAME);
+            }
+
+            public static float x(ByteBuffer bb) {
+                return bb.getFloat(X);
+            }
+
+            public static float y(ByteBuffer bb) {
+                return bb.getFloat(Y);
+            }
+
+            /** Writes the packet at the buffer's position, and advances past it */
+            public static void encode(ByteBuffer out, long timestamp, int room, int id, short sprite, short frame, float x, float y) {
+                int at = out.position();
+                header(out, at, TYPE);
+                out.putLong(at + TIMESTAMP, timestamp);
+                out.putInt(at + ROOM, room);
+                out.putInt(at + ID, id);
+                out.putShort(at + SPRITE, sprite);
+                out.putShort(at + FRAME, frame);
+                out.putFloat(at + X, x);
+                out.putFloat(at + Y, y);
+                out.position(at + SIZE);
+            }
+
+            /** @return the packet in direct memory, to be sent to many connections, see {@link SharedBuffers} */
+            public static ByteBuffer shared(long timestamp, int room, int id, short sprite, short frame, float x, float y) {
+                ByteBuffer out = SharedBuffers.allocate(SIZE);
+                encode(out, timestamp, room, id, sprite, frame, x, y);
+                return SharedBuffers.seal(out);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "timestamp", timestamp(bb));
+                append(sb, "room", room(bb));
+                append(sb, "id", id(bb));
+                append(sb, "sprite", sprite(bb));
+                append(sb, "frame", frame(bb));
+                append(sb, "x", x(bb));
+                append(sb, "y", y(bb));
+            }
+        }
+
+        /** RATELIMIT_WARNING (253) */
+        public static final class RatelimitWarning {
+            public static final byte TYPE = (byte) 253;
+            public static final int MIN_SIZE = 5;
+            public static final int MAX_SIZE = 5;
+            public static final int SIZE = 5;
+
+            private RatelimitWarning() {}
+
+            /** Writes the packet at the buffer's position, and advances past it */
+            public static void encode(ByteBuffer out) {
+                int at = out.position();
+                header(out, at, TYPE);
+                out.position(at + SIZE);
+            }
+
+            /** @return the packet in direct memory, to be sent to many connections, see {@link SharedBuffers} */
+            public static ByteBuffer shared() {
+                ByteBuffer out = SharedBuffers.allocate(SIZE);
+                encode(out);
+                return SharedBuffers.seal(out);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+            }
+        }
+
+        /** FORCE_TELEPORT (254) */
+        public static final class ForceTeleport {
+            public static final byte TYPE = (byte) 254;
+            public static final int X = 5;
+            public static final int Y = 9;
+            public static final int MIN_SIZE = 13;
+            public static final int MAX_SIZE = 13;
+            public static final int SIZE = 13;
+
+            private ForceTeleport() {}
+
+            public static float x(ByteBuffer bb) {
+                return bb.getFloat(X);
+            }
+
+            public static float y(ByteBuffer bb) {
+                return bb.getFloat(Y);
+            }
+
+            /** Writes the packet at the buffer's position, and advances past it */
+            public static void encode(ByteBuffer out, float x, float y) {
+                int at = out.position();
+                header(out, at, TYPE);
+                out.putFloat(at + X, x);
+                out.putFloat(at + Y, y);
+                out.position(at + SIZE);
+            }
+
+            /** @return the packet in direct memory, to be sent to many connections, see {@link SharedBuffers} */
+            public static ByteBuffer shared(float x, float y) {
+                ByteBuffer out = SharedBuffers.allocate(SIZE);
+                encode(out, x, y);
+                return SharedBuffers.seal(out);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "x", x(bb));
+                append(sb, "y", y(bb));
+            }
+        }
+
+        /** KICK_MESSAGE (255) */
+        public static final class KickMessage {
+            public static final byte TYPE = (byte) 255;
+            public static final int MESSAGE = 5;
+            public static final int MIN_SIZE = 6;
+            public static final int MAX_SIZE = MAX_PACKET;
+
+            private KickMessage() {}
+
+            public static String message(ByteBuffer bb) {
+                return string(bb, MESSAGE);
+            }
+
+            static void describe(ByteBuffer bb, StringBuilder sb) {
+                append(sb, "message", message(bb));
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package me.colinator27.packet;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import me.colinator27.Util;
+
+/**
+ * Records the packets of particular connections, for looking into one client without logging every
+ * packet of every client like debug-mode does. Packets matching any of the rules (by player ID,
+ * address or packet type, sampled 1 in N) are copied into a ring buffer of the last {@link
+ * #CAPACITY} traces, which is only turned into text when dumped.
+ *
+ * <p>Without any rules, a packet costs one volatile read. Rules are replaced as a whole, and
+ * traces are written to the ring without locking, so tracing never blocks a connection.
+ */
+public class PacketTracer {
+    /** The number of most recent traces kept */
+    public static final int CAPACITY = 1024;
+
+    /** Which packets to trace */
+    public static class Rule {
+        /** The ID of the rule, to remove it by */
+        public final int id;
+
+        /** The ID of the player to trace, or -1 for any */
+        public final int playerID;
+
+        /** The address to trace, or null for any */
+        public final InetAddress address;
+
+        /** The type of packet to trace, or null for any */
+        public final String type;
+
+        /** Traces 1 in this many matching packets */
+        public final int sample;
+
+        private final InboundPacketType inboundType;
+        private final OutboundPacketType outboundType;
+        private final AtomicLong matched = new AtomicLong();
+
+        Rule(int id, int playerID, InetAddress address, String type, int sample) {
+            if (sample < 1) throw new IllegalArgumentException("sample must be at least 1");
+            this.id = id;
+            this.playerID = playerID;
+            this.address = address;
+            this.type = type == null ? null : type.toUpperCase();
+            this.sample = sample;
+            this.inboundType = this.type == null ? null : typeOf(InboundPacketType.class, this.type);
+            this.outboundType = this.type == null ? null : typeOf(OutboundPacketType.class, this.type);
+            if (this.type != null && inboundType == null && outboundType == null) {
+                throw new IllegalArgumentException("no packet type " + type);
+            }
+        }
+
+        private static <T extends Enum<T>> T typeOf(Class<T> types, String name) {
+            try {
+                return Enum.valueOf(types, name);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /** @return whether the rule picks a packet, counting it towards sampling if it matches */
+        boolean picks(boolean inbound, int playerID, SocketAddress address, byte type) {
+            if (this.playerID != -1 && this.playerID != playerID) return false;
+            if (this.address != null
+                    && !(address instanceof InetSocketAddress
+                            && this.address.equals(((InetSocketAddress) address).getAddress()))) {
+                return false;
+            }
+            if (this.type != null) {
+                if (inbound ? inboundType == null || inboundType.id != type : outboundType == null || outboundType.id != type) {
+                    return false;
+                }
+            }
+            return matched.getAndIncrement() % sample == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + id
+                    + (playerID != -1 ? " id " + playerID : "")
+                    + (address != null ? " ip " + address.getHostAddress() : "")
+                    + (type != null ? " type " + type : "")
+                    + (sample != 1 ? " sample " + sample : "")
+                    + " (" + matched.get() + " matched)";
+        }
+    }
+
+    /** A traced packet */
+    private static class Trace {
+        final long time;
+        final boolean inbound;
+        final int connectionID, playerID;
+        final SocketAddress address;
+        final byte[] bytes;
+
+        Trace(long time, boolean inbound, int connectionID, int playerID, SocketAddress address, byte[] bytes) {
+            this.time = time;
+            this.inbound = inbound;
+            this.connectionID = connectionID;
+            this.playerID = playerID;
+            this.address = address;
+            this.bytes = bytes;
+        }
+    }
+
+    private volatile Rule[] rules = new Rule[0];
+    private int nextRuleID;
+
+    private final AtomicReferenceArray<Trace> traces = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong written = new AtomicLong();
+
+    /** @return whether any rules are set; packets only need to be offered if so */
+    public boolean isActive() {
+        return rules.length > 0;
+    }
+
+    /**
+     * Adds a rule; a packet is traced if any rule picks it
+     *
+     * @param playerID the ID of the player to trace, or -1 for any
+     * @param address the address to trace, or null for any
+     * @param type the name of the packet type to trace (in either direction), or null for any
+     * @param sample traces 1 in this many matching packets
+     * @return the rule
+     * @throws IllegalArgumentException if there is no such packet type, or sample is less than 1
+     */
+    public synchronized Rule addRule(int playerID, InetAddress address, String type, int sample) {
+        Rule rule = new Rule(nextRuleID + 1, playerID, address, type, sample);
+        nextRuleID++;
+        Rule[] updated = Arrays.copyOf(rules, rules.length + 1);
+        updated[rules.length] = rule;
+        rules = updated;
+        return rule;
+    }
+
+    /** @return false if there is no rule with the ID */
+    public synchronized boolean removeRule(int id) {
+        Rule[] updated = Arrays.stream(rules).filter(rule -> rule.id != id).toArray(Rule[]::new);
+        if (updated.length == rules.length) return false;
+        rules = updated;
+        return true;
+    }
+
+    /** Removes every rule, stopping tracing; the traces so far are kept */
+    public synchronized void clearRules() {
+        rules = new Rule[0];
+    }
+
+    public List<Rule> getRules() {
+        return Arrays.asList(rules);
+    }
+
+    /**
+     * Traces a packet if any rule picks it
+     *
+     * @param handler the connection the packet is received or sent on
+     * @param inbound whether the packet was received, rather than sent
+     * @param packet the packet, from its position to its limit; not modified
+     */
+    public void offer(PacketHandler handler, boolean inbound, ByteBuffer packet) {
+        Rule[] rules = this.rules;
+        if (rules.length == 0 || packet.remaining() < 5) return;
+        int playerID = handler.getPlayerID();
+        SocketAddress address = handler.getAddress();
+        byte type = packet.get(packet.position() + 4);
+        for (Rule rule : rules) {
+            if (rule.picks(inbound, playerID, address, type)) {
+                byte[] bytes = new byte[packet.remaining()];
+                packet.duplicate().get(bytes);
+                Trace trace = new Trace(System.currentTimeMillis(), inbound, handler.connectionID, playerID, address, bytes);
+                traces.set((int) (written.getAndIncrement() % CAPACITY), trace);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param count the most traces to return
+     * @return the most recent traces, oldest first, as text
+     */
+    public List<String> dump(int count) {
+        long end = written.get();
+        long start = Math.max(0, Math.max(end - CAPACITY, end - count));
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        List<String> lines = new ArrayList<>();
+        for (long i = start; i < end; i++) {
+            Trace trace = traces.get((int) (i % CAPACITY));
+            // Claimed by a trace that isn't written yet
+            if (trace == null) continue;
+            lines.add(
+                    format.format(new Date(trace.time))
+                            + (trace.inbound ? " recv " : " send ")
+                            + trace.address
+                            + " (connection " + trace.connectionID
+                            + (trace.playerID != -1 ? ", player " + trace.playerID : "")
+                            + ") "
+                            + describe(trace));
+        }
+        return lines;
+    }
+
+    private static String describe(Trace trace) {
+        if (trace.inbound) return new PacketReader(trace.bytes, trace.bytes.length).toString();
+        return Util.stringifyServerPacket(trace.bytes, trace.bytes.length);
+    }
+
+    /** @return the number of packets traced so far, including those no longer kept */
+    public long getTraceCount() {
+        return written.get();
+    }
+}
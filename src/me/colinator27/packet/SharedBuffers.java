@@ -0,0 +1,71 @@
+package me.colinator27.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Copies packets sent to many connections into direct memory once, handing out read-only slices
+ * that every connection queues as is. A heap buffer is copied into a temporary direct buffer by
+ * every write to a socket, so a packet broadcast to a room would otherwise be copied once per
+ * recipient.
+ *
+ * <p>Slices are carved out of slabs of {@link #SLAB_SIZE} bytes, one slab at a time per thread. A
+ * slab is freed by the garbage collector once no queued slice refers to it any longer, so slices
+ * need no explicit release.
+ */
+public class SharedBuffers {
+    /** The size of a slab of direct memory */
+    public static final int SLAB_SIZE = 64 * 1024;
+
+    /** Packets larger than this get a direct buffer of their own, rather than wasting a slab */
+    private static final int MAX_SLICE = SLAB_SIZE / 8;
+
+    private static final ThreadLocal<ByteBuffer> SLABS = new ThreadLocal<>();
+
+    private SharedBuffers() {}
+
+    /**
+     * @param bytes the packet to share
+     * @param len the length of the packet
+     * @return a read-only direct buffer holding the packet, to be queued with {@link
+     *     PacketHandler#sendPacket(ByteBuffer)}
+     */
+    public static ByteBuffer share(byte[] bytes, int len) {
+        ByteBuffer packet = allocate(len);
+        packet.put(bytes, 0, len);
+        return seal(packet);
+    }
+
+    /**
+     * @param len the length of a packet
+     * @return a little-endian direct buffer of that many bytes, to write a packet into and then
+     *     {@link #seal}
+     */
+    public static ByteBuffer allocate(int len) {
+        if (len > MAX_SLICE) return ByteBuffer.allocateDirect(len).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer slab = SLABS.get();
+        if (slab == null || slab.remaining() < len) {
+            slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            SLABS.set(slab);
+        }
+        ByteBuffer slice = slab.slice();
+        slice.limit(len);
+        slab.position(slab.position() + len);
+        return slice.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @param packet a buffer from {@link #allocate}, with the packet written up to its position
+     * @return a read-only view of the packet, to be queued with {@link
+     *     PacketHandler#sendPacket(ByteBuffer)}
+     */
+    public static ByteBuffer seal(ByteBuffer packet) {
+        packet.flip();
+        return packet.asReadOnlyBuffer();
+    }
+
+    /** @see #share(byte[], int) */
+    public static ByteBuffer share(byte[] bytes) {
+        return share(bytes, bytes.length);
+    }
+}
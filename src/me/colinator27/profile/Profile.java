@@ -0,0 +1,37 @@
+package me.colinator27.profile;
+
+import java.util.UUID;
+
+/** Where a player last was, kept across sessions under the player's stable profile key */
+public class Profile {
+    /** The stable key identifying the player, chosen by its client */
+    public final UUID key;
+
+    /** The time (in ms) the profile was saved */
+    public final long savedTime;
+
+    /** The last GameMaker room index of the player */
+    public final int room;
+
+    /** The last sprite index of the player */
+    public final int spriteIndex;
+
+    /** The last image index of the player */
+    public final int imageIndex;
+
+    /** The last X coordinate of the player */
+    public final float x;
+
+    /** The last Y coordinate of the player */
+    public final float y;
+
+    public Profile(UUID key, long savedTime, int room, int spriteIndex, int imageIndex, float x, float y) {
+        this.key = key;
+        this.savedTime = savedTime;
+        this.room = room;
+        this.spriteIndex = spriteIndex;
+        this.imageIndex = imageIndex;
+        this.x = x;
+        this.y = y;
+    }
+}
@@ -0,0 +1,371 @@
+package me.colinator27.profile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import me.colinator27.Log;
+
+/**
+ * Keeps player profiles on local disk, in an append-only log plus a compacted snapshot. Only the
+ * location of each profile is held in memory; profiles themselves are read when their players log
+ * in, and the most recently used ones are cached.
+ *
+ * <p>All file access happens on a single background thread: saves are queued and written out
+ * (coalesced per player) every {@link #FLUSH_INTERVAL} ms, and cache misses are read there and
+ * handed to a callback, so the packet path never touches disk. Once the log holds more records
+ * than there are profiles, its latest records are folded into a new snapshot, which replaces the
+ * old one atomically before the log is emptied.
+ *
+ * <p>Both files start with {@link #MAGIC} and the format version, followed by fixed-size records
+ * of: key (two longs), saved time (long), room (int), sprite index (short), image index (short),
+ * X and Y (floats), and a CRC32 of the rest of the record (int). A torn record at the end of the
+ * log (from a crash mid-write) is dropped on startup.
+ */
+public class ProfileStore {
+    public static final byte[] MAGIC = {'U', 'T', 'O', 'P', 'R', 'F'};
+    public static final byte VERSION = 1;
+
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+    private static final int RECORD_SIZE = 16 + 8 + 4 + 2 + 2 + 4 + 4 + 4;
+
+    /** Time (in ms) between writes of queued saves */
+    public static final int FLUSH_INTERVAL = 1000;
+
+    /** Minimum number of records in the log before it is compacted */
+    private static final int MIN_COMPACT_RECORDS = 10000;
+
+    private final Log LOG;
+    private final Path snapshotPath, logPath;
+    private final ScheduledExecutorService io;
+
+    /** Most recently used profiles, including ones not written yet */
+    private final Map<UUID, Profile> cache;
+
+    /** Saves not written yet, by key */
+    private final Map<UUID, Profile> pending;
+
+    // Only touched on the I/O thread
+
+    /** The location of each profile: an offset in the snapshot, or the complement of one in the log */
+    private Map<UUID, Long> index;
+
+    private FileChannel snapshot, log;
+    private long logRecords;
+
+    /**
+     * Opens (or creates) the profile files in a directory, indexing the profiles in them
+     *
+     * @param dir the directory to keep the files in
+     * @param cacheSize the number of profiles to keep in memory
+     * @param log the log to report to
+     */
+    public ProfileStore(Path dir, int cacheSize, Log log) throws IOException {
+        this.LOG = log;
+        Files.createDirectories(dir);
+        this.snapshotPath = dir.resolve("profiles.snapshot");
+        this.logPath = dir.resolve("profiles.log");
+
+        this.cache =
+                Collections.synchronizedMap(
+                        new LinkedHashMap<UUID, Profile>(16, 0.75f, true) {
+                            @Override
+                            protected boolean removeEldestEntry(Map.Entry<UUID, Profile> eldest) {
+                                return size() > cacheSize;
+                            }
+                        });
+        this.pending = new ConcurrentHashMap<>();
+        this.index = new HashMap<>();
+
+        this.snapshot = open(snapshotPath, false);
+        this.log = open(logPath, true);
+        this.scan(this.snapshot, false);
+        this.logRecords = this.scan(this.log, true);
+        LOG.logger.info("Indexed " + index.size() + " player profiles");
+
+        this.io =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread thread = new Thread(r, "profile-io");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        io.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a profile to be saved, replacing any earlier save of it that wasn't written yet
+     *
+     * @param profile the profile
+     */
+    public void save(Profile profile) {
+        cache.put(profile.key, profile);
+        pending.put(profile.key, profile);
+    }
+
+    /**
+     * Looks up a profile. Cached profiles are handed to the callback right away, on the calling
+     * thread; others are read on the I/O thread, which then runs the callback.
+     *
+     * @param key the key of the profile
+     * @param callback run with the profile, or with null if there is none
+     */
+    public void load(UUID key, Consumer<Profile> callback) {
+        Profile profile = cache.get(key);
+        if (profile != null) {
+            callback.accept(profile);
+            return;
+        }
+        io.execute(
+                () -> {
+                    Profile loaded = pending.get(key);
+                    if (loaded == null) {
+                        try {
+                            loaded = this.read(key);
+                        } catch (IOException e) {
+                            LOG.logException(e);
+                        }
+                    }
+                    if (loaded != null) cache.putIfAbsent(key, loaded);
+                    callback.accept(loaded);
+                });
+    }
+
+    /** Writes out queued saves and closes the files */
+    public void close() {
+        io.execute(this::flush);
+        io.shutdown();
+        try {
+            io.awaitTermination(5, TimeUnit.SECONDS);
+            snapshot.close();
+            log.close();
+        } catch (IOException | InterruptedException e) {
+            LOG.logException(e);
+        }
+    }
+
+    /** Writes queued saves to the end of the log, compacting it if it has grown large */
+    private void flush() {
+        if (pending.isEmpty()) return;
+        List<Profile> profiles = new ArrayList<>(pending.size());
+        for (Profile profile : pending.values()) {
+            if (pending.remove(profile.key, profile)) profiles.add(profile);
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(profiles.size() * RECORD_SIZE);
+            for (Profile profile : profiles) encode(profile, buffer);
+            buffer.flip();
+
+            long offset = log.size();
+            while (buffer.hasRemaining()) log.write(buffer, offset + buffer.position());
+            log.force(false);
+
+            for (Profile profile : profiles) {
+                index.put(profile.key, ~offset);
+                offset += RECORD_SIZE;
+            }
+            logRecords += profiles.size();
+
+            if (logRecords >= Math.max(MIN_COMPACT_RECORDS, index.size())) this.compact();
+        } catch (Throwable e) {
+            // Keep the saves for the next attempt, unless they were superseded meanwhile
+            for (Profile profile : profiles) pending.putIfAbsent(profile.key, profile);
+            LOG.logException(e);
+        }
+    }
+
+    /** Folds the log into a new snapshot, then empties the log */
+    private void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        Path temp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        Map<UUID, Long> compacted = new HashMap<>(index.size() * 2);
+
+        try (FileChannel out =
+                FileChannel.open(
+                        temp,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            buffer.put(MAGIC).put(VERSION);
+            long offset = HEADER_SIZE;
+            for (Map.Entry<UUID, Long> entry : index.entrySet()) {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) out.write(buffer);
+                    buffer.clear();
+                }
+                ByteBuffer record = this.readRecord(entry.getValue());
+                if (record == null) continue;
+                buffer.put(record);
+                compacted.put(entry.getKey(), offset);
+                offset += RECORD_SIZE;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+
+        // Moved before the old snapshot is closed, so a failed move leaves it readable
+        Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel old = snapshot;
+        snapshot = open(snapshotPath, false);
+        old.close();
+        // A crash before this point only leaves records in the log that the snapshot also has
+        log.truncate(HEADER_SIZE);
+        log.force(true);
+
+        index = compacted;
+        logRecords = 0;
+        LOG.logger.info(
+                "Compacted "
+                        + compacted.size()
+                        + " player profiles in "
+                        + (System.currentTimeMillis() - start)
+                        + " ms");
+    }
+
+    /** @return the profile with a key, read from disk, or null if there is none */
+    private Profile read(UUID key) throws IOException {
+        Long location = index.get(key);
+        if (location == null) return null;
+        ByteBuffer record = this.readRecord(location);
+        return record == null ? null : decode(record);
+    }
+
+    /** @return the record at a location, or null if it is damaged */
+    private ByteBuffer readRecord(long location) throws IOException {
+        FileChannel channel = location < 0 ? log : snapshot;
+        long offset = location < 0 ? ~location : location;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        while (record.hasRemaining()) {
+            if (channel.read(record, offset + record.position()) < 0) return null;
+        }
+        record.flip();
+        return isIntact(record) ? record : null;
+    }
+
+    /**
+     * Indexes every intact record in a file, in order, so later records win
+     *
+     * @param channel the file
+     * @param isLog whether the file is the log, whose torn tail (if any) is cut off
+     * @return the number of records indexed
+     */
+    private long scan(FileChannel channel, boolean isLog) throws IOException {
+        long size = channel.size();
+        long records = 0;
+        long offset = HEADER_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+
+        while (offset + RECORD_SIZE <= size) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read < RECORD_SIZE) break;
+            buffer.flip();
+
+            boolean intact = true;
+            while (buffer.remaining() >= RECORD_SIZE) {
+                int start = buffer.position();
+                ByteBuffer record = buffer.slice().limit(RECORD_SIZE);
+                if (!isIntact(record)) {
+                    intact = false;
+                    break;
+                }
+                index.put(new UUID(record.getLong(0), record.getLong(8)), isLog ? ~offset : offset);
+                buffer.position(start + RECORD_SIZE);
+                offset += RECORD_SIZE;
+                records++;
+            }
+            if (!intact) break;
+        }
+
+        if (offset < size) {
+            if (isLog) {
+                LOG.logger.warning("Dropping " + (size - offset) + " damaged bytes at the end of the profile log");
+                channel.truncate(offset);
+            } else {
+                LOG.logger.warning("Profile snapshot is damaged after " + records + " profiles");
+            }
+        }
+        return records;
+    }
+
+    /** Opens a profile file, writing its header if it is new */
+    private static FileChannel open(Path path, boolean writable) throws IOException {
+        FileChannel channel =
+                writable || !Files.exists(path)
+                        ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                        : FileChannel.open(path, StandardOpenOption.READ);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() < HEADER_SIZE) {
+            header.put(MAGIC).put(VERSION).flip();
+            channel.truncate(0);
+            while (header.hasRemaining()) channel.write(header, header.position());
+            return channel;
+        }
+        while (header.hasRemaining()) channel.read(header, header.position());
+        byte[] magic = Arrays.copyOf(header.array(), MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC) || header.get(MAGIC.length) != VERSION) {
+            channel.close();
+            throw new IOException(path + " is not a profile file of version " + VERSION);
+        }
+        return channel;
+    }
+
+    private static void encode(Profile profile, ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putLong(profile.key.getMostSignificantBits())
+                .putLong(profile.key.getLeastSignificantBits())
+                .putLong(profile.savedTime)
+                .putInt(profile.room)
+                .putShort((short) profile.spriteIndex)
+                .putShort((short) profile.imageIndex)
+                .putFloat(profile.x)
+                .putFloat(profile.y);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), start, RECORD_SIZE - 4);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    private static Profile decode(ByteBuffer record) {
+        return new Profile(
+                new UUID(record.getLong(0), record.getLong(8)),
+                record.getLong(16),
+                record.getInt(24),
+                record.getShort(28),
+                record.getShort(30),
+                record.getFloat(32),
+                record.getFloat(36));
+    }
+
+    /** @return whether a record's checksum matches; the buffer's position is left as is */
+    private static boolean isIntact(ByteBuffer record) {
+        byte[] bytes = new byte[RECORD_SIZE - 4];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = record.get(record.position() + i);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue() == record.getInt(record.position() + RECORD_SIZE - 4);
+    }
+}
@@ -0,0 +1,224 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import me.colinator27.Util;
+import me.colinator27.packet.InboundPacketType;
+import me.colinator27.packet.OutboundPacketType;
+import me.colinator27.packet.PacketCodec;
+import me.colinator27.packet.PacketError;
+import me.colinator27.packet.PacketReader;
+import me.colinator27.packet.PacketSchema;
+
+/**
+ * Feeds the packet decoder random and mutated packets, failing if anything throws. Valid packets
+ * of every inbound type are truncated, extended, bit-flipped and given bogus repeat counts, next to
+ * plain random bytes, and the stream is also cut into random chunks through the framed codec.
+ * Packets that pass {@link PacketReader#check} are described, reading every field, which must not
+ * throw either. Run from the repository root after building, with
+ * {@code java -cp <classes or jar> tools/FuzzDecoder.java [iterations] [seed]}.
+ */
+public class FuzzDecoder {
+    /** Failures printed before giving up on printing them */
+    private static final int MAX_REPORTED = 10;
+
+    private final SplittableRandom random;
+    private final byte[] packet = new byte[PacketSchema.MAX_PACKET + 64];
+    private final Map<PacketError, long[]> results = new EnumMap<>(PacketError.class);
+    private long failures, outbound;
+
+    private FuzzDecoder(long seed) {
+        this.random = new SplittableRandom(seed);
+        for (PacketError error : PacketError.values()) results.put(error, new long[2]);
+    }
+
+    public static void main(String[] args) {
+        long iterations = args.length > 0 ? Long.parseLong(args[0]) : 200_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : new Random().nextLong();
+        System.out.println("Fuzzing " + iterations + " packets with seed " + seed);
+
+        FuzzDecoder fuzzer = new FuzzDecoder(seed);
+        for (long i = 0; i < iterations; i++) {
+            int len = fuzzer.generate();
+            fuzzer.decode(len);
+            fuzzer.decodeOutbound(len);
+        }
+        fuzzer.fuzzFraming(iterations / 10);
+
+        for (Map.Entry<PacketError, long[]> result : fuzzer.results.entrySet()) {
+            long[] counts = result.getValue();
+            if (counts[0] == 0) continue;
+            System.out.printf("%-13s %9d packets, %6.1f ns to check%n", result.getKey(), counts[0], (double) counts[1] / counts[0]);
+        }
+        System.out.println(fuzzer.outbound + " outbound packets described");
+        if (fuzzer.failures > 0) {
+            System.out.println(fuzzer.failures + " failures (seed " + seed + ")");
+            System.exit(1);
+        }
+        System.out.println("No failures");
+    }
+
+    /** @return the length of a new packet written to the start of {@link #packet} */
+    private int generate() {
+        int len;
+        switch (random.nextInt(8)) {
+            case 0:
+                // Random bytes, possibly past the largest packet
+                len = random.nextInt(packet.length);
+                this.fill(0, len);
+                return len;
+            case 1:
+                // Random bytes after a valid header, like scripts/crasher.py
+                len = 5 + random.nextInt(64);
+                this.fill(0, len);
+                this.header(this.type().id);
+                return len;
+            default:
+                len = this.valid();
+                return this.mutate(len);
+        }
+    }
+
+    /** @return the length of a valid packet of a random type, written to {@link #packet} */
+    private int valid() {
+        InboundPacketType type = this.type();
+        int len = 5 + random.nextInt(48);
+        if (type == InboundPacketType.SPECTATE) {
+            int count = random.nextInt(16);
+            len = PacketSchema.Inbound.Spectate.ROOMS + count * PacketSchema.Inbound.Spectate.ROOMS_ENTRY_SIZE;
+            this.fill(0, len);
+            this.putShort(PacketSchema.Inbound.Spectate.COUNT, count);
+        } else {
+            this.fill(0, len);
+        }
+        this.header(type.id);
+        return len;
+    }
+
+    /** @return the length of the packet in {@link #packet} after damaging it */
+    private int mutate(int len) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return random.nextInt(len + 1);
+            case 1:
+                int extra = random.nextInt(packet.length - len);
+                this.fill(len, extra);
+                return len + extra;
+            case 2:
+                for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                    packet[random.nextInt(len)] ^= 1 << random.nextInt(8);
+                }
+                return len;
+            case 3:
+                if (len >= PacketSchema.Inbound.Spectate.MIN_SIZE) {
+                    packet[4] = InboundPacketType.SPECTATE.id;
+                    int[] counts = {-1, Short.MIN_VALUE, Short.MAX_VALUE, len, random.nextInt(1 << 16)};
+                    this.putShort(PacketSchema.Inbound.Spectate.COUNT, counts[random.nextInt(counts.length)]);
+                }
+                return len;
+            case 4:
+                packet[3] = (byte) random.nextInt(256);
+                return len;
+            default:
+                return len;
+        }
+    }
+
+    /** Checks and describes the packet in {@link #packet} as if received */
+    private void decode(int len) {
+        try {
+            PacketReader reader = new PacketReader(packet, len);
+            long start = System.nanoTime();
+            PacketError error = reader.check();
+            long elapsed = System.nanoTime() - start;
+            long[] counts = results.get(error);
+            counts[0]++;
+            counts[1] += elapsed;
+            if (error == PacketError.NONE) reader.toString();
+        } catch (Throwable e) {
+            this.fail("inbound", len, e);
+        }
+    }
+
+    /** Describes the packet in {@link #packet} as if sent, as logging and tracing do */
+    private void decodeOutbound(int len) {
+        if (len < 5) return;
+        packet[4] = this.outboundType().id;
+        try {
+            Util.stringifyServerPacket(packet, len);
+            outbound++;
+        } catch (Throwable e) {
+            this.fail("outbound", len, e);
+        }
+    }
+
+    /** Cuts streams of framed packets into random chunks, as reads from a connection would */
+    private void fuzzFraming(long streams) {
+        PacketCodec.Sink sink = (bytes, len) -> {
+            try {
+                new PacketReader(bytes, len).check();
+            } catch (Throwable e) {
+                this.fail("framed", len, e);
+            }
+        };
+        ByteBuffer stream = ByteBuffer.allocate(16 * (2 + packet.length)).order(ByteOrder.LITTLE_ENDIAN);
+        for (long i = 0; i < streams; i++) {
+            stream.clear();
+            for (int packets = 1 + random.nextInt(16); packets > 0; packets--) {
+                int len = this.generate();
+                // Mostly honest prefixes, sometimes lying about the length
+                stream.putShort((short) (random.nextInt(8) == 0 ? random.nextInt(1 << 16) : len));
+                stream.put(packet, 0, len);
+            }
+            stream.flip();
+            PacketCodec codec = new PacketCodec.Framed();
+            try {
+                while (stream.hasRemaining()) {
+                    ByteBuffer chunk = stream.duplicate();
+                    chunk.limit(chunk.position() + Math.min(stream.remaining(), 1 + random.nextInt(2048)));
+                    stream.position(chunk.limit());
+                    if (!codec.decode(chunk, sink)) break;
+                }
+            } catch (Throwable e) {
+                this.fail("framing", stream.limit(), e);
+            }
+        }
+    }
+
+    private InboundPacketType type() {
+        InboundPacketType[] types = InboundPacketType.values();
+        return types[random.nextInt(types.length)];
+    }
+
+    private OutboundPacketType outboundType() {
+        OutboundPacketType[] types = OutboundPacketType.values();
+        return types[random.nextInt(types.length)];
+    }
+
+    private void header(byte type) {
+        packet[0] = 'U';
+        packet[1] = 'T';
+        packet[2] = 'O';
+        packet[3] = 0;
+        packet[4] = type;
+    }
+
+    private void fill(int from, int len) {
+        for (int i = from; i < from + len; i++) packet[i] = (byte) random.nextInt(256);
+    }
+
+    private void putShort(int offset, int value) {
+        packet[offset] = (byte) value;
+        packet[offset + 1] = (byte) (value >> 8);
+    }
+
+    private void fail(String what, int len, Throwable e) {
+        if (failures++ < MAX_REPORTED) {
+            System.out.println("Decoding " + what + " packet failed: " + e);
+            System.out.println("  " + Util.stringify(packet, Math.min(len, 64)) + (len > 64 ? "... (" + len + " bytes)" : ""));
+        }
+    }
+}
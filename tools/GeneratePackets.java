@@ -0,0 +1,448 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the packet type enums and PacketSchema from the packet schema (see
+ * protocol/packets.schema for its format). Run from the repository root with
+ * {@code java tools/GeneratePackets.java protocol/packets.schema src/me/colinator27/packet}, and
+ * commit the result along with the schema.
+ */
+public class GeneratePackets {
+    private static final String PACKAGE = "me.colinator27.packet";
+
+    /** A field type: its size (-1 if variable) and ByteBuffer accessor suffix */
+    private enum Type {
+        BYTE(1, "", "byte"),
+        SHORT(2, "Short", "short"),
+        INT(4, "Int", "int"),
+        LONG(8, "Long", "long"),
+        FLOAT(4, "Float", "float"),
+        UUID(16, null, "UUID"),
+        STRING(-1, null, "String"),
+        BYTES(-1, null, null);
+
+        final int size;
+        final String accessor, java;
+
+        Type(int size, String accessor, String java) {
+            this.size = size;
+            this.accessor = accessor;
+            this.java = java;
+        }
+    }
+
+    private static class Field {
+        String name;
+        Type type;
+        boolean optional;
+        int offset;
+
+        /** For repeated groups: the count field and the entry's fields */
+        String count;
+        List<Field> entry;
+        int entrySize;
+    }
+
+    private static class Packet {
+        boolean inbound;
+        String name;
+        int id;
+        List<Field> fields = new ArrayList<>();
+
+        int minSize, maxSize;
+        boolean variable, hasOptional;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: GeneratePackets <schema> <output directory>");
+            System.exit(1);
+        }
+        List<Packet> packets = parse(Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8));
+        Path out = Paths.get(args[1]);
+        write(out.resolve("InboundPacketType.java"), enumSource(packets, true));
+        write(out.resolve("OutboundPacketType.java"), enumSource(packets, false));
+        write(out.resolve("PacketSchema.java"), schemaSource(packets));
+    }
+
+    private static void write(Path path, String source) throws IOException {
+        Files.write(path, source.getBytes(StandardCharsets.UTF_8));
+        System.out.println("Wrote " + path);
+    }
+
+    private static List<Packet> parse(List<String> lines) {
+        List<Packet> packets = new ArrayList<>();
+        Packet packet = null;
+        Field group = null;
+        int groupIndent = -1;
+        for (int n = 0; n < lines.size(); n++) {
+            String line = lines.get(n);
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            if (line.trim().isEmpty()) continue;
+
+            int indent = 0;
+            while (line.charAt(indent) == ' ') indent++;
+            String[] words = line.trim().split("\\s+");
+            if (indent == 0) {
+                if (words.length != 3 || !(words[0].equals("inbound") || words[0].equals("outbound"))) {
+                    throw error(n, "expected <inbound|outbound> <name> <type>");
+                }
+                packet = new Packet();
+                packet.inbound = words[0].equals("inbound");
+                packet.name = words[1];
+                packet.id = Integer.parseInt(words[2]);
+                packets.add(packet);
+                group = null;
+                continue;
+            }
+            if (packet == null) throw error(n, "field outside of a packet");
+            if (group != null && indent <= groupIndent) group = null;
+
+            Field field = new Field();
+            if (words[0].equals("repeat")) {
+                if (words.length != 3 || group != null) throw error(n, "expected repeat <count> <name>");
+                field.count = words[1];
+                field.name = words[2];
+                field.entry = new ArrayList<>();
+                packet.fields.add(field);
+                group = field;
+                groupIndent = indent;
+                continue;
+            }
+            int i = 0;
+            if (words[0].equals("optional")) {
+                field.optional = true;
+                i++;
+            }
+            if (words.length != i + 2) throw error(n, "expected [optional] <type> <name>");
+            field.type = Type.valueOf(words[i].toUpperCase());
+            field.name = words[i + 1];
+            if (group != null) {
+                if (field.optional || field.type.size < 0) throw error(n, "entries need fixed-size fields");
+                group.entry.add(field);
+            } else {
+                packet.fields.add(field);
+            }
+        }
+        for (Packet p : packets) layout(p);
+        return packets;
+    }
+
+    private static void layout(Packet packet) {
+        int offset = 5;
+        packet.minSize = 5;
+        for (int i = 0; i < packet.fields.size(); i++) {
+            Field field = packet.fields.get(i);
+            boolean last = i == packet.fields.size() - 1;
+            field.offset = offset;
+            if (field.entry != null) {
+                for (Field e : field.entry) {
+                    e.offset = field.entrySize;
+                    field.entrySize += e.type.size;
+                }
+                packet.variable = true;
+            } else if (field.type.size < 0) {
+                if (!last) throw new IllegalArgumentException(packet.name + ": " + field.name + " must be last");
+                packet.variable = true;
+                if (field.type == Type.STRING) packet.minSize++;
+            } else {
+                offset += field.type.size;
+                if (field.optional) {
+                    packet.hasOptional = true;
+                } else if (packet.hasOptional) {
+                    throw new IllegalArgumentException(packet.name + ": optional fields must come last");
+                } else {
+                    packet.minSize = offset;
+                }
+            }
+        }
+        packet.maxSize = packet.variable ? -1 : offset;
+    }
+
+    private static IllegalArgumentException error(int line, String message) {
+        return new IllegalArgumentException("Line " + (line + 1) + ": " + message);
+    }
+
+    private static String header() {
+        return "// Generated by tools/GeneratePackets.java from protocol/packets.schema; do not edit.\n"
+                + "package " + PACKAGE + ";\n\n";
+    }
+
+    private static String enumSource(List<Packet> packets, boolean inbound) {
+        String name = inbound ? "InboundPacketType" : "OutboundPacketType";
+        StringBuilder sb = new StringBuilder(header());
+        sb.append("/** The various ").append(inbound ? "inbound (from client)" : "outbound (to client)")
+                .append(" packet types */\n");
+        sb.append("public enum ").append(name).append(" {\n");
+        List<String> constants = new ArrayList<>();
+        for (Packet p : packets) {
+            if (p.inbound == inbound) constants.add("    " + p.name + "((byte) " + p.id + ")");
+        }
+        sb.append(String.join(",\n", constants)).append(";\n\n");
+        sb.append("    private static final ").append(name).append("[] BY_ID = new ").append(name).append("[256];\n\n");
+        sb.append("    static {\n");
+        sb.append("        for (").append(name).append(" type : values()) BY_ID[type.id & 0xFF] = type;\n");
+        sb.append("    }\n\n");
+        sb.append("    public final byte id;\n\n");
+        sb.append("    ").append(name).append("(byte id) {\n");
+        sb.append("        this.id = id;\n");
+        sb.append("    }\n\n");
+        sb.append("    /** @return the packet type with an ID, or null if there is none */\n");
+        sb.append("    public static ").append(name).append(" find(byte id) {\n");
+        sb.append("        return BY_ID[id & 0xFF];\n");
+        sb.append("    }\n\n");
+        sb.append("    public static ").append(name).append(" fromValue(byte id) {\n");
+        sb.append("        ").append(name).append(" type = find(id);\n");
+        sb.append("        if (type == null) throw new IllegalArgumentException(\"no packet type with id \" + id);\n");
+        sb.append("        return type;\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String schemaSource(List<Packet> packets) {
+        StringBuilder sb = new StringBuilder(header());
+        sb.append("import java.nio.ByteBuffer;\n");
+        sb.append("import java.nio.charset.StandardCharsets;\n");
+        sb.append("import java.util.UUID;\n\n");
+        sb.append("/**\n");
+        sb.append(" * The layout of every packet. Each packet's class has the offset of each field from the start of\n");
+        sb.append(" * the packet, accessors reading a field from a little-endian buffer holding the packet at index\n");
+        sb.append(" * 0, the sizes packets of the type may have, and, for fixed-size packets sent to clients, an\n");
+        sb.append(" * encoder.\n");
+        sb.append(" */\n");
+        sb.append("public final class PacketSchema {\n");
+        sb.append("    /** The largest packet, the size of a PacketBuilder buffer */\n");
+        sb.append("    public static final int MAX_PACKET = 4096;\n\n");
+        sb.append("    private PacketSchema() {}\n\n");
+
+        for (boolean inbound : new boolean[] {true, false}) {
+            String direction = inbound ? "Inbound" : "Outbound";
+            String type = direction + "PacketType";
+            sb.append("    /**\n");
+            sb.append("     * Checks that a packet of a type holds all of its fields (it may be longer), so its accessors\n");
+            sb.append("     * can't read past its end. Never throws, whatever the packet holds.\n");
+            sb.append("     *\n");
+            sb.append("     * @param bb the packet, at index 0 up to the limit\n");
+            sb.append("     * @return {@link PacketError#NONE}, or what is wrong with the packet\n");
+            sb.append("     */\n");
+            sb.append("    public static PacketError check(").append(type).append(" type, ByteBuffer bb) {\n");
+            sb.append("        int len = bb.limit();\n");
+            sb.append("        if (len > MAX_PACKET) return PacketError.TOO_LONG;\n");
+            sb.append("        switch (type) {\n");
+            for (Packet p : packets) {
+                if (p.inbound != inbound) continue;
+                String cls = direction + '.' + className(p.name);
+                sb.append("            case ").append(p.name).append(":\n");
+                sb.append("                if (len < ").append(cls).append(".MIN_SIZE) return PacketError.TOO_SHORT;\n");
+                for (Field f : p.fields) {
+                    if (f.entry == null) continue;
+                    String group = cls + '.' + constant(f.name);
+                    sb.append("                if (").append(cls).append('.').append(f.count).append("(bb) < 0\n");
+                    sb.append("                        || len < ").append(group).append(" + ").append(cls).append('.').append(f.count)
+                            .append("(bb) * ").append(group).append("_ENTRY_SIZE) {\n");
+                    sb.append("                    return PacketError.BAD_COUNT;\n");
+                    sb.append("                }\n");
+                }
+                sb.append("                return PacketError.NONE;\n");
+            }
+            sb.append("            default:\n");
+            sb.append("                return PacketError.UNKNOWN_TYPE;\n");
+            sb.append("        }\n");
+            sb.append("    }\n\n");
+
+            sb.append("    /** @return a packet in human-readable form, e.g. for logs; the packet must pass {@link #check} */\n");
+            sb.append("    public static String describe(").append(type).append(" type, ByteBuffer bb) {\n");
+            sb.append("        StringBuilder sb = new StringBuilder(type.toString()).append(\" [\");\n");
+            sb.append("        switch (type) {\n");
+            for (Packet p : packets) {
+                if (p.inbound != inbound) continue;
+                sb.append("            case ").append(p.name).append(":\n");
+                sb.append("                ").append(direction).append('.').append(className(p.name)).append(".describe(bb, sb);\n");
+                sb.append("                break;\n");
+            }
+            sb.append("        }\n");
+            sb.append("        return sb.append(']').toString();\n");
+            sb.append("    }\n\n");
+        }
+
+        sb.append("    private static void append(StringBuilder sb, String name, Object value) {\n");
+        sb.append("        if (sb.charAt(sb.length() - 1) != '[') sb.append(\", \");\n");
+        sb.append("        sb.append(name).append('=').append(value);\n");
+        sb.append("    }\n\n");
+        sb.append("    private static void header(ByteBuffer out, int at, byte type) {\n");
+        sb.append("        out.put(at, (byte) 'U').put(at + 1, (byte) 'T').put(at + 2, (byte) 'O');\n");
+        sb.append("        out.put(at + 3, PacketBuilder.PROTOCOL_VERSION).put(at + 4, type);\n");
+        sb.append("    }\n\n");
+        sb.append("    private static String string(ByteBuffer bb, int offset) {\n");
+        sb.append("        int end = offset;\n");
+        sb.append("        while (end < bb.limit() && bb.get(end) != 0) end++;\n");
+        sb.append("        byte[] bytes = new byte[end - offset];\n");
+        sb.append("        for (int i = 0; i < bytes.length; i++) bytes[i] = bb.get(offset + i);\n");
+        sb.append("        return new String(bytes, StandardCharsets.UTF_8);\n");
+        sb.append("    }\n\n");
+
+        for (boolean inbound : new boolean[] {true, false}) {
+            String direction = inbound ? "Inbound" : "Outbound";
+            sb.append("    /** Packets ").append(inbound ? "from" : "to").append(" clients */\n");
+            sb.append("    public static final class ").append(direction).append(" {\n");
+            sb.append("        private ").append(direction).append("() {}\n");
+            for (Packet p : packets) {
+                if (p.inbound == inbound) packetClass(sb, p);
+            }
+            sb.append("    }\n");
+            if (inbound) sb.append('\n');
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static void packetClass(StringBuilder sb, Packet p) {
+        String cls = className(p.name);
+        String in = "            ";
+        sb.append('\n');
+        sb.append("        /** ").append(p.name).append(" (").append(p.id).append(") */\n");
+        sb.append("        public static final class ").append(cls).append(" {\n");
+        sb.append(in).append("public static final byte TYPE = (byte) ").append(p.id).append(";\n");
+        for (Field f : p.fields) {
+            sb.append(in).append("public static final int ").append(constant(f.name)).append(" = ").append(f.offset).append(";\n");
+            if (f.entry != null) {
+                sb.append(in).append("public static final int ").append(constant(f.name)).append("_ENTRY_SIZE = ").append(f.entrySize).append(";\n");
+                for (Field e : f.entry) {
+                    sb.append(in).append("public static final int ").append(constant(f.name)).append('_').append(constant(e.name))
+                            .append(" = ").append(e.offset).append(";\n");
+                }
+            }
+        }
+        sb.append(in).append("public static final int MIN_SIZE = ").append(p.minSize).append(";\n");
+        sb.append(in).append("public static final int MAX_SIZE = ").append(p.variable ? "MAX_PACKET" : String.valueOf(p.maxSize)).append(";\n");
+        boolean encodable = !p.inbound && !p.variable && !p.hasOptional;
+        if (encodable) sb.append(in).append("public static final int SIZE = ").append(p.maxSize).append(";\n");
+        sb.append('\n');
+        sb.append(in).append("private ").append(cls).append("() {}\n");
+
+        for (Field f : p.fields) {
+            if (f.entry != null) {
+                for (Field e : f.entry) {
+                    sb.append('\n');
+                    sb.append(in).append("public static ").append(e.type.java).append(' ').append(f.name).append(capitalize(e.name))
+                            .append("(ByteBuffer bb, int index) {\n");
+                    sb.append(in).append("    ").append(read(e.type, constant(f.name) + " + index * " + constant(f.name) + "_ENTRY_SIZE + "
+                            + constant(f.name) + '_' + constant(e.name))).append('\n');
+                    sb.append(in).append("}\n");
+                }
+                continue;
+            }
+            if (f.optional) {
+                sb.append('\n');
+                sb.append(in).append("public static boolean has").append(capitalize(f.name)).append("(ByteBuffer bb) {\n");
+                sb.append(in).append("    return bb.limit() >= ").append(constant(f.name)).append(" + ").append(f.type.size).append(";\n");
+                sb.append(in).append("}\n");
+            }
+            if (f.type == Type.BYTES) {
+                sb.append('\n');
+                sb.append(in).append("public static int ").append(f.name).append("Length(ByteBuffer bb) {\n");
+                sb.append(in).append("    return bb.limit() - ").append(constant(f.name)).append(";\n");
+                sb.append(in).append("}\n");
+                continue;
+            }
+            sb.append('\n');
+            sb.append(in).append("public static ").append(f.type.java).append(' ').append(f.name).append("(ByteBuffer bb) {\n");
+            sb.append(in).append("    ").append(read(f.type, constant(f.name))).append('\n');
+            sb.append(in).append("}\n");
+        }
+
+        if (encodable) {
+            List<String> params = new ArrayList<>();
+            for (Field f : p.fields) params.add(f.type.java + " " + f.name);
+            sb.append('\n');
+            sb.append(in).append("/** Writes the packet at the buffer's position, and advances past it */\n");
+            sb.append(in).append("public static void encode(ByteBuffer out");
+            for (String param : params) sb.append(", ").append(param);
+            sb.append(") {\n");
+            sb.append(in).append("    int at = out.position();\n");
+            sb.append(in).append("    header(out, at, TYPE);\n");
+            for (Field f : p.fields) {
+                sb.append(in).append("    ").append(write(f)).append('\n');
+            }
+            sb.append(in).append("    out.position(at + SIZE);\n");
+            sb.append(in).append("}\n");
+
+            sb.append('\n');
+            sb.append(in).append("/** @return the packet in direct memory, to be sent to many connections, see {@link SharedBuffers} */\n");
+            sb.append(in).append("public static ByteBuffer shared(").append(String.join(", ", params)).append(") {\n");
+            sb.append(in).append("    ByteBuffer out = SharedBuffers.allocate(SIZE);\n");
+            sb.append(in).append("    encode(out");
+            for (Field f : p.fields) sb.append(", ").append(f.name);
+            sb.append(");\n");
+            sb.append(in).append("    return SharedBuffers.seal(out);\n");
+            sb.append(in).append("}\n");
+        }
+
+        sb.append('\n');
+        sb.append(in).append("static void describe(ByteBuffer bb, StringBuilder sb) {\n");
+        for (Field f : p.fields) {
+            String put = "append(sb, \"" + f.name + "\", ";
+            if (f.entry != null) {
+                sb.append(in).append("    StringBuilder entries = new StringBuilder(\"[\");\n");
+                sb.append(in).append("    for (int i = 0; i < ").append(f.count).append("(bb); i++) {\n");
+                sb.append(in).append("        if (i > 0) entries.append(\", \");\n");
+                sb.append(in).append("        entries.append('[');\n");
+                for (Field e : f.entry) {
+                    sb.append(in).append("        append(entries, \"").append(e.name).append("\", ").append(f.name).append(capitalize(e.name)).append("(bb, i));\n");
+                }
+                sb.append(in).append("        entries.append(']');\n");
+                sb.append(in).append("    }\n");
+                sb.append(in).append("    ").append(put).append("entries.append(']'));\n");
+            } else if (f.type == Type.BYTES) {
+                sb.append(in).append("    ").append(put).append(f.name).append("Length(bb) + \" bytes\");\n");
+            } else if (f.optional) {
+                sb.append(in).append("    if (has").append(capitalize(f.name)).append("(bb)) ").append(put).append(f.name).append("(bb));\n");
+            } else {
+                sb.append(in).append("    ").append(put).append(f.name).append("(bb));\n");
+            }
+        }
+        sb.append(in).append("}\n");
+        sb.append("        }\n");
+    }
+
+    private static String read(Type type, String offset) {
+        switch (type) {
+            case UUID:
+                return "return new UUID(bb.getLong(" + offset + "), bb.getLong(" + offset + " + 8));";
+            case STRING:
+                return "return string(bb, " + offset + ");";
+            default:
+                return "return bb.get" + type.accessor + "(" + offset + ");";
+        }
+    }
+
+    private static String write(Field f) {
+        String at = "at + " + constant(f.name);
+        if (f.type == Type.UUID) {
+            return "out.putLong(" + at + ", " + f.name + ".getMostSignificantBits()).putLong(" + at + " + 8, "
+                    + f.name + ".getLeastSignificantBits());";
+        }
+        return "out.put" + f.type.accessor + "(" + at + ", " + f.name + ");";
+    }
+
+    private static String className(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : name.toLowerCase().split("_")) sb.append(capitalize(word));
+        return sb.toString();
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+
+    private static String constant(String name) {
+        return name.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase();
+    }
+}